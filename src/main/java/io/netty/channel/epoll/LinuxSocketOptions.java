@@ -0,0 +1,55 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.netty.channel.epoll;
+
+import java.io.IOException;
+
+/**
+ * Exposes the package private linux specific socket options of {@link LinuxSocket}
+ * so that they can be applied to sockets created by the NIO transport.
+ */
+public final class LinuxSocketOptions {
+    private LinuxSocketOptions() {
+    }
+
+    public static void setReusePort(int fd, boolean reusePort) throws IOException {
+        new LinuxSocket(fd).setReusePort(reusePort);
+    }
+
+    public static boolean isReusePort(int fd) throws IOException {
+        return new LinuxSocket(fd).isReusePort();
+    }
+
+    public static void setTcpFastOpen(int fd, int queueLength) throws IOException {
+        new LinuxSocket(fd).setTcpFastOpen(queueLength);
+    }
+
+    public static void setTcpDeferAccept(int fd, int seconds) throws IOException {
+        new LinuxSocket(fd).setTcpDeferAccept(seconds);
+    }
+
+    public static int getTcpDeferAccept(int fd) throws IOException {
+        return new LinuxSocket(fd).getTcpDeferAccept();
+    }
+
+    public static void setTcpQuickAck(int fd, boolean quickAck) throws IOException {
+        new LinuxSocket(fd).setTcpQuickAck(quickAck);
+    }
+
+    public static boolean isTcpQuickAck(int fd) throws IOException {
+        return new LinuxSocket(fd).isTcpQuickAck();
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.netty.handler.ssl;
+
+import javax.net.ssl.SSLEngine;
+import java.util.List;
+import java.util.function.BiFunction;
+
+/**
+ * Server side ALPN with the {@link SSLEngine#setHandshakeApplicationProtocolSelector} api of java 8u252 and later.
+ * Netty 4.1.12 only knows ALPN through the jetty alpn-boot classes, and {@link SslHandler#applicationProtocol()}
+ * only reads the negotiated protocol from its own {@link JdkSslSession}, so this lives in the netty package.
+ */
+public final class JdkNativeAlpnSslEngine extends JdkSslEngine {
+    private static final boolean AVAILABLE = isSelectorSupported();
+
+    private JdkNativeAlpnSslEngine(SSLEngine engine, List<String> protocols) {
+        super(engine);
+        engine.setHandshakeApplicationProtocolSelector((e, offered) -> {
+            for (String protocol : protocols) {
+                if (offered.contains(protocol)) {
+                    getSession().setApplicationProtocol(protocol);
+                    return protocol;
+                }
+            }
+            // continue without ALPN like netty's NO_ADVERTISE, null would fail the handshake
+            return "";
+        });
+    }
+
+    /**
+     * @return true if the running JVM negotiates ALPN natively
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @param protocols the supported protocols in order of preference
+     */
+    public static SSLEngine wrap(SSLEngine engine, List<String> protocols) {
+        return new JdkNativeAlpnSslEngine(engine, protocols);
+    }
+
+    private static boolean isSelectorSupported() {
+        try {
+            SSLEngine.class.getMethod("setHandshakeApplicationProtocolSelector", BiFunction.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -15,67 +15,23 @@
  */
 package io.nitor.api.backend;
 
+import io.nitor.api.backend.accesslog.AccessLog;
+import io.nitor.api.backend.tls.ClientCertificate;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-import javax.net.ssl.SSLPeerUnverifiedException;
-import javax.security.cert.X509Certificate;
 
 import static java.lang.System.currentTimeMillis;
 
 public class AccessLogHandler {
-    public void handle(RoutingContext routingContext) {
-        new AccessLogEntry().init(routingContext);
-        routingContext.next();
-    }
-
-    public static class AccessLogEntry {
-        public final long requestStartTime = currentTimeMillis();
-        //public long requestBodyEndTime;
-        //public long responseStartTime;
-        public long responseBodyEndTime;
-        public String reqLine;
-
-        private RoutingContext routingContext;
+    private final AccessLog accessLog;
 
-        final Logger logger = LogManager.getLogger(AccessLogEntry.class);
-
-        public void init(RoutingContext routingContext) {
-            this.routingContext = routingContext;
-            this.reqLine = routingContext.request().method() + " " + routingContext.request().uri() + " " + routingContext.request().version();
-            routingContext.data().put("accessLog", this);
-            routingContext.addBodyEndHandler(v -> {
-                responseBodyEndTime = currentTimeMillis();
-                logger.info(toLogEntry());
-            });
-        }
-
-        private String toLogEntry() {
-            String cert = "";
-            try {
-                X509Certificate[] certs = routingContext.request().peerCertificateChain();
-                if (certs != null) {
-                    for (X509Certificate c : certs) {
-                        if (!cert.isEmpty()) {
-                            cert += " ::: ";
-                        }
-                        cert += c.getSubjectDN().getName();
-                    }
-                }
-            } catch (SSLPeerUnverifiedException e) {
-                // ignore
-            }
-            return '"' + reqLine + "\" \"" + routingContext.response().getStatusCode() + ' ' + routingContext.response().getStatusMessage() + "\" "
-                    + (responseBodyEndTime - requestStartTime) + "ms "
-                    + routingContext.response().bytesWritten() + " \""
-                    + nte(routingContext.request().getHeader("Referrer")) + "\" \""
-                    + nte(routingContext.request().getHeader("User-Agent")) + "\" \""
-                    + cert + '"';
-        }
+    public AccessLogHandler(JsonObject accessLogConf) {
+        this.accessLog = AccessLog.start(accessLogConf);
+    }
 
-        private String nte(String header) {
-            return header == null ? "" : header;
-        }
+    public void handle(RoutingContext routingContext) {
+        long requestStartTime = currentTimeMillis();
+        routingContext.addBodyEndHandler(v -> accessLog.log(routingContext.request(), ClientCertificate.of(routingContext), requestStartTime, currentTimeMillis()));
+        routingContext.next();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import io.nitor.api.backend.InheritedChannelSelectorProvider.ServerSocketChannelWrapper;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.web.Router;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import sun.misc.Signal;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.System.exit;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Shuts the server down without failing requests, on a signal or a POST to the shutdown route. The health check
+ * starts failing first so that the load balancer stops sending traffic, after <tt>healthCheckGrace</tt> seconds the
+ * listen socket stops accepting connections and the requests in flight are drained for at most <tt>drainTimeout</tt>
+ * seconds. Only then the process exits, closing vert.x and the http client pools through the shutdown hook of the launcher.
+ */
+public class GracefulShutdown {
+    private static final Logger logger = LogManager.getLogger(GracefulShutdown.class);
+
+    private static volatile GracefulShutdown instance;
+
+    private final InFlightRequests inFlight;
+    private final long healthCheckGraceMillis;
+    private final long drainTimeoutMillis;
+    private final Runnable stopAccepting;
+    private final Runnable exit;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean healthy = true;
+
+    GracefulShutdown(InFlightRequests inFlight, JsonObject conf) {
+        this(inFlight, conf, GracefulShutdown::stopAccepting, () -> exit(0));
+    }
+
+    GracefulShutdown(InFlightRequests inFlight, JsonObject conf, Runnable stopAccepting, Runnable exit) {
+        this.inFlight = inFlight;
+        this.healthCheckGraceMillis = SECONDS.toMillis(conf.getInteger("healthCheckGrace", 5));
+        this.drainTimeoutMillis = SECONDS.toMillis(conf.getInteger("drainTimeout", 30));
+        this.stopAccepting = stopAccepting;
+        this.exit = exit;
+    }
+
+    public static synchronized GracefulShutdown setup(InFlightRequests inFlight, JsonObject conf) {
+        if (instance == null) {
+            instance = new GracefulShutdown(inFlight, conf);
+            String signal = conf.getString("signal", "TERM");
+            if (signal != null) {
+                try {
+                    Signal.handle(new Signal(signal), s -> instance.start("signal " + s.getName()));
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Cannot shut down gracefully on signal " + signal, e);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Registers the shutdown route if <tt>path</tt> is configured. It must be called after the authentication handlers
+     * have been registered, so that they protect it like the other routes. Unless <tt>allowRemote</tt> is set, only
+     * requests from the loopback address are accepted.
+     */
+    public void route(Router router, JsonObject conf) {
+        String path = conf.getString("path");
+        if (path == null) {
+            return;
+        }
+        boolean allowRemote = conf.getBoolean("allowRemote", false);
+        router.post(path).handler(ctx -> {
+            SocketAddress remote = ctx.request().remoteAddress();
+            if (!allowRemote && !isLoopback(remote)) {
+                logger.warn("Rejected shutdown request from " + remote);
+                ctx.response().setStatusCode(403).end();
+                return;
+            }
+            start("request from " + remote);
+            ctx.response().setStatusCode(202).end();
+        });
+    }
+
+    private static boolean isLoopback(SocketAddress address) {
+        if (address == null || address.host() == null) {
+            return false;
+        }
+        try {
+            // the host of a connection is a numeric address, so this does not resolve names
+            return InetAddress.getByName(address.host()).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the shutdown, or null if it has not been set up
+     */
+    public static GracefulShutdown instance() {
+        return instance;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public boolean isStarted() {
+        return started.get();
+    }
+
+    public InFlightRequests inFlight() {
+        return inFlight;
+    }
+
+    public long drainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    /**
+     * Starts the shutdown in a background thread. A second call exits immediately.
+     */
+    public void start(String reason) {
+        if (!started.compareAndSet(false, true)) {
+            logger.warn("Shutdown already in progress, exiting on " + reason);
+            exit.run();
+            return;
+        }
+        logger.info("Shutting down on " + reason + ", failing health check for " + healthCheckGraceMillis + " ms");
+        healthy = false;
+        Thread thread = new Thread(() -> {
+            try {
+                MILLISECONDS.sleep(healthCheckGraceMillis);
+                drain(inFlight, stopAccepting, drainTimeoutMillis);
+            } catch (InterruptedException e) {
+                // exit without waiting any longer
+            }
+            exit.run();
+        }, "graceful-shutdown");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops accepting connections, waits for the requests in flight to complete and exits.
+     */
+    static void drainAndExit(InFlightRequests inFlight, long timeoutMillis) throws InterruptedException {
+        drain(inFlight, GracefulShutdown::stopAccepting, timeoutMillis);
+        exit(0);
+    }
+
+    /**
+     * @return false if the requests were still in flight after the timeout
+     */
+    static boolean drain(InFlightRequests inFlight, Runnable stopAccepting, long timeoutMillis) throws InterruptedException {
+        stopAccepting.run();
+        CountDownLatch drained = new CountDownLatch(1);
+        inFlight.drain(drained::countDown);
+        logger.info("Draining " + inFlight.requests() + " requests in flight on " + inFlight.connections() + " connections");
+        if (drained.await(timeoutMillis, MILLISECONDS)) {
+            logger.info("Drained, exiting");
+            return true;
+        }
+        logger.warn("Drain timeout, exiting with " + inFlight.requests() + " requests in flight");
+        return false;
+    }
+
+    private static void stopAccepting() {
+        ServerSocketChannelWrapper serverChannel = InheritedChannelSelectorProvider.serverChannel();
+        if (serverChannel != null) {
+            serverChannel.stopAccepting();
+        }
+    }
+}
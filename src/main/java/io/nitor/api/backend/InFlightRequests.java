@@ -0,0 +1,170 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpConnection;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static io.vertx.core.http.HttpHeaders.CONNECTION;
+
+/**
+ * Tracks the requests in flight on the connections of the http server, so that the server can be drained
+ * before the process exits. A request is in flight until its response has ended or its connection has closed,
+ * so upgraded websockets count as requests until they are closed.
+ * <p>
+ * While draining, HTTP/1.x connections are closed as soon as they have no requests in flight and their responses
+ * carry <tt>connection: close</tt>, and HTTP/2 connections are sent a GOAWAY.
+ */
+public class InFlightRequests {
+    private final ConcurrentHashMap<HttpConnection, TrackedConnection> connections = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicReference<Runnable> drained = new AtomicReference<>();
+    private volatile boolean draining;
+
+    public void track(HttpServerRequest request) {
+        HttpConnection connection = request.connection();
+        TrackedConnection conn = connections.get(connection);
+        if (conn == null) {
+            conn = new TrackedConnection(connection, request.version() == HttpVersion.HTTP_2);
+            connections.put(connection, conn);
+            TrackedConnection closing = conn;
+            connection.closeHandler(v -> closed(closing));
+        }
+        conn.requests++;
+        requests.incrementAndGet();
+        TrackedConnection ending = conn;
+        request.response().endHandler(v -> ended(ending));
+        if (draining && !conn.http2) {
+            request.response().putHeader(CONNECTION, "close");
+        }
+    }
+
+    /**
+     * Route handler that sets <tt>connection: close</tt> on the HTTP/1.x responses whose headers are written while
+     * draining, also for the requests that were already in flight when draining started. Handlers such as the proxy
+     * replace the headers set when the request was tracked, so this has to be done when the headers end.
+     */
+    public void closeWhenDraining(RoutingContext ctx) {
+        if (ctx.request().version() != HttpVersion.HTTP_2) {
+            HttpServerResponse response = ctx.response();
+            ctx.addHeadersEndHandler(v -> {
+                if (draining) {
+                    response.headers().remove("keep-alive");
+                    response.headers().set(CONNECTION, "close");
+                }
+            });
+        }
+        ctx.next();
+    }
+
+    public int requests() {
+        return requests.get();
+    }
+
+    public int connections() {
+        return connections.size();
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Starts closing the connections as their requests complete.
+     *
+     * @param onDrained called once, when there are no more requests in flight
+     */
+    public void drain(Runnable onDrained) {
+        drained.set(onDrained);
+        draining = true;
+        for (TrackedConnection conn : connections.values()) {
+            conn.context.runOnContext(v -> conn.drain());
+        }
+        checkDrained();
+    }
+
+    private void ended(TrackedConnection conn) {
+        if (conn.closed) {
+            return;
+        }
+        conn.requests--;
+        requests.decrementAndGet();
+        if (draining) {
+            conn.drain();
+            checkDrained();
+        }
+    }
+
+    private void closed(TrackedConnection conn) {
+        connections.remove(conn.connection);
+        if (conn.closed) {
+            return;
+        }
+        conn.closed = true;
+        requests.addAndGet(-conn.requests);
+        conn.requests = 0;
+        checkDrained();
+    }
+
+    private void checkDrained() {
+        if (draining && requests.get() == 0) {
+            Runnable onDrained = drained.getAndSet(null);
+            if (onDrained != null) {
+                onDrained.run();
+            }
+        }
+    }
+
+    /**
+     * Accessed only on the context of the connection.
+     */
+    private static class TrackedConnection {
+        final HttpConnection connection;
+        final boolean http2;
+        final Context context = Vertx.currentContext();
+        int requests;
+        boolean closed;
+        boolean goingAway;
+
+        TrackedConnection(HttpConnection connection, boolean http2) {
+            this.connection = connection;
+            this.http2 = http2;
+        }
+
+        void drain() {
+            if (closed) {
+                return;
+            }
+            if (http2) {
+                if (!goingAway) {
+                    goingAway = true;
+                    connection.shutdown();
+                }
+            } else if (requests == 0) {
+                connection.close();
+            }
+        }
+    }
+}
@@ -15,11 +15,13 @@
  */
 package io.nitor.api.backend;
 
+import sun.misc.SharedSecrets;
 import sun.nio.ch.SelChImpl;
 import sun.nio.ch.SelectionKeyImpl;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.net.ProtocolFamily;
 import java.net.ServerSocket;
 import java.net.SocketAddress;
@@ -37,7 +39,8 @@ import static java.lang.System.err;
 
 public class InheritedChannelSelectorProvider extends SelectorProvider {
     private static final SelectorProvider orig;
-    private static final Channel inherited;
+    private static volatile Channel inherited;
+    private static volatile ServerSocketChannelWrapper serverChannel;
 
     static {
         orig = sun.nio.ch.DefaultSelectorProvider.create();
@@ -55,6 +58,30 @@ public class InheritedChannelSelectorProvider extends SelectorProvider {
         return inherited != null;
     }
 
+    /**
+     * Uses the listen socket received from another process as if it had been inherited.
+     */
+    static void inherit(int fd) throws IOException {
+        FileDescriptor fdObj = new FileDescriptor();
+        SharedSecrets.getJavaIOFileDescriptorAccess().set(fdObj, fd);
+        try {
+            Constructor<?> constructor = Class.forName("sun.nio.ch.ServerSocketChannelImpl")
+                    .getDeclaredConstructor(SelectorProvider.class, FileDescriptor.class, boolean.class);
+            constructor.setAccessible(true);
+            inherited = (Channel) constructor.newInstance(orig, fdObj, true);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Failed to create server socket channel of fd " + fd, e);
+        }
+        err.println("Got channel from previous process: " + inherited);
+    }
+
+    /**
+     * @return the latest listen socket opened through the wrapper, or null
+     */
+    static ServerSocketChannelWrapper serverChannel() {
+        return serverChannel;
+    }
+
     @Override
     public DatagramChannel openDatagramChannel() throws IOException {
         if (inherited != null && inherited instanceof DatagramChannel) {
@@ -81,11 +108,12 @@ public class InheritedChannelSelectorProvider extends SelectorProvider {
 
     @Override
     public ServerSocketChannel openServerSocketChannel() throws IOException {
+        NativeSocketTuning tuning = NativeSocketTuning.active();
         if (inherited != null && inherited instanceof ServerSocketChannel) {
             err.println("Returning inherited channel: " + inherited);
-            return new ServerSocketChannelWrapper((ServerSocketChannel) inherited, orig);
+            return serverChannel = new ServerSocketChannelWrapper((ServerSocketChannel) inherited, orig, true, tuning);
         }
-        return orig.openServerSocketChannel();
+        return serverChannel = new ServerSocketChannelWrapper(orig.openServerSocketChannel(), orig, false, tuning);
     }
 
     @Override
@@ -94,19 +122,38 @@ public class InheritedChannelSelectorProvider extends SelectorProvider {
             err.println("Returning inherited channel: " + inherited);
             return (SocketChannel) inherited;
         }
-        return orig.openSocketChannel();
+        SocketChannel channel = orig.openSocketChannel();
+        NativeSocketTuning tuning = NativeSocketTuning.active();
+        if (tuning != null) {
+            tuning.tuneSocket(((SelChImpl) channel).getFDVal());
+        }
+        return channel;
     }
 
     static class ServerSocketChannelWrapper extends ServerSocketChannel implements SelChImpl {
         private final ServerSocketChannel wrapped;
+        private final boolean inherited;
+        private final NativeSocketTuning tuning;
+        private volatile boolean accepting = true;
 
-        public ServerSocketChannelWrapper(ServerSocketChannel inherited, SelectorProvider provider) {
+        public ServerSocketChannelWrapper(ServerSocketChannel wrapped, SelectorProvider provider, boolean inherited, NativeSocketTuning tuning) {
             super(provider);
-            wrapped = inherited;
+            this.wrapped = wrapped;
+            this.inherited = inherited;
+            this.tuning = tuning;
+            if (inherited && tuning != null) {
+                tuning.tuneServerSocket(getFDVal(), true);
+            }
         }
 
         @Override
         public ServerSocketChannel bind(SocketAddress local, int backlog) throws IOException {
+            if (!inherited) {
+                if (tuning != null) {
+                    tuning.tuneServerSocket(getFDVal(), false);
+                }
+                wrapped.bind(local, backlog);
+            }
             return this;
         }
 
@@ -130,9 +177,25 @@ public class InheritedChannelSelectorProvider extends SelectorProvider {
             return wrapped.socket();
         }
 
+        /**
+         * Stops accepting connections while keeping the socket open, so that the connections queued on it are
+         * left for the other processes sharing it. The selection key stops polling for the socket the next time
+         * the selector reports it.
+         */
+        void stopAccepting() {
+            accepting = false;
+        }
+
         @Override
         public SocketChannel accept() throws IOException {
-            return wrapped.accept();
+            if (!accepting) {
+                return null;
+            }
+            SocketChannel channel = wrapped.accept();
+            if (channel != null && tuning != null) {
+                tuning.tuneSocket(((SelChImpl) channel).getFDVal());
+            }
+            return channel;
         }
 
         @Override
@@ -143,6 +206,9 @@ public class InheritedChannelSelectorProvider extends SelectorProvider {
         @Override
         protected void implCloseSelectableChannel() throws IOException {
            //wrapped.implCloseSelectableChannel();
+           if (!inherited && !isRegistered()) {
+               wrapped.close();
+           }
         }
 
         @Override
@@ -162,21 +228,33 @@ public class InheritedChannelSelectorProvider extends SelectorProvider {
 
         @Override
         public boolean translateAndUpdateReadyOps(int ops, SelectionKeyImpl sk) {
+            if (!accepting) {
+                ((SelChImpl) wrapped).translateAndSetInterestOps(0, sk);
+                return false;
+            }
             return ((SelChImpl) wrapped).translateAndUpdateReadyOps(ops, sk);
         }
 
         @Override
         public boolean translateAndSetReadyOps(int ops, SelectionKeyImpl sk) {
+            if (!accepting) {
+                ((SelChImpl) wrapped).translateAndSetInterestOps(0, sk);
+                return false;
+            }
             return ((SelChImpl) wrapped).translateAndSetReadyOps(ops, sk);
         }
 
         @Override
         public void translateAndSetInterestOps(int ops, SelectionKeyImpl sk) {
-            ((SelChImpl) wrapped).translateAndSetInterestOps(ops, sk);
+            ((SelChImpl) wrapped).translateAndSetInterestOps(accepting ? ops : 0, sk);
         }
 
         @Override
         public void kill() throws IOException {
+            if (!inherited) {
+                wrapped.close();
+                return;
+            }
             ((SelChImpl) wrapped).kill();
         }
     }
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.channel.unix.Socket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.getProperty;
+import static java.nio.file.Files.deleteIfExists;
+import static java.nio.file.Files.exists;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Hands the listen socket over to a new process without closing it. The running process listens on the unix domain
+ * socket given with the <tt>upgradeSocket</tt> system property. A new process started with the same property
+ * connects to it and receives the listen socket with <tt>SCM_RIGHTS</tt> instead of killing the process using the
+ * port. Both processes accept connections until the new one has started, after which the old one stops accepting,
+ * drains the requests in flight for at most the <tt>shutdown.drainTimeout</tt> of its configuration and exits.
+ * <p>
+ * If the new process exits before it has started, the old one takes the upgrade socket back into use.
+ */
+public class LiveUpgrade {
+    private static final Logger logger = LogManager.getLogger(LiveUpgrade.class);
+
+    private static final String socketPath = getProperty("upgradeSocket");
+    private static final long POLL_MILLIS = 100;
+    private static final long CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final byte READY = 1;
+
+    private static Socket predecessor;
+
+    public static boolean enabled() {
+        return socketPath != null;
+    }
+
+    /**
+     * Called before vert.x is started.
+     *
+     * @return true if the listen socket was received from a running process
+     */
+    static boolean takeOver() {
+        if (socketPath == null || !exists(Paths.get(socketPath))) {
+            return false;
+        }
+        if (!Epoll.isAvailable()) {
+            logger.warn("Native epoll library not available, live upgrade disabled", Epoll.unavailabilityCause());
+            return false;
+        }
+        Socket socket = Socket.newSocketDomain();
+        try {
+            long deadline = currentTimeMillis() + CONNECT_TIMEOUT_MILLIS;
+            if (!socket.connect(new DomainSocketAddress(socketPath))) {
+                while (!socket.finishConnect()) {
+                    pollUntil(deadline, "connect");
+                }
+            }
+            int fd;
+            while ((fd = socket.recvFd()) == 0) {
+                pollUntil(deadline, "receive listen socket");
+            }
+            if (fd < 0) {
+                throw new IOException("Running process closed the upgrade socket");
+            }
+            InheritedChannelSelectorProvider.inherit(fd);
+            predecessor = socket;
+            logger.info("Took over listen socket from the process running at " + socketPath);
+            return true;
+        } catch (IOException | InterruptedException e) {
+            logger.warn("Could not take over listen socket through " + socketPath + ": " + e);
+            close(socket);
+            return false;
+        }
+    }
+
+    /**
+     * Called once the http server is listening. Lets the previous process drain and starts waiting for the next one.
+     */
+    static void started(InFlightRequests inFlight, long drainTimeoutMillis) {
+        if (socketPath == null) {
+            return;
+        }
+        if (predecessor != null) {
+            try {
+                ByteBuffer ready = ByteBuffer.allocateDirect(1).put(READY);
+                predecessor.write(ready, 0, 1);
+            } catch (IOException e) {
+                logger.warn("Failed to notify previous process", e);
+            }
+            close(predecessor);
+            predecessor = null;
+        }
+        Thread thread = new Thread(() -> serve(inFlight, drainTimeoutMillis), "live-upgrade");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void serve(InFlightRequests inFlight, long drainTimeoutMillis) {
+        if (InheritedChannelSelectorProvider.serverChannel() == null) {
+            logger.error("Listen socket not opened through " + InheritedChannelSelectorProvider.class.getSimpleName() + ", live upgrade disabled");
+            return;
+        }
+        Path path = Paths.get(socketPath);
+        try {
+            while (true) {
+                Socket successor = accept(path);
+                int fd = InheritedChannelSelectorProvider.serverChannel().getFDVal();
+                while (successor.sendFd(fd) == 0) {
+                    MILLISECONDS.sleep(POLL_MILLIS);
+                }
+                logger.info("Handed listen socket over to new process, waiting for it to start");
+                if (awaitReady(successor)) {
+                    close(successor);
+                    logger.info("New process started");
+                    GracefulShutdown.drainAndExit(inFlight, drainTimeoutMillis);
+                    return;
+                }
+                close(successor);
+                logger.warn("New process exited before starting, continuing to serve");
+            }
+        } catch (IOException | InterruptedException e) {
+            logger.error("Live upgrade failed, upgrade socket " + socketPath + " closed", e);
+        }
+    }
+
+    /**
+     * Accepts one connection and closes the upgrade socket, so that the new process can bind it.
+     */
+    private static Socket accept(Path path) throws IOException, InterruptedException {
+        deleteIfExists(path);
+        Socket server = Socket.newSocketDomain();
+        try {
+            server.bind(new DomainSocketAddress(socketPath));
+            server.listen(1);
+            logger.info("Waiting for new process at " + socketPath);
+            byte[] address = new byte[26];
+            int fd;
+            while ((fd = server.accept(address)) < 0) {
+                MILLISECONDS.sleep(POLL_MILLIS);
+            }
+            return new Socket(fd);
+        } finally {
+            close(server);
+            deleteIfExists(path);
+        }
+    }
+
+    private static boolean awaitReady(Socket successor) throws InterruptedException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(1);
+        try {
+            int n;
+            while ((n = successor.read(buf, 0, 1)) == 0) {
+                MILLISECONDS.sleep(POLL_MILLIS);
+            }
+            return n > 0 && buf.get(0) == READY;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void pollUntil(long deadline, String what) throws IOException, InterruptedException {
+        if (currentTimeMillis() > deadline) {
+            throw new IOException("Timed out waiting to " + what);
+        }
+        MILLISECONDS.sleep(POLL_MILLIS);
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            logger.debug("Failed to close upgrade socket", e);
+        }
+    }
+}
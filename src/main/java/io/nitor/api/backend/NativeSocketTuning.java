@@ -0,0 +1,98 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.LinuxSocketOptions;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.channels.spi.SelectorProvider;
+
+/**
+ * Applies linux specific socket options to the sockets vert.x opens through the
+ * {@link InheritedChannelSelectorProvider}, using the JNI library of netty's native epoll transport.
+ * Falls back to plain NIO sockets if the native library is not available.
+ */
+public class NativeSocketTuning {
+    private static final Logger logger = LogManager.getLogger(NativeSocketTuning.class);
+
+    private static volatile NativeSocketTuning active;
+
+    private final boolean reusePort;
+    private final int tcpFastOpen;
+    private final int tcpDeferAccept;
+    private final boolean tcpQuickAck;
+
+    NativeSocketTuning(JsonObject conf) {
+        this.reusePort = conf.getBoolean("reusePort", false);
+        this.tcpFastOpen = conf.getInteger("tcpFastOpen", 0);
+        this.tcpDeferAccept = conf.getInteger("tcpDeferAccept", 0);
+        this.tcpQuickAck = conf.getBoolean("tcpQuickAck", false);
+    }
+
+    public static void setup(JsonObject conf) {
+        if (conf == null || active != null) {
+            return;
+        }
+        if (!(SelectorProvider.provider() instanceof InheritedChannelSelectorProvider)) {
+            logger.warn("Native socket options require " + InheritedChannelSelectorProvider.class.getSimpleName() + " to be installed, using plain NIO sockets");
+            return;
+        }
+        if (!Epoll.isAvailable()) {
+            logger.warn("Native epoll library not available, using plain NIO sockets", Epoll.unavailabilityCause());
+            return;
+        }
+        active = new NativeSocketTuning(conf);
+        logger.info("Native socket options enabled: " + conf.encode());
+    }
+
+    static NativeSocketTuning active() {
+        return active;
+    }
+
+    /**
+     * @param bound whether the socket is already listening, as is the case with sockets inherited from systemd
+     */
+    void tuneServerSocket(int fd, boolean bound) {
+        try {
+            if (reusePort && !bound) {
+                LinuxSocketOptions.setReusePort(fd, true);
+            }
+            if (tcpFastOpen > 0) {
+                LinuxSocketOptions.setTcpFastOpen(fd, tcpFastOpen);
+            }
+            if (tcpDeferAccept > 0) {
+                LinuxSocketOptions.setTcpDeferAccept(fd, tcpDeferAccept);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to set native options of server socket", e);
+        }
+    }
+
+    void tuneSocket(int fd) {
+        if (!tcpQuickAck) {
+            return;
+        }
+        try {
+            LinuxSocketOptions.setTcpQuickAck(fd, true);
+        } catch (IOException e) {
+            logger.warn("Failed to set native options of socket", e);
+        }
+    }
+}
@@ -19,15 +19,28 @@ import io.netty.handler.codec.http.HttpResponseStatus;
 import io.nitor.api.backend.auth.SetupAzureAdConnectAuth;
 import io.nitor.api.backend.auth.SetupOpenIdConnectAuth;
 import io.nitor.api.backend.auth.SimpleConfigAuthProvider;
+import io.nitor.api.backend.headers.ResponseHeaderPolicy;
 import io.nitor.api.backend.js.InlineJS;
+import io.nitor.api.backend.js.InlineJS.Hook;
+import io.nitor.api.backend.metrics.RequestCounters;
+import io.nitor.api.backend.metrics.SetupMetrics;
+import io.nitor.api.backend.proxy.FlightRecorder;
+import io.nitor.api.backend.proxy.PriorityClasses;
 import io.nitor.api.backend.proxy.Proxy.ProxyException;
 import io.nitor.api.backend.proxy.SetupProxy;
+import io.nitor.api.backend.routing.RoutingTable;
 import io.nitor.api.backend.s3.S3Handler;
 import io.nitor.api.backend.session.CookieSessionHandler;
+import io.nitor.api.backend.tls.ClientCertificate;
+import io.nitor.api.backend.tls.OcspStapling;
+import io.nitor.api.backend.tls.SessionResumption;
+import io.nitor.api.backend.tls.SniKeyCertOptions;
+import io.nitor.api.backend.tls.SniKeyManager;
 import io.nitor.api.backend.tls.SetupHttpServerOptions;
+import io.nitor.api.backend.tracing.Tracing;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.http.HttpServer;
 import io.vertx.core.http.HttpServerOptions;
-import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Route;
@@ -38,10 +51,10 @@ import io.vertx.ext.web.handler.StaticHandler;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import javax.net.ssl.SSLPeerUnverifiedException;
 import java.nio.file.Paths;
-import java.util.Arrays;
-import java.util.Map.Entry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 
 import static com.nitorcreations.core.utils.KillProcess.killProcessUsingPort;
@@ -60,7 +73,7 @@ public class NitorBackend extends AbstractVerticle
     public static void main(String... args) throws Exception {
         setupLogging();
         setProperty("java.nio.channels.spi.SelectorProvider", InheritedChannelSelectorProvider.class.getName());
-        if (!InheritedChannelSelectorProvider.hasInheritedChannel()) {
+        if (!InheritedChannelSelectorProvider.hasInheritedChannel() && !LiveUpgrade.takeOver()) {
             killProcessUsingPort(listenPort);
         }
         if (getProperty("java.version", "").startsWith("9")) {
@@ -85,38 +98,32 @@ public class NitorBackend extends AbstractVerticle
 
     @Override
     public void start() throws Exception {
+        StartupTimer startup = new StartupTimer();
         vertx.exceptionHandler(e -> {
            logger.error("Fallback exception handler got", e);
         });
 
+        NativeSocketTuning.setup(config().getJsonObject("nativeTransport"));
         HttpServerOptions httpServerOptions = SetupHttpServerOptions.createHttpServerOptions(config());
+        startup.phase("serverOptions");
 
         Router router = Router.router(vertx);
 
-        router.route().handler(new AccessLogHandler()::handle);
-        router.route().handler(routingContext -> {
-            HttpServerResponse resp = routingContext.response();
-            if (httpServerOptions.isSsl()) {
-                resp.putHeader("strict-transport-security", "max-age=31536000; includeSubDomains");
-            }
-            JsonObject defaultHeaders = config().getJsonObject("defaultHeaders");
-            for (Entry<String, Object> defaultHeader : defaultHeaders) {
-                if (!resp.headers().contains(defaultHeader.getKey())) {
-                    resp.putHeader(defaultHeader.getKey(), defaultHeader.getValue().toString());
-                }
-            }
-            routingContext.next();
-        });
+        router.route().handler(new AccessLogHandler(config().getJsonObject("accessLog", new JsonObject()))::handle);
+        JsonObject metricsConf = config().getJsonObject("metrics");
+        countRequests(router, metricsConf, null, "*");
+        ResponseHeaderPolicy headerPolicy = ResponseHeaderPolicy.create(config().getJsonObject("defaultHeaders"), httpServerOptions.isSsl());
+        headerPolicy.install(router);
+        InFlightRequests inFlight = new InFlightRequests();
+        JsonObject shutdownConf = config().getJsonObject("shutdown", new JsonObject());
+        GracefulShutdown shutdown = GracefulShutdown.setup(inFlight, shutdownConf);
+        router.route().handler(inFlight::closeWhenDraining);
         router.get("/healthCheck").handler(routingContext -> {
-           routingContext.response().setStatusCode(200).end();
+           routingContext.response().setStatusCode(shutdown.isHealthy() ? 200 : 503).end();
         });
         router.get("/certCheck").handler(routingContext -> {
-            String resp;
-            try {
-                resp = "Certs: " + Arrays.toString(routingContext.request().peerCertificateChain());
-            } catch (SSLPeerUnverifiedException e) {
-                resp = "No client certs available:" + e.getMessage();
-            }
+            ClientCertificate clientCert = ClientCertificate.of(routingContext);
+            String resp = clientCert == null ? "No client certs available" : "Certs: " + clientCert.chainSubjects;
             routingContext.response().setChunked(true).write(resp).end();
         });
 
@@ -124,13 +131,12 @@ public class NitorBackend extends AbstractVerticle
         if (clientAuth != null) {
             if (null != clientAuth.getString("clientChain")) {
                 router.route(clientAuth.getString("path", "/*")).handler(routingContext -> {
-                    try {
-                        routingContext.request().peerCertificateChain();
+                    if (ClientCertificate.of(routingContext) != null) {
                         routingContext.next();
-                    } catch (SSLPeerUnverifiedException e) {
+                    } else {
                         routingContext.response().setStatusCode(HttpResponseStatus.FORBIDDEN.code());
                         routingContext.response().end();
-                        logger.info("Rejected request that was missing valid client certificate from ip {}: {}", routingContext.request().remoteAddress(), e.getMessage());
+                        logger.info("Rejected request that was missing valid client certificate from ip {}", routingContext.request().remoteAddress());
                     }
                 });
             }
@@ -158,23 +164,68 @@ public class NitorBackend extends AbstractVerticle
             AuthHandler basicAuthHandler = BasicAuthHandler.create(new SimpleConfigAuthProvider(basicAuth.getJsonObject("users")), basicAuth.getString("realm", "nitor"));
             router.route(basicAuth.getString("path", "/*")).handler(basicAuthHandler);
         }
+        startup.phase("auth");
+
+        if (metricsConf != null) {
+            SetupMetrics.setupMetrics(vertx, router, metricsConf);
+        }
+        shutdown.route(router, shutdownConf);
+
+        JsonObject flightRecorderConf = config().getJsonObject("flightRecorder");
+        if (flightRecorderConf != null) {
+            FlightRecorder.setup(router, flightRecorderConf);
+        }
+
+        JsonObject priorityConf = config().getJsonObject("priorityClasses");
+        if (priorityConf != null) {
+            PriorityClasses.setup(priorityConf);
+        }
+
+        JsonObject tracingConf = config().getJsonObject("tracing");
+        if (tracingConf != null) {
+            Tracing.setup(vertx, tracingConf);
+        }
 
+        List<InlineJS> scripts = new ArrayList<>();
         JsonArray customizeConf = config().getJsonArray("customize");
         if (customizeConf != null) {
             customizeConf.forEach(c -> {
                 JsonObject conf = (JsonObject) c;
-                InlineJS inlineJs = new InlineJS(vertx, conf.getString("jsFile", "custom.js"));
-                router.route(conf.getString("path")).handler(ctx -> {
-                    inlineJs.call("handleRequest", ctx.request(), ctx);
-                    ctx.addHeadersEndHandler((v) -> inlineJs.call("handleResponse", ctx.response(), ctx));
+                InlineJS inlineJs = new InlineJS(vertx, conf);
+                scripts.add(inlineJs);
+                router.route(conf.getString("path")).handler(ctx -> inlineJs.callAsync(Hook.handleRequest, ctx, ar -> {
+                    if (ar.failed()) {
+                        if (ar.cause() instanceof TimeoutException) {
+                            ctx.fail(HttpResponseStatus.SERVICE_UNAVAILABLE.code());
+                        } else {
+                            ctx.fail(ar.cause());
+                        }
+                        return;
+                    }
+                    if (ctx.response().ended()) {
+                        return;
+                    }
+                    if (inlineJs.hasHook(Hook.handleResponse)) {
+                        ctx.addHeadersEndHandler((v) -> inlineJs.call(Hook.handleResponse, ctx.response(), ctx));
+                    }
                     ctx.next();
-                });
+                }));
             });
         }
 
+        startup.phase("handlers");
+
+        RoutingTable routingTable = new RoutingTable(vertx);
+
         JsonArray proxyConf = config().getJsonArray("proxy");
         if (proxyConf != null) {
-            proxyConf.forEach(conf -> SetupProxy.setupProxy(vertx, router, (JsonObject) conf, httpServerOptions));
+            proxyConf.forEach(c -> {
+                JsonObject conf = (JsonObject) c;
+                Router routes = routingTable.route(conf.getString("virtualHost"), conf.getString("route"));
+                countRequests(routes, metricsConf, conf.getString("virtualHost"), conf.getString("route"));
+                overrideHeaders(routes, headerPolicy, conf, conf.getString("route"));
+                SetupProxy.setupProxy(vertx, routes, conf, httpServerOptions);
+            });
         }
 
         JsonArray staticConf = config().getJsonArray("static");
@@ -182,7 +233,10 @@ public class NitorBackend extends AbstractVerticle
             staticConf.forEach(c -> {
                 JsonObject conf = (JsonObject) c;
                 int cacheTimeout = conf.getInteger("cacheTimeout", (int) MINUTES.toSeconds(30));
-                router.route(conf.getString("path")).handler(
+                Router routes = routingTable.route(conf.getString("virtualHost"), conf.getString("path"));
+                countRequests(routes, metricsConf, conf.getString("virtualHost"), conf.getString("path"));
+                overrideHeaders(routes, headerPolicy, conf, conf.getString("path"));
+                routes.route(conf.getString("path")).handler(
                         StaticHandler.create()
                                 .setFilesReadOnly(conf.getBoolean("readOnly", true))
                                 .setAllowRootFileSystemAccess(true)
@@ -200,10 +254,13 @@ public class NitorBackend extends AbstractVerticle
                 JsonArray operations = conf.getJsonArray("operations", new JsonArray().add("GET"));
                 Route path;
                 String pathPrefix = conf.getString("path");
+                Router routes = routingTable.route(conf.getString("virtualHost"), pathPrefix);
+                countRequests(routes, metricsConf, conf.getString("virtualHost"), pathPrefix);
+                overrideHeaders(routes, headerPolicy, conf, pathPrefix);
                 if (operations.contains("GET") && operations.size() == 1) {
-                    path = router.get(pathPrefix);
+                    path = routes.get(pathPrefix);
                 } else {
-                    path = router.route(pathPrefix);
+                    path = routes.route(pathPrefix);
                 }
                 if (pathPrefix.endsWith("*")) {
                     pathPrefix = pathPrefix.substring(0, pathPrefix.length() - 1);
@@ -215,6 +272,9 @@ public class NitorBackend extends AbstractVerticle
             });
         }
 
+        routingTable.mount(router);
+        startup.phase("routes");
+
         router.route().failureHandler(routingContext -> {
             String error = "ERROR";
             int statusCode = routingContext.statusCode();
@@ -240,8 +300,48 @@ public class NitorBackend extends AbstractVerticle
             routingContext.response().end(error);
         });
 
-        vertx.createHttpServer(httpServerOptions)
-                .requestHandler(router::accept)
-                .listen(listenPort);
+        HttpServer server = vertx.createHttpServer(httpServerOptions);
+        if (httpServerOptions.isSsl()) {
+            SniKeyManager keyManager = ((SniKeyCertOptions) httpServerOptions.getKeyCertOptions()).keyManager();
+            OcspStapling ocsp = OcspStapling.setup(vertx, keyManager, config().getJsonObject("tls"));
+            SniKeyCertOptions.configureEngines(vertx, server, httpServerOptions, ocsp);
+        }
+        startup.phase("server");
+        server.requestHandler(req -> {
+                    inFlight.track(req);
+                    router.accept(req);
+                })
+                .listen(listenPort, ar -> {
+                    if (ar.succeeded()) {
+                        startup.phase("listen");
+                        if (httpServerOptions.isSsl()) {
+                            SessionResumption.setup(vertx, server, config().getJsonObject("tls"));
+                        }
+                        // the script engines are per event loop thread, warm up the one of this verticle
+                        scripts.forEach(InlineJS::warmUp);
+                        startup.phase("scripts");
+                        startup.log(logger);
+                        LiveUpgrade.started(inFlight, shutdown.drainTimeoutMillis());
+                    } else {
+                        logger.error("Failed to listen on port " + listenPort, ar.cause());
+                    }
+                });
+    }
+
+    private static void overrideHeaders(Router router, ResponseHeaderPolicy defaults, JsonObject conf, String path) {
+        JsonObject headers = conf.getJsonObject("headers");
+        if (headers != null) {
+            defaults.override(headers).installFor(router, path);
+        }
+    }
+
+    private static void countRequests(Router router, JsonObject metricsConf, String virtualHost, String path) {
+        if (metricsConf != null) {
+            if ("*".equals(path)) {
+                router.route().handler(RequestCounters.forRoute(virtualHost, path)::handle);
+            } else {
+                router.route(path).handler(RequestCounters.forRoute(virtualHost, path)::handle);
+            }
+        }
     }
 }
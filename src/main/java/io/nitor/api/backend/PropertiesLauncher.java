@@ -15,8 +15,10 @@
  */
 package io.nitor.api.backend;
 
+import io.nitor.api.backend.metrics.BackendVertxMetrics;
 import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Launcher;
+import io.vertx.core.VertxOptions;
 import io.vertx.core.json.JsonObject;
 
 import java.io.InputStream;
@@ -44,6 +46,11 @@ public class PropertiesLauncher extends Launcher {
         new PropertiesLauncher().dispatch(args);
     }
 
+    @Override
+    public void beforeStartingVertx(VertxOptions options) {
+        options.setMetricsOptions(BackendVertxMetrics.metricsOptions());
+    }
+
     @Override
     public void beforeDeployingVerticle(DeploymentOptions deploymentOptions) {
         JsonObject conf = readDefaultsConf();
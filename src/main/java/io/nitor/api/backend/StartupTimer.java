@@ -0,0 +1,48 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import org.apache.logging.log4j.Logger;
+
+import static java.lang.System.nanoTime;
+import static java.lang.management.ManagementFactory.getRuntimeMXBean;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Durations of the startup phases of the server, logged once it is listening and warmed up. The first phase is the
+ * time from the start of the JVM to the deployment of the verticle.
+ */
+class StartupTimer {
+    private final StringBuilder report = new StringBuilder(256);
+    private long phaseStart = nanoTime();
+
+    StartupTimer() {
+        report.append("Startup phases: boot=").append(getRuntimeMXBean().getUptime()).append("ms");
+    }
+
+    /**
+     * Ends the phase that started at the previous call.
+     */
+    void phase(String name) {
+        long now = nanoTime();
+        report.append(' ').append(name).append('=').append(NANOSECONDS.toMillis(now - phaseStart)).append("ms");
+        phaseStart = now;
+    }
+
+    void log(Logger logger) {
+        logger.info(report.append(", ready ").append(getRuntimeMXBean().getUptime()).append("ms after JVM start"));
+    }
+}
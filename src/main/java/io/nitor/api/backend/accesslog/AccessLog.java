@@ -0,0 +1,120 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.accesslog;
+
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import io.nitor.api.backend.tls.ClientCertificate;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.lmax.disruptor.dsl.ProducerType.MULTI;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Access log pipeline: the event loops capture the fields of each completed request into preallocated ring buffer
+ * slots and a single writer thread formats and writes them to the access log file. Entries are dropped instead of
+ * blocking the event loops if the writer falls behind.
+ */
+public class AccessLog {
+    private static final Logger logger = LogManager.getLogger(AccessLog.class);
+
+    private static final LongAdder dropped = new LongAdder();
+    private static AccessLog instance;
+
+    private final Disruptor<AccessLogEvent> disruptor;
+    private final RingBuffer<AccessLogEvent> ringBuffer;
+
+    // handleEventsWith takes generic varargs
+    @SuppressWarnings("unchecked")
+    private AccessLog(JsonObject conf) {
+        String file = conf.getString("file", "access.log");
+        AccessLogFormat format = AccessLogFormat.create(conf.getString("format", "combined"));
+        disruptor = new Disruptor<>(AccessLogEvent::new, conf.getInteger("ringSize", 8192), r -> {
+            Thread t = new Thread(r, "access-log-writer");
+            t.setDaemon(true);
+            return t;
+        }, MULTI, new TimeoutBlockingWaitStrategy(100, MILLISECONDS));
+        disruptor.handleEventsWith(new AccessLogWriter(Paths.get(file), format, conf.getInteger("bufferSize", 64 * 1024),
+                conf.getLong("maxFileSize", 1000L * 1024 * 1024), conf.getInteger("maxFiles", 20), ZoneId.systemDefault()));
+        ringBuffer = disruptor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "access-log-shutdown"));
+        logger.info("Writing access log to " + file);
+    }
+
+    public static synchronized AccessLog start(JsonObject conf) {
+        if (instance == null) {
+            instance = new AccessLog(conf);
+        }
+        return instance;
+    }
+
+    /**
+     * @return the number of entries dropped because the ring buffer was full
+     */
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @param clientCert the client certificate of the request or null
+     */
+    public void log(HttpServerRequest request, ClientCertificate clientCert, long startTime, long endTime) {
+        long sequence;
+        try {
+            sequence = ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            dropped.increment();
+            return;
+        }
+        try {
+            HttpServerResponse response = request.response();
+            AccessLogEvent e = ringBuffer.get(sequence);
+            e.startTime = startTime;
+            e.endTime = endTime;
+            e.remoteHost = request.remoteAddress().host();
+            e.method = request.rawMethod();
+            e.uri = request.uri();
+            e.version = request.version();
+            e.status = response.getStatusCode();
+            e.statusMessage = response.getStatusMessage();
+            e.bytes = response.bytesWritten();
+            e.referer = request.getHeader("Referer");
+            e.userAgent = request.getHeader("User-Agent");
+            e.certs = clientCert == null ? null : clientCert.chainSubjects;
+        } finally {
+            ringBuffer.publish(sequence);
+        }
+    }
+
+    private void shutdown() {
+        try {
+            disruptor.shutdown(5, SECONDS);
+        } catch (Exception e) {
+            disruptor.halt();
+        }
+    }
+}
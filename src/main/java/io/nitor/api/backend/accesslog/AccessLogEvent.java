@@ -0,0 +1,50 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.accesslog;
+
+import io.vertx.core.http.HttpVersion;
+
+import java.util.List;
+
+/**
+ * Preallocated ring buffer slot for the fields of one access log entry. The fields are captured on the event loop
+ * and formatted by the access log writer thread.
+ */
+public class AccessLogEvent {
+    long startTime;
+    long endTime;
+    String remoteHost;
+    String method;
+    String uri;
+    HttpVersion version;
+    int status;
+    String statusMessage;
+    long bytes;
+    String referer;
+    String userAgent;
+    List<String> certs;
+
+    void clear() {
+        remoteHost = null;
+        method = null;
+        uri = null;
+        version = null;
+        statusMessage = null;
+        referer = null;
+        userAgent = null;
+        certs = null;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.accesslog;
+
+import io.vertx.core.http.HttpVersion;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+import static java.util.Locale.US;
+
+/**
+ * Formats access log entries on the access log writer thread. Instances are not thread safe.
+ */
+public abstract class AccessLogFormat {
+    private final DateTimeFormatter timeFormatter;
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedTime;
+
+    AccessLogFormat(DateTimeFormatter timeFormatter) {
+        this.timeFormatter = timeFormatter.withZone(ZoneId.systemDefault());
+    }
+
+    public static AccessLogFormat create(String name) {
+        switch (name) {
+            case "combined":
+                return new Combined();
+            case "json":
+                return new Json();
+            default:
+                throw new IllegalArgumentException("Unknown access log format " + name);
+        }
+    }
+
+    abstract void format(AccessLogEvent e, StringBuilder sb);
+
+    /**
+     * @return the start time of the entry formatted with second precision, reformatted only when the second changes
+     */
+    String time(long millis) {
+        long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = timeFormatter.format(Instant.ofEpochSecond(second));
+        }
+        return cachedTime;
+    }
+
+    static String version(HttpVersion version) {
+        switch (version) {
+            case HTTP_1_0:
+                return "HTTP/1.0";
+            case HTTP_2:
+                return "HTTP/2.0";
+            default:
+                return "HTTP/1.1";
+        }
+    }
+
+    /**
+     * Combined log format followed by the request duration in milliseconds and the client certificate chain subjects.
+     */
+    static class Combined extends AccessLogFormat {
+        Combined() {
+            super(DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", US));
+        }
+
+        @Override
+        void format(AccessLogEvent e, StringBuilder sb) {
+            sb.append(e.remoteHost).append(" - - [").append(time(e.startTime)).append("] \"")
+                    .append(e.method).append(' ');
+            quoted(e.uri, sb).append(' ').append(version(e.version)).append("\" ")
+                    .append(e.status).append(' ').append(e.bytes).append(" \"");
+            quoted(e.referer == null ? "-" : e.referer, sb).append("\" \"");
+            quoted(e.userAgent == null ? "-" : e.userAgent, sb).append("\" ")
+                    .append(e.endTime - e.startTime).append(" \"");
+            if (e.certs != null) {
+                for (int i = 0; i < e.certs.size(); ++i) {
+                    if (i > 0) {
+                        sb.append(" ::: ");
+                    }
+                    quoted(e.certs.get(i), sb);
+                }
+            }
+            sb.append("\"\n");
+        }
+
+        private static StringBuilder quoted(String s, StringBuilder sb) {
+            for (int i = 0; i < s.length(); ++i) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20 || c == 0x7f) {
+                    sb.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb;
+        }
+    }
+
+    static class Json extends AccessLogFormat {
+        Json() {
+            super(ISO_OFFSET_DATE_TIME);
+        }
+
+        @Override
+        void format(AccessLogEvent e, StringBuilder sb) {
+            sb.append("{\"time\":\"").append(time(e.startTime))
+                    .append("\",\"remote\":");
+            string(e.remoteHost, sb).append(",\"method\":");
+            string(e.method, sb).append(",\"uri\":");
+            string(e.uri, sb).append(",\"protocol\":\"").append(version(e.version))
+                    .append("\",\"status\":").append(e.status)
+                    .append(",\"statusMessage\":");
+            string(e.statusMessage, sb).append(",\"bytes\":").append(e.bytes)
+                    .append(",\"durationMs\":").append(e.endTime - e.startTime)
+                    .append(",\"referer\":");
+            string(e.referer, sb).append(",\"userAgent\":");
+            string(e.userAgent, sb);
+            if (e.certs != null && !e.certs.isEmpty()) {
+                sb.append(",\"clientCerts\":[");
+                for (int i = 0; i < e.certs.size(); ++i) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    string(e.certs.get(i), sb);
+                }
+                sb.append(']');
+            }
+            sb.append("}\n");
+        }
+
+        private static StringBuilder string(String s, StringBuilder sb) {
+            if (s == null) {
+                return sb.append("null");
+            }
+            sb.append('"');
+            for (int i = 0; i < s.length(); ++i) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.append('"');
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.accesslog;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.LifecycleAware;
+import com.lmax.disruptor.TimeoutHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Comparator.comparing;
+
+/**
+ * Formats the access log entries on the ring buffer consumer thread and writes them to the file in batches.
+ * <p>
+ * The file is rolled over to <tt>access-yyyy-MM-dd-N.log</tt> at midnight and when it grows over the maximum size,
+ * keeping at most the given number of rolled files. With rollover disabled the file is reopened once it has been
+ * moved away, so that it can be rotated externally.
+ */
+class AccessLogWriter implements EventHandler<AccessLogEvent>, TimeoutHandler, LifecycleAware {
+    private static final Logger logger = LogManager.getLogger(AccessLogWriter.class);
+
+    private static final long REOPEN_CHECK_INTERVAL = 1000;
+
+    private final Path file;
+    private final Path dir;
+    private final String baseName;
+    private final String extension;
+    private final Pattern rolledName;
+    private final AccessLogFormat format;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final ZoneId zone;
+    private final StringBuilder line = new StringBuilder(512);
+    private final ByteBuffer out;
+    private final CharsetEncoder encoder = UTF_8.newEncoder();
+    private FileChannel channel;
+    private long size;
+    private LocalDate period;
+    private long rolloverAt;
+    private long nextReopenCheck;
+
+    /**
+     * @param maxFileSize the size in bytes over which the file is rolled over, 0 for no limit
+     * @param maxFiles    the number of rolled files to keep, 0 to disable the rollover
+     */
+    AccessLogWriter(Path file, AccessLogFormat format, int bufferSize, long maxFileSize, int maxFiles, ZoneId zone) {
+        this.file = file.toAbsolutePath();
+        this.dir = this.file.getParent();
+        String name = this.file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        this.baseName = dot > 0 ? name.substring(0, dot) : name;
+        this.extension = dot > 0 ? name.substring(dot) : "";
+        this.rolledName = Pattern.compile(Pattern.quote(baseName) + "-(\\d{4}-\\d{2}-\\d{2})-(\\d+)" + Pattern.quote(extension));
+        this.format = format;
+        this.out = ByteBuffer.allocateDirect(bufferSize);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.zone = zone;
+    }
+
+    @Override
+    public void onStart() {
+        open();
+        long written = size > 0 ? lastModified() : currentTimeMillis();
+        startPeriod(written);
+    }
+
+    @Override
+    public void onEvent(AccessLogEvent event, long sequence, boolean endOfBatch) throws IOException {
+        if (maxFiles > 0 && event.endTime >= rolloverAt) {
+            flush();
+            rollover();
+            startPeriod(event.endTime);
+        }
+        line.setLength(0);
+        format.format(event, line);
+        event.clear();
+        CharBuffer chars = CharBuffer.wrap(line);
+        encoder.reset();
+        while (encoder.encode(chars, out, true).isOverflow()) {
+            flush();
+        }
+        if (endOfBatch) {
+            flush();
+            rolloverIfFull();
+        }
+    }
+
+    @Override
+    public void onTimeout(long sequence) throws IOException {
+        flush();
+        rolloverIfFull();
+        long now = currentTimeMillis();
+        if (maxFiles == 0 && now >= nextReopenCheck) {
+            nextReopenCheck = now + REOPEN_CHECK_INTERVAL;
+            if (!Files.exists(file)) {
+                close();
+                open();
+            }
+        }
+    }
+
+    @Override
+    public void onShutdown() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("Failed to write access log " + file, e);
+        }
+        close();
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        try {
+            while (channel != null && out.hasRemaining()) {
+                size += channel.write(out);
+            }
+        } finally {
+            out.clear();
+        }
+    }
+
+    private void open() {
+        try {
+            channel = FileChannel.open(file, CREATE, WRITE, APPEND);
+            size = channel.size();
+        } catch (IOException e) {
+            logger.error("Failed to open access log " + file, e);
+            channel = null;
+            size = 0;
+        }
+    }
+
+    private void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Failed to close access log " + file, e);
+        }
+        channel = null;
+    }
+
+    private long lastModified() {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return currentTimeMillis();
+        }
+    }
+
+    private void startPeriod(long time) {
+        period = Instant.ofEpochMilli(time).atZone(zone).toLocalDate();
+        rolloverAt = period.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    private void rolloverIfFull() {
+        if (maxFiles > 0 && maxFileSize > 0 && size >= maxFileSize) {
+            rollover();
+        }
+    }
+
+    /**
+     * Moves the file aside as the next rolled file of the current period and deletes the oldest rolled files.
+     */
+    private void rollover() {
+        close();
+        try {
+            List<Rolled> rolled = rolledFiles();
+            if (Files.size(file) > 0) {
+                String date = period.toString();
+                int index = 1 + rolled.stream().filter(r -> r.date.equals(date)).mapToInt(r -> r.index).max().orElse(0);
+                Path target = dir.resolve(baseName + '-' + date + '-' + index + extension);
+                Files.move(file, target);
+                rolled.add(new Rolled(target, date, index));
+            }
+            rolled.sort(comparing((Rolled r) -> r.date).thenComparingInt(r -> r.index));
+            for (int i = 0; i < rolled.size() - maxFiles; ++i) {
+                Files.deleteIfExists(rolled.get(i).path);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to roll over access log " + file, e);
+        }
+        open();
+    }
+
+    private List<Rolled> rolledFiles() throws IOException {
+        List<Rolled> rolled = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path f : files) {
+                Matcher m = rolledName.matcher(f.getFileName().toString());
+                if (m.matches()) {
+                    rolled.add(new Rolled(f, m.group(1), parseInt(m.group(2))));
+                }
+            }
+        }
+        return rolled;
+    }
+
+    private static class Rolled {
+        final Path path;
+        final String date;
+        final int index;
+
+        Rolled(Path path, String date, int index) {
+            this.path = path;
+            this.date = date;
+            this.index = index;
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package io.nitor.api.backend.auth;
 
+import io.nitor.api.backend.jfr.Jfr;
+import io.nitor.api.backend.jfr.OidcCallbackEvent;
 import io.nitor.api.backend.session.CookieSessionHandler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
@@ -114,6 +116,9 @@ public class SetupAzureAdConnectAuth {
     }
 
     private static void finalizeAuthentication(RoutingContext ctx, OidcConfiguration oidcConfiguration, JsonObject adAuth, Clients clients, HttpClient httpClient, CookieSessionHandler sessionHandler, HashMap<String, String> headerMappings) {
+        if (Jfr.AVAILABLE) {
+            OidcCallbackEvent.track(ctx);
+        }
         String code = ctx.request().getParam("code");
         Buffer form;
         try {
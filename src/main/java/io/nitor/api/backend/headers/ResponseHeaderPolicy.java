@@ -0,0 +1,158 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.headers;
+
+import io.netty.util.AsciiString;
+import io.vertx.core.MultiMap;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Headers added to every response unless the handler or the upstream already set them. The configuration is
+ * compiled once into pre-encoded {@link AsciiString}s that are applied in a single pass just before the response
+ * headers are written. Routes can override default values or, with a <tt>null</tt> value, remove headers.
+ */
+public final class ResponseHeaderPolicy {
+    static final String CONTEXT_KEY = "responseHeaderPolicy";
+
+    private static final String HSTS_NAME = "strict-transport-security";
+    private static final String HSTS_VALUE = "max-age=31536000; includeSubDomains";
+
+    /** lower-cased name to the header, in configuration order */
+    private final Map<String, Header> headers;
+    private final AsciiString[] names;
+    private final AsciiString[] values;
+    private final AsciiString[] removals;
+
+    private ResponseHeaderPolicy(Map<String, Header> headers) {
+        this.headers = headers;
+        List<AsciiString> names = new ArrayList<>();
+        List<AsciiString> values = new ArrayList<>();
+        List<AsciiString> removals = new ArrayList<>();
+        for (Header header : headers.values()) {
+            if (header.value == null) {
+                removals.add(header.name);
+            } else {
+                names.add(header.name);
+                values.add(header.value);
+            }
+        }
+        this.names = names.toArray(new AsciiString[0]);
+        this.values = values.toArray(new AsciiString[0]);
+        this.removals = removals.toArray(new AsciiString[0]);
+    }
+
+    /**
+     * @param defaultHeaders the <tt>defaultHeaders</tt> configuration, may be null
+     * @param hsts whether to add the <tt>strict-transport-security</tt> header
+     */
+    public static ResponseHeaderPolicy create(JsonObject defaultHeaders, boolean hsts) {
+        Map<String, Header> headers = new LinkedHashMap<>();
+        if (hsts) {
+            put(headers, HSTS_NAME, HSTS_VALUE);
+        }
+        merge(headers, defaultHeaders);
+        return new ResponseHeaderPolicy(headers);
+    }
+
+    /**
+     * @param overrides header values replacing the ones of this policy, <tt>null</tt> values remove the header
+     * @return this policy if there is nothing to override
+     */
+    public ResponseHeaderPolicy override(JsonObject overrides) {
+        if (overrides == null || overrides.isEmpty()) {
+            return this;
+        }
+        Map<String, Header> merged = new LinkedHashMap<>(headers);
+        merge(merged, overrides);
+        return new ResponseHeaderPolicy(merged);
+    }
+
+    private static void merge(Map<String, Header> headers, JsonObject conf) {
+        if (conf == null) {
+            return;
+        }
+        for (Entry<String, Object> e : conf) {
+            put(headers, e.getKey(), e.getValue() == null ? null : e.getValue().toString());
+        }
+    }
+
+    private static void put(Map<String, Header> headers, String name, String value) {
+        headers.put(name.toLowerCase(Locale.ROOT), new Header(encode(name), value == null ? null : encode(value)));
+    }
+
+    private static AsciiString encode(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            if (s.charAt(i) > 0x7f) {
+                throw new IllegalArgumentException("Response header contains non-ascii characters: " + s);
+            }
+        }
+        return new AsciiString(s);
+    }
+
+    /**
+     * Adds the headers of this policy to all responses of the router. Must be installed before the routes
+     * that {@link #installFor(Router, String) override} it.
+     */
+    public void install(Router router) {
+        router.route().handler(ctx -> {
+            ctx.addHeadersEndHandler(v -> {
+                ResponseHeaderPolicy policy = ctx.get(CONTEXT_KEY);
+                (policy == null ? this : policy).apply(ctx.response().headers());
+            });
+            ctx.next();
+        });
+    }
+
+    /**
+     * Makes this policy replace the one installed for the whole server on requests matching the path.
+     */
+    public void installFor(Router router, String path) {
+        router.route(path).handler(ctx -> {
+            ctx.put(CONTEXT_KEY, this);
+            ctx.next();
+        });
+    }
+
+    void apply(MultiMap responseHeaders) {
+        for (AsciiString name : removals) {
+            responseHeaders.remove(name);
+        }
+        for (int i = 0; i < names.length; ++i) {
+            if (!responseHeaders.contains(names[i])) {
+                responseHeaders.set(names[i], values[i]);
+            }
+        }
+    }
+
+    private static final class Header {
+        final AsciiString name;
+        final AsciiString value;
+
+        Header(AsciiString name, AsciiString value) {
+            this.name = name;
+            this.value = value;
+        }
+    }
+}
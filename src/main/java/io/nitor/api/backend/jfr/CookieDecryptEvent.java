@@ -0,0 +1,55 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("io.nitor.backend.CookieDecrypt")
+@Label("Session Cookie Decrypt")
+@Description("Decryption of a session cookie that was not found in the cookie cache")
+@Category({Jfr.CATEGORY, "Session"})
+@Threshold("1 ms")
+@StackTrace(false)
+public class CookieDecryptEvent extends Event {
+    @Label("Cookie Length")
+    @DataAmount
+    int length;
+
+    @Label("Valid")
+    boolean valid;
+
+    public static CookieDecryptEvent start() {
+        CookieDecryptEvent event = new CookieDecryptEvent();
+        event.begin();
+        return event;
+    }
+
+    public void finish(int length, boolean valid) {
+        end();
+        if (shouldCommit()) {
+            this.length = length;
+            this.valid = valid;
+            commit();
+        }
+    }
+}
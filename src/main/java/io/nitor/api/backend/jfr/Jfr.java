@@ -0,0 +1,38 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.jfr;
+
+/**
+ * Java Flight Recorder events of the backend. The events use the {@code jdk.jfr} api of JDK 8u262 and later,
+ * so callers check {@link #AVAILABLE} before touching the event classes to keep older JVMs from loading them.
+ */
+public final class Jfr {
+    public static final boolean AVAILABLE = isAvailable();
+
+    static final String CATEGORY = "Nitor Backend";
+
+    private Jfr() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, Jfr.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.jfr;
+
+import io.nitor.api.backend.proxy.DevNullProxyTracer;
+import io.nitor.api.backend.proxy.Proxy;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * Emits a {@link ProxyRequestEvent} and an {@link UpstreamTtfbEvent} for each proxied request while a flight
+ * recording with the events enabled is running.
+ */
+public class JfrProxyTracer extends DevNullProxyTracer {
+    private RoutingContext ctx;
+    private String reqId;
+    private String upstream;
+    private ProxyRequestEvent request;
+    private UpstreamTtfbEvent ttfb;
+
+    @Override
+    public void incomingRequestStart(RoutingContext ctx, boolean isTls, boolean isHTTP2, String chost, String reqId) {
+        ProxyRequestEvent event = new ProxyRequestEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.begin();
+        this.ctx = ctx;
+        this.reqId = reqId;
+        request = event;
+    }
+
+    @Override
+    public void nextHopResolved(Proxy.Target nextHop) {
+        if (request != null || new UpstreamTtfbEvent().isEnabled()) {
+            upstream = nextHop.socketHost + ':' + nextHop.socketPort;
+        }
+    }
+
+    @Override
+    public void outgoingRequestInitial(HttpClientRequest creq) {
+        UpstreamTtfbEvent event = new UpstreamTtfbEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.begin();
+        ttfb = event;
+    }
+
+    @Override
+    public void incomingResponseStart(HttpClientResponse cres) {
+        UpstreamTtfbEvent event = ttfb;
+        if (event == null) {
+            return;
+        }
+        ttfb = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.reqId = reqId;
+            event.upstream = upstream;
+            event.status = cres.statusCode();
+            event.commit();
+        }
+    }
+
+    @Override
+    public void incomingConnectionPrematurelyClosed() {
+        finish(true);
+    }
+
+    @Override
+    public void outgoingRequestException(Throwable t) {
+        finish(true);
+    }
+
+    @Override
+    public void incomingResponseException(Throwable t) {
+        finish(true);
+    }
+
+    @Override
+    public void outgoingResponseBodyEnd(Void v) {
+        finish(false);
+    }
+
+    @Override
+    public void outgoingResponseException(Throwable throwable) {
+        finish(true);
+    }
+
+    @Override
+    public void websocketEstablished() {
+        finish(false);
+    }
+
+    @Override
+    public void outgoingWebsocketException(Throwable t) {
+        finish(true);
+    }
+
+    private void finish(boolean failed) {
+        ProxyRequestEvent event = request;
+        if (event == null) {
+            return;
+        }
+        request = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.reqId = reqId;
+            event.method = ctx.request().rawMethod();
+            event.uri = ctx.request().uri();
+            event.upstream = upstream;
+            event.status = ctx.response().getStatusCode();
+            event.failed = failed;
+            event.commit();
+        }
+    }
+}
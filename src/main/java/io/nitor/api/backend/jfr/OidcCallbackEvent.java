@@ -0,0 +1,54 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.jfr;
+
+import io.vertx.ext.web.RoutingContext;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("io.nitor.backend.OidcCallback")
+@Label("OpenID Connect Callback")
+@Description("Handling of the OpenID Connect callback, including the token and user information requests")
+@Category({Jfr.CATEGORY, "Authentication"})
+@Threshold("0 ms")
+@StackTrace(false)
+public class OidcCallbackEvent extends Event {
+    @Label("Status")
+    int status;
+
+    /**
+     * Records the event when the response of the callback request ends.
+     */
+    public static void track(RoutingContext ctx) {
+        OidcCallbackEvent event = new OidcCallbackEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.begin();
+        ctx.addBodyEndHandler(v -> {
+            event.end();
+            if (event.shouldCommit()) {
+                event.status = ctx.response().getStatusCode();
+                event.commit();
+            }
+        });
+    }
+}
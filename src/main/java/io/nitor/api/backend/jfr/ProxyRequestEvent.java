@@ -0,0 +1,50 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("io.nitor.backend.ProxyRequest")
+@Label("Proxy Request")
+@Description("Proxied request from the start of the incoming request to the end of the outgoing response")
+@Category({Jfr.CATEGORY, "Proxy"})
+@Threshold("10 ms")
+@StackTrace(false)
+public class ProxyRequestEvent extends Event {
+    @Label("Request Id")
+    String reqId;
+
+    @Label("Method")
+    String method;
+
+    @Label("URI")
+    String uri;
+
+    @Label("Upstream")
+    String upstream;
+
+    @Label("Status")
+    int status;
+
+    @Label("Failed")
+    boolean failed;
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("io.nitor.backend.S3Signing")
+@Label("S3 Request Signing")
+@Description("AWS signature version 4 signing of an S3 request")
+@Category({Jfr.CATEGORY, "S3"})
+@Threshold("1 ms")
+@StackTrace(false)
+public class S3SigningEvent extends Event {
+    @Label("Method")
+    String method;
+
+    @Label("Path")
+    String path;
+
+    @Label("Signed Payload")
+    boolean signedPayload;
+
+    public static S3SigningEvent start() {
+        S3SigningEvent event = new S3SigningEvent();
+        event.begin();
+        return event;
+    }
+
+    public void finish(String method, String path, boolean signedPayload) {
+        end();
+        if (shouldCommit()) {
+            this.method = method;
+            this.path = path;
+            this.signedPayload = signedPayload;
+            commit();
+        }
+    }
+}
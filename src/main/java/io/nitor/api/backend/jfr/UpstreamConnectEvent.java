@@ -0,0 +1,61 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+@Name("io.nitor.backend.UpstreamConnect")
+@Label("Upstream Connect")
+@Description("New http client connection, including the TLS handshake")
+@Category({Jfr.CATEGORY, "Proxy"})
+@Threshold("0 ms")
+@StackTrace(false)
+public class UpstreamConnectEvent extends Event {
+    @Label("Host")
+    String host;
+
+    @Label("Port")
+    int port;
+
+    @Label("TLS")
+    boolean tls;
+
+    @Label("Success")
+    boolean success;
+
+    public static UpstreamConnectEvent start(String host, int port, boolean tls) {
+        UpstreamConnectEvent event = new UpstreamConnectEvent();
+        event.host = host;
+        event.port = port;
+        event.tls = tls;
+        event.begin();
+        return event;
+    }
+
+    public void finish(boolean success) {
+        end();
+        if (shouldCommit()) {
+            this.success = success;
+            commit();
+        }
+    }
+}
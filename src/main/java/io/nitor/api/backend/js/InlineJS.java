@@ -15,70 +15,422 @@
  */
 package io.nitor.api.backend.js;
 
+import io.nitor.api.backend.metrics.LatencyHistogram;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import jdk.nashorn.api.scripting.NashornScriptEngineFactory;
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import javax.script.ScriptEngine;
-import javax.script.ScriptEngineManager;
 import javax.script.ScriptException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
+import static io.vertx.core.Future.failedFuture;
+import static io.vertx.core.Future.succeededFuture;
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class InlineJS {
   private static final Logger logger = LogManager.getLogger(InlineJS.class);
 
   private static final String JVM_NPM = "vertx-js/util/jvm-npm.js";
+  /** loads the source of a version as a module like require.noCache does for files in strict mode */
+  private static final String LOAD_SOURCE =
+          "(function(Module, body, file) {" +
+                  "var module = new Module(file, null, false);" +
+                  "var func = eval('(function(exports, module, require, __filename, __dirname){\"use strict\";' + body + '\\n})\\n//# sourceURL=' + file);" +
+                  "func(module.exports, module, module.require, module.filename, new java.io.File(file).getParent());" +
+                  "return module.exports;" +
+          "})(__Module, __source, __file);";
+  // looking the engine up through ScriptEngineManager scans the whole class path for engine factories
+  private static final NashornScriptEngineFactory NASHORN = new NashornScriptEngineFactory();
+
+  private static final ConcurrentHashMap<String, HookStats> stats = new ConcurrentHashMap<>();
+
+  /**
+   * The functions exported by the scripts that are called for the requests.
+   */
+  public enum Hook {
+    handleRequest,
+    handleResponse,
+  }
+
+  static final Hook[] HOOKS = Hook.values();
 
   private final Vertx vertx;
   private final String scriptName;
+  private final long budgetNanos;
+  private final long timeoutMillis;
+  /** runs the asynchronous hooks, null to run them on the event loop */
+  private final WorkerExecutor executor;
+  private final HookStats hookStats;
+  private final Path scriptFile;
+  /** the version calls start on, replaced when the script file changes */
+  private volatile Version version;
+  /** modification time of the script that failed to reload, not retried until modified again */
+  private long failedModified = -1;
+
+  /** the engines are not thread safe, each event loop and worker thread loads the script into its own engine */
+  private final ThreadLocal<ThreadState> threadState = new ThreadLocal<>();
 
-  private static final ThreadLocal<ThreadState> threadState = new ThreadLocal<>();
+  /**
+   * A revision of the script. The threads switch to the engines of the new version on their next call, the
+   * calls in progress complete on the engines of the version they started on.
+   */
+  static final class Version {
+    final int number;
+    final long lastModified;
+    /** the script loaded into the engines of this version, null if the script is not a file */
+    final String source;
+    /** engines loaded in the background, taken by the threads switching to this version */
+    final Queue<ThreadState> prepared = new ConcurrentLinkedQueue<>();
+    /** the number of threads that have an engine of this version */
+    final AtomicInteger threads = new AtomicInteger();
+
+    Version(int number, long lastModified, String source) {
+      this.number = number;
+      this.lastModified = lastModified;
+      this.source = source;
+    }
+  }
 
   static class ThreadState {
+    private Version version;
     private ScriptEngine engine;
     private ScriptObjectMirror exports;
+    /** the exported hook functions by {@link Hook#ordinal()}, null for hooks the script does not export */
+    private ScriptObjectMirror[] hooks;
+    /** the number of declared parameters of the hook functions */
+    private int[] arities;
   }
 
-  public InlineJS(Vertx vertx, String scriptName) {
+  public InlineJS(Vertx vertx, JsonObject conf) {
     this.vertx = vertx;
-    this.scriptName = scriptName;
+    this.scriptName = conf.getString("jsFile", "custom.js");
+    this.budgetNanos = MILLISECONDS.toNanos(conf.getLong("timeBudget", 5L));
+    this.timeoutMillis = conf.getLong("hookTimeout", 10_000L);
+    int workers = conf.getInteger("workerPoolSize", 0);
+    this.executor = workers > 0 ? vertx.createSharedWorkerExecutor("inline-js-" + scriptName, workers) : null;
+    this.hookStats = stats.computeIfAbsent(scriptName, k -> new HookStats());
+    this.scriptFile = Paths.get(scriptName);
+    this.version = readVersion(1);
+    long reloadMillis = SECONDS.toMillis(conf.getInteger("reloadInterval", 10));
+    if (reloadMillis > 0) {
+      vertx.setPeriodic(reloadMillis, id -> vertx.executeBlocking(fut -> {
+        reloadIfChanged();
+        fut.complete();
+      }, true, null));
+    }
+  }
+
+  public static Map<String, HookStats> stats() {
+    return unmodifiableMap(stats);
+  }
+
+  /**
+   * Loads the script on the calling thread ahead of the first call.
+   */
+  public void warmUp() {
+    getThreadState();
+  }
+
+  /**
+   * @return whether the script exports the hook, false if the script could not be loaded
+   */
+  public boolean hasHook(Hook hook) {
+    ThreadState state = getThreadState();
+    return state != null && state.hooks[hook.ordinal()] != null;
+  }
+
+  /**
+   * Calls the hook synchronously on the calling thread.
+   */
+  public void call(Hook hook, Object... args) {
+    ThreadState state = getThreadState();
+    if (state == null) {
+      return;
+    }
+    ScriptObjectMirror function = state.hooks[hook.ordinal()];
+    if (function != null) {
+      invoke(state, hook, function, args);
+    }
   }
 
-  public void call(String function, Object... args) {
+  /**
+   * Calls the hook with the request, the routing context and a continuation function. The hook completes
+   * asynchronously if it returns a thenable or a {@link CompletionStage}, or if it declares the continuation
+   * parameter, in which case it completes once it calls the continuation, with an error to fail. Otherwise the
+   * hook completes when it returns. With a worker pool the hook runs on a worker thread.
+   * <p>
+   * The request is paused while the hook is pending. The handler is called on the context of the request,
+   * failed with a {@link TimeoutException} if the hook does not complete in time.
+   */
+  public void callAsync(Hook hook, RoutingContext ctx, Handler<AsyncResult<Void>> done) {
+    AsyncCall call = new AsyncCall(hook, ctx, done);
+    if (executor == null) {
+      if (call.run()) {
+        call.suspend();
+      } else {
+        done.handle(succeededFuture());
+      }
+    } else {
+      call.suspend();
+      executor.<Void>executeBlocking(f -> {
+        if (!call.run()) {
+          call.complete(null);
+        }
+        f.complete();
+      }, false, null);
+    }
+  }
+
+  private Object invoke(ThreadState state, Hook hook, ScriptObjectMirror function, Object... args) {
+    long start = nanoTime();
     try {
-      ThreadState state = getThreadState();
-      if (functionExists(state, function)) {
-        state.exports.callMember(function, args);
+      return function.call(state.exports, args);
+    } finally {
+      long nanos = nanoTime() - start;
+      hookStats.latencies[hook.ordinal()].record(nanos);
+      if (nanos > budgetNanos && Context.isOnEventLoopThread()) {
+        hookStats.overBudget.increment();
+        logger.warn("Script " + scriptName + "#" + hook + " took " + NANOSECONDS.toMillis(nanos) + "ms, over the budget of "
+                + NANOSECONDS.toMillis(budgetNanos) + "ms");
+      }
+    }
+  }
+
+  private static boolean isThenable(Object result) {
+    if (!(result instanceof ScriptObjectMirror)) {
+      return false;
+    }
+    Object then = ((ScriptObjectMirror) result).getMember("then");
+    return then instanceof ScriptObjectMirror && ((ScriptObjectMirror) then).isFunction();
+  }
+
+  /**
+   * Continuation and thenable callbacks passed to the scripts. Nashorn links the calls to the overloads of
+   * {@link #accept} by the argument count, which fails for lambdas called without arguments.
+   */
+  public static final class Callback implements Consumer<Object> {
+    private final AsyncCall call;
+    private final boolean resolve;
+    private final boolean reject;
+
+    Callback(AsyncCall call, boolean resolve, boolean reject) {
+      this.call = call;
+      this.resolve = resolve;
+      this.reject = reject;
+    }
+
+    public void accept() {
+      accept(null);
+    }
+
+    /**
+     * @param value the error to fail with, ignored when resolving a thenable
+     */
+    @Override
+    public void accept(Object value) {
+      if (resolve) {
+        call.complete(null);
+      } else {
+        call.complete(value == null && reject ? "rejected" : value);
+      }
+    }
+  }
+
+  private final class AsyncCall {
+    private final Hook hook;
+    private final RoutingContext ctx;
+    private final Handler<AsyncResult<Void>> done;
+    private final Context context;
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private volatile Throwable failure;
+    // accessed only on the context of the request
+    private boolean suspended;
+    private long timer = -1;
+
+    AsyncCall(Hook hook, RoutingContext ctx, Handler<AsyncResult<Void>> done) {
+      this.hook = hook;
+      this.ctx = ctx;
+      this.done = done;
+      this.context = vertx.getOrCreateContext();
+    }
+
+    /**
+     * Calls the hook on the calling thread.
+     *
+     * @return true if the hook completes later through {@link #complete(Object)}
+     */
+    boolean run() {
+      try {
+        ThreadState state = getThreadState();
+        ScriptObjectMirror function = state == null ? null : state.hooks[hook.ordinal()];
+        if (function == null) {
+          return false;
+        }
+        Object result = invoke(state, hook, function, ctx.request(), ctx, new Callback(this, false, false));
+        if (result instanceof CompletionStage) {
+          ((CompletionStage<?>) result).whenComplete((v, e) -> complete(e));
+          return true;
+        }
+        if (isThenable(result)) {
+          ((ScriptObjectMirror) result).callMember("then", new Callback(this, true, false), new Callback(this, false, true));
+          return true;
+        }
+        return state.arities[hook.ordinal()] > 2;
+      } catch (RuntimeException e) {
+        complete(e);
+        return true;
+      }
+    }
+
+    /**
+     * Pauses the request until the hook completes, called on the context of the request.
+     */
+    void suspend() {
+      ctx.request().pause();
+      suspended = true;
+      timer = vertx.setTimer(timeoutMillis, id -> {
+        timer = -1;
+        if (completed.compareAndSet(false, true)) {
+          logger.warn("Script " + scriptName + "#" + hook + " did not complete in " + timeoutMillis + "ms");
+          failure = new TimeoutException("Script " + scriptName + "#" + hook + " timed out");
+          resume();
+        }
+      });
+    }
+
+    /**
+     * @param error null if the hook succeeded, may be called from any thread
+     */
+    void complete(Object error) {
+      if (!completed.compareAndSet(false, true)) {
+        return;
+      }
+      if (error != null) {
+        failure = error instanceof Throwable ? (Throwable) error : new RuntimeException("Script " + scriptName + "#" + hook + " failed: " + error);
+      }
+      context.runOnContext(v -> resume());
+    }
+
+    private void resume() {
+      if (timer != -1) {
+        vertx.cancelTimer(timer);
+        timer = -1;
+      }
+      if (suspended) {
+        ctx.request().resume();
       }
-    } catch (ScriptException e) {
-      logger.warn("Script " + scriptName + "#" + function + " execution failed", e);
+      done.handle(failure == null ? succeededFuture() : failedFuture(failure));
     }
   }
 
-  private ThreadState getThreadState() throws ScriptException {
+  /**
+   * @return the state of the calling thread for the current version, null if the script could not be loaded, the
+   * loading is retried on the next call
+   */
+  private ThreadState getThreadState() {
+    Version current = version;
     ThreadState state = threadState.get();
-    if (state == null) {
-      state = init();
-      threadState.set(state);
+    if (state == null || state.version != current) {
+      ThreadState loaded = current.prepared.poll();
+      if (loaded == null) {
+        try {
+          loaded = init(current);
+        } catch (ScriptException | RuntimeException e) {
+          logger.warn("Script " + scriptName + " loading failed", e);
+          return state;
+        }
+      }
+      current.threads.incrementAndGet();
+      threadState.set(loaded);
+      state = loaded;
     }
     return state;
   }
 
-  private boolean functionExists(ThreadState state, String functionName) {
-    Object som = state.exports.getMember(functionName);
-    return som != null && !som.toString().equals("undefined");
+  /**
+   * Loads a changed script into new engines, one for each thread using the current version, and switches the new
+   * calls to them. Keeps the current version if the script fails to load. Blocks while loading.
+   */
+  void reloadIfChanged() {
+    Version old = version;
+    long lastModified = lastModified();
+    if (lastModified == -1 || lastModified == old.lastModified || lastModified == failedModified) {
+      return;
+    }
+    Version next = readVersion(old.number + 1);
+    if (next.source == null) {
+      return;
+    }
+    try {
+      for (int i = max(1, old.threads.get()); i > 0; --i) {
+        next.prepared.add(init(next));
+      }
+    } catch (ScriptException | RuntimeException e) {
+      failedModified = next.lastModified;
+      logger.error("Failed to reload script " + scriptName + ", keeping version " + old.number, e);
+      return;
+    }
+    version = next;
+    logger.info("Reloaded script " + scriptName + " as version " + next.number);
+  }
+
+  private Version readVersion(int number) {
+    try {
+      long lastModified = Files.getLastModifiedTime(scriptFile).toMillis();
+      return new Version(number, lastModified, new String(Files.readAllBytes(scriptFile), UTF_8));
+    } catch (IOException | RuntimeException e) {
+      // not a file, for example a module resolved from the class path, loaded with require without reloading
+      return new Version(number, -1, null);
+    }
+  }
+
+  private long lastModified() {
+    try {
+      return Files.getLastModifiedTime(scriptFile).toMillis();
+    } catch (IOException | RuntimeException e) {
+      // not a file, for example a module resolved from the class path
+      return -1;
+    }
   }
 
-  private ThreadState init() throws ScriptException {
+  private ThreadState init(Version version) throws ScriptException {
     ThreadState state = new ThreadState();
-    state.engine = new ScriptEngineManager().getEngineByName("nashorn");
+    state.version = version;
+    state.engine = NASHORN.getScriptEngine();
 
     InputStream npmResource = getClass().getClassLoader().getResourceAsStream(JVM_NPM);
     state.engine.eval(new InputStreamReader(npmResource, UTF_8));
+    state.engine.put("__Module", state.engine.eval("module.exports"));
 
     state.engine.eval("require('vertx-js/future');");
     state.engine.put("__jvertx", vertx);
@@ -94,8 +446,49 @@ public class InlineJS {
                     "var process = {}; process.env=java.lang.System.getenv();";
     state.engine.eval(globs);
 
-    state.exports = (ScriptObjectMirror) state.engine.eval("require.noCache('" + scriptName + "', null, true);");
-    logger.info("Loaded script " + scriptName + ". Exports: " + state.exports.keySet());
+    if (version.source == null) {
+      state.exports = (ScriptObjectMirror) state.engine.eval("require.noCache('" + scriptName + "', null, true);");
+    } else {
+      // the file may have changed since the version was read, so the source of the version is loaded instead
+      state.engine.put("__source", version.source);
+      state.engine.put("__file", scriptFile.toAbsolutePath().toString());
+      state.exports = (ScriptObjectMirror) state.engine.eval(LOAD_SOURCE);
+    }
+    state.hooks = new ScriptObjectMirror[HOOKS.length];
+    state.arities = new int[HOOKS.length];
+    for (Hook hook : HOOKS) {
+      Object function = state.exports.getMember(hook.name());
+      if (function instanceof ScriptObjectMirror && ((ScriptObjectMirror) function).isFunction()) {
+        state.hooks[hook.ordinal()] = (ScriptObjectMirror) function;
+        state.arities[hook.ordinal()] = ((Number) ((ScriptObjectMirror) function).getMember("length")).intValue();
+      }
+    }
+    logger.info("Loaded script " + scriptName + " version " + version.number + ". Exports: " + state.exports.keySet());
     return state;
   }
+
+  /**
+   * Execution times of the hooks of a script, summed over all the routes using the script.
+   */
+  public static class HookStats {
+    private final LatencyHistogram[] latencies = new LatencyHistogram[HOOKS.length];
+    private final LongAdder overBudget = new LongAdder();
+
+    HookStats() {
+      for (int i = 0; i < latencies.length; ++i) {
+        latencies[i] = new LatencyHistogram();
+      }
+    }
+
+    public LatencyHistogram latency(Hook hook) {
+      return latencies[hook.ordinal()];
+    }
+
+    /**
+     * @return the number of calls that exceeded the time budget
+     */
+    public long overBudget() {
+      return overBudget.sum();
+    }
+  }
 }
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.metrics;
+
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.metrics.MetricsOptions;
+import io.vertx.core.metrics.impl.DummyVertxMetrics;
+import io.vertx.core.spi.metrics.HttpClientMetrics;
+
+/**
+ * Vert.x metrics SPI implementation that only collects the http client connection pool metrics, everything else
+ * is left to the dummy metrics that vert.x uses when metrics are disabled.
+ */
+public class BackendVertxMetrics extends DummyVertxMetrics {
+
+    public static MetricsOptions metricsOptions() {
+        return new MetricsOptions()
+                .setEnabled(true)
+                .setFactory((vertx, options) -> new BackendVertxMetrics());
+    }
+
+    @Override
+    public HttpClientMetrics<Void, Void, Void, HttpClientPoolMetrics.Endpoint, Void> createMetrics(HttpClient client, HttpClientOptions options) {
+        return new HttpClientPoolMetrics();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public boolean isMetricsEnabled() {
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.metrics;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxInternal;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Measures how late scheduled tasks run on each vert.x event loop, which is the time a request arriving
+ * at a busy event loop has to wait before it is processed.
+ */
+public class EventLoopLagProbe implements Runnable {
+    public static final LatencyHistogram LAG = new LatencyHistogram();
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    private final EventExecutor eventLoop;
+    private final long intervalNanos;
+    private long expected;
+
+    private EventLoopLagProbe(EventExecutor eventLoop, long intervalNanos) {
+        this.eventLoop = eventLoop;
+        this.intervalNanos = intervalNanos;
+    }
+
+    public static void start(Vertx vertx, long intervalMillis) {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        for (EventExecutor eventLoop : ((VertxInternal) vertx).getEventLoopGroup()) {
+            new EventLoopLagProbe(eventLoop, MILLISECONDS.toNanos(intervalMillis)).schedule();
+        }
+    }
+
+    private void schedule() {
+        expected = nanoTime() + intervalNanos;
+        eventLoop.schedule(this, intervalNanos, NANOSECONDS);
+    }
+
+    @Override
+    public void run() {
+        LAG.record(nanoTime() - expected);
+        schedule();
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.metrics;
+
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.core.spi.metrics.HttpClientMetrics;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Collections.unmodifiableCollection;
+
+/**
+ * Tracks the connection pools and wait queues of one vert.x http client per endpoint.
+ */
+public class HttpClientPoolMetrics implements HttpClientMetrics<Void, Void, Void, HttpClientPoolMetrics.Endpoint, Void> {
+    private static final CopyOnWriteArrayList<HttpClientPoolMetrics> clients = new CopyOnWriteArrayList<>();
+
+    private final ConcurrentHashMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    HttpClientPoolMetrics() {
+        clients.add(this);
+    }
+
+    public static Collection<HttpClientPoolMetrics> allClients() {
+        return unmodifiableCollection(clients);
+    }
+
+    public Collection<Endpoint> endpoints() {
+        return unmodifiableCollection(endpoints.values());
+    }
+
+    public static class Endpoint {
+        public final String host;
+        public final int port;
+        public final int maxPoolSize;
+        public final AtomicInteger connections = new AtomicInteger();
+        public final AtomicInteger waiting = new AtomicInteger();
+
+        Endpoint(String host, int port, int maxPoolSize) {
+            this.host = host;
+            this.port = port;
+            this.maxPoolSize = maxPoolSize;
+        }
+    }
+
+    @Override
+    public Endpoint createEndpoint(String host, int port, int maxPoolSize) {
+        Endpoint endpoint = new Endpoint(host, port, maxPoolSize);
+        endpoints.put(host + ':' + port, endpoint);
+        return endpoint;
+    }
+
+    @Override
+    public void closeEndpoint(String host, int port, Endpoint endpointMetric) {
+        endpoints.remove(host + ':' + port, endpointMetric);
+    }
+
+    @Override
+    public Void enqueueRequest(Endpoint endpointMetric) {
+        endpointMetric.waiting.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public void dequeueRequest(Endpoint endpointMetric, Void taskMetric) {
+        endpointMetric.waiting.decrementAndGet();
+    }
+
+    @Override
+    public void endpointConnected(Endpoint endpointMetric, Void socketMetric) {
+        endpointMetric.connections.incrementAndGet();
+    }
+
+    @Override
+    public void endpointDisconnected(Endpoint endpointMetric, Void socketMetric) {
+        endpointMetric.connections.decrementAndGet();
+    }
+
+    @Override
+    public Void requestBegin(Endpoint endpointMetric, Void socketMetric, SocketAddress localAddress, SocketAddress remoteAddress, HttpClientRequest request) {
+        return null;
+    }
+
+    @Override
+    public void requestEnd(Void requestMetric) {
+    }
+
+    @Override
+    public void responseBegin(Void requestMetric, HttpClientResponse response) {
+    }
+
+    @Override
+    public Void responsePushed(Endpoint endpointMetric, Void socketMetric, SocketAddress localAddress, SocketAddress remoteAddress, HttpClientRequest request) {
+        return null;
+    }
+
+    @Override
+    public void requestReset(Void requestMetric) {
+    }
+
+    @Override
+    public void responseEnd(Void requestMetric, HttpClientResponse response) {
+    }
+
+    @Override
+    public Void connected(Endpoint endpointMetric, Void socketMetric, WebSocket webSocket) {
+        return null;
+    }
+
+    @Override
+    public void disconnected(Void webSocketMetric) {
+    }
+
+    @Override
+    public Void connected(SocketAddress remoteAddress, String remoteName) {
+        return null;
+    }
+
+    @Override
+    public void disconnected(Void socketMetric, SocketAddress remoteAddress) {
+    }
+
+    @Override
+    public void bytesRead(Void socketMetric, SocketAddress remoteAddress, long numberOfBytes) {
+    }
+
+    @Override
+    public void bytesWritten(Void socketMetric, SocketAddress remoteAddress, long numberOfBytes) {
+    }
+
+    @Override
+    public void exceptionOccurred(Void socketMetric, SocketAddress remoteAddress, Throwable t) {
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public void close() {
+        clients.remove(this);
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.function.Function;
+
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Latency histogram in microseconds. Recording is wait-free and allocation-free through a {@link Recorder},
+ * the readers collect the recorded values into interval and cumulative histograms.
+ */
+public class LatencyHistogram {
+    public static final long HIGHEST_TRACKABLE_MICROS = MINUTES.toMicros(10);
+
+    private final Recorder recorder = new Recorder(HIGHEST_TRACKABLE_MICROS, 2);
+    private final Histogram cumulative = new Histogram(HIGHEST_TRACKABLE_MICROS, 2);
+    private Histogram interval = recorder.getIntervalHistogram();
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        recorder.recordValue(min(NANOSECONDS.toMicros(nanos), HIGHEST_TRACKABLE_MICROS));
+    }
+
+    /**
+     * Swaps the values recorded since the previous call into the interval histogram and adds them to the cumulative histogram.
+     */
+    public synchronized void collect() {
+        interval = recorder.getIntervalHistogram(interval);
+        cumulative.add(interval);
+    }
+
+    /**
+     * Collects the recorded values and reads the cumulative histogram without racing with other collectors.
+     */
+    public synchronized <T> T collect(Function<Histogram, T> cumulativeReader) {
+        collect();
+        return cumulativeReader.apply(cumulative);
+    }
+
+    /**
+     * @return the values recorded between the two latest calls to {@link #collect()}
+     */
+    public Histogram interval() {
+        return interval;
+    }
+
+    /**
+     * @return the values recorded before the latest call to {@link #collect()}
+     */
+    public Histogram cumulative() {
+        return cumulative;
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.metrics;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import org.HdrHistogram.Histogram;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Encodes metrics in the Prometheus text exposition format into a reused buffer. Not thread safe.
+ * <p>
+ * Usage: {@code writer.reset().type("x_total", "counter", "Help").sample("x_total").label("a", "b").value(1)}
+ */
+public class PrometheusWriter {
+    private static final long[] BUCKET_MICROS = {
+            100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000
+    };
+    private static final String[] BUCKET_LABELS = {
+            "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05",
+            "0.1", "0.25", "0.5", "1", "2.5", "5", "10"
+    };
+
+    private final ByteBuf buf = Unpooled.buffer(16 * 1024);
+    private final byte[] digits = new byte[20];
+    private boolean inLabels;
+
+    public PrometheusWriter reset() {
+        buf.clear();
+        return this;
+    }
+
+    public PrometheusWriter type(String name, String type, String help) {
+        ascii("# HELP ").ascii(name).writeByte(' ').escaped(help, false).writeByte('\n');
+        ascii("# TYPE ").ascii(name).writeByte(' ').ascii(type).writeByte('\n');
+        return this;
+    }
+
+    public PrometheusWriter sample(String name) {
+        ascii(name);
+        inLabels = false;
+        return this;
+    }
+
+    public PrometheusWriter label(String name, String value) {
+        writeByte(inLabels ? ',' : '{');
+        inLabels = true;
+        ascii(name).ascii("=\"").escaped(value, true).writeByte('"');
+        return this;
+    }
+
+    public PrometheusWriter label(String name, long value) {
+        writeByte(inLabels ? ',' : '{');
+        inLabels = true;
+        ascii(name).ascii("=\"").number(value).writeByte('"');
+        return this;
+    }
+
+    public PrometheusWriter value(long value) {
+        endLabels();
+        number(value).writeByte('\n');
+        return this;
+    }
+
+    public PrometheusWriter value(double value) {
+        endLabels();
+        if (value == (long) value) {
+            number((long) value);
+        } else {
+            ascii(Double.toString(value));
+        }
+        writeByte('\n');
+        return this;
+    }
+
+    /**
+     * Writes the histogram of microsecond values as a Prometheus histogram in seconds. The sum is
+     * estimated from the mean as HdrHistogram does not track the exact sum of the values.
+     *
+     * @param labels label name and value pairs
+     */
+    public PrometheusWriter histogram(String name, Histogram histogram, String... labels) {
+        long count = histogram.getTotalCount();
+        long below = 0;
+        long lowest = 0;
+        for (int i = 0; i < BUCKET_MICROS.length; ++i) {
+            if (below < count) {
+                below += histogram.getCountBetweenValues(lowest, BUCKET_MICROS[i]);
+                lowest = histogram.nextNonEquivalentValue(BUCKET_MICROS[i]);
+            }
+            sample(name, "_bucket", labels).label("le", BUCKET_LABELS[i]).value(below);
+        }
+        sample(name, "_bucket", labels).label("le", "+Inf").value(count);
+        sample(name, "_sum", labels).value(histogram.getMean() * count / 1_000_000.0);
+        sample(name, "_count", labels).value(count);
+        return this;
+    }
+
+    private PrometheusWriter sample(String name, String suffix, String[] labels) {
+        ascii(name).ascii(suffix);
+        inLabels = false;
+        for (int i = 0; i < labels.length; i += 2) {
+            label(labels[i], labels[i + 1]);
+        }
+        return this;
+    }
+
+    /**
+     * @return a copy of the encoded metrics, the internal buffer is reused by the next encoding
+     */
+    public Buffer toBuffer() {
+        return Buffer.buffer(buf.copy());
+    }
+
+    private void endLabels() {
+        if (inLabels) {
+            writeByte('}');
+            inLabels = false;
+        }
+        writeByte(' ');
+    }
+
+    private PrometheusWriter writeByte(char c) {
+        buf.writeByte(c);
+        return this;
+    }
+
+    private PrometheusWriter ascii(String s) {
+        for (int i = 0; i < s.length(); ++i) {
+            buf.writeByte(s.charAt(i));
+        }
+        return this;
+    }
+
+    private PrometheusWriter escaped(String s, boolean quoted) {
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '\\') {
+                ascii("\\\\");
+            } else if (c == '\n') {
+                ascii("\\n");
+            } else if (c == '"' && quoted) {
+                ascii("\\\"");
+            } else if (c < 0x80) {
+                buf.writeByte(c);
+            } else {
+                int end = Character.isHighSurrogate(c) && i + 1 < s.length() ? i + 2 : i + 1;
+                buf.writeCharSequence(s.subSequence(i, end), UTF_8);
+                i = end - 1;
+            }
+        }
+        return this;
+    }
+
+    private PrometheusWriter number(long value) {
+        if (value < 0) {
+            buf.writeByte('-');
+            if (value == Long.MIN_VALUE) {
+                return ascii(Long.toString(value).substring(1));
+            }
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        buf.writeBytes(digits, pos, digits.length - pos);
+        return this;
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.metrics;
+
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Collections.unmodifiableCollection;
+
+/**
+ * Counts the completed requests of a route of a virtual host per response status code.
+ */
+public class RequestCounters {
+    public static final int MAX_STATUS = 600;
+    private static final ConcurrentHashMap<String, RequestCounters> routes = new ConcurrentHashMap<>();
+
+    /**
+     * The virtual host of the route, or null
+     */
+    public final String virtualHost;
+    public final String route;
+    private final AtomicReferenceArray<LongAdder> statusCounts = new AtomicReferenceArray<>(MAX_STATUS);
+
+    RequestCounters(String virtualHost, String route) {
+        this.virtualHost = virtualHost;
+        this.route = route;
+    }
+
+    /**
+     * @param virtualHost the virtual host of the route, or null
+     */
+    public static RequestCounters forRoute(String virtualHost, String route) {
+        return routes.computeIfAbsent(virtualHost == null ? route : virtualHost + route, key -> new RequestCounters(virtualHost, route));
+    }
+
+    public static Collection<RequestCounters> allRoutes() {
+        return unmodifiableCollection(routes.values());
+    }
+
+    public void handle(RoutingContext ctx) {
+        ctx.addBodyEndHandler(v -> count(ctx.response().getStatusCode()));
+        ctx.next();
+    }
+
+    void count(int status) {
+        if (status < 0 || status >= MAX_STATUS) {
+            status = 0;
+        }
+        LongAdder counter = statusCounts.get(status);
+        if (counter == null) {
+            statusCounts.compareAndSet(status, null, new LongAdder());
+            counter = statusCounts.get(status);
+        }
+        counter.increment();
+    }
+
+    /**
+     * @param status the response status code, 0 for invalid status codes
+     */
+    public long requests(int status) {
+        LongAdder counter = statusCounts.get(status);
+        return counter == null ? 0 : counter.sum();
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.metrics;
+
+import io.nitor.api.backend.GracefulShutdown;
+import io.nitor.api.backend.accesslog.AccessLog;
+import io.nitor.api.backend.js.InlineJS;
+import io.nitor.api.backend.proxy.PriorityClasses;
+import io.nitor.api.backend.proxy.PriorityScheduler;
+import io.nitor.api.backend.proxy.ProxyMetrics;
+import io.nitor.api.backend.proxy.TrafficMirror;
+import io.nitor.api.backend.s3.S3Handler;
+import io.nitor.api.backend.session.CookieConverter;
+import io.nitor.api.backend.tracing.Tracing;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+
+import static io.nitor.api.backend.metrics.RequestCounters.MAX_STATUS;
+
+/**
+ * Exposes the collected metrics in Prometheus text format.
+ */
+public class SetupMetrics {
+    private static final List<BufferPoolMXBean> bufferPools = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class);
+
+    public static void setupMetrics(Vertx vertx, Router router, JsonObject metricsConf) {
+        EventLoopLagProbe.start(vertx, metricsConf.getInteger("eventLoopLagInterval", 100));
+        PrometheusWriter writer = new PrometheusWriter();
+        router.get(metricsConf.getString("path", "/metrics")).handler(ctx -> {
+            writeMetrics(writer.reset());
+            ctx.response()
+                    .putHeader("content-type", "text/plain; version=0.0.4; charset=utf-8")
+                    .end(writer.toBuffer());
+        });
+    }
+
+    static void writeMetrics(PrometheusWriter w) {
+        w.type("backend_requests_total", "counter", "Completed requests per virtual host, route and status code, route * contains all requests.");
+        for (RequestCounters counters : RequestCounters.allRoutes()) {
+            String host = counters.virtualHost == null ? "" : counters.virtualHost;
+            for (int status = 0; status < MAX_STATUS; ++status) {
+                long count = counters.requests(status);
+                if (count > 0) {
+                    w.sample("backend_requests_total").label("virtual_host", host).label("route", counters.route).label("code", status).value(count);
+                }
+            }
+        }
+
+        GracefulShutdown shutdown = GracefulShutdown.instance();
+        if (shutdown != null) {
+            w.type("backend_inflight_requests", "gauge", "Requests and websockets in flight.");
+            w.sample("backend_inflight_requests").value(shutdown.inFlight().requests());
+            w.type("backend_open_connections", "gauge", "Open client connections that have received requests.");
+            w.sample("backend_open_connections").value(shutdown.inFlight().connections());
+            w.type("backend_shutting_down", "gauge", "1 when a graceful shutdown is in progress.");
+            w.sample("backend_shutting_down").value(shutdown.isStarted() ? 1 : 0);
+        }
+
+        w.type("backend_access_log_dropped_total", "counter", "Access log entries dropped because the writer fell behind.");
+        w.sample("backend_access_log_dropped_total").value(AccessLog.dropped());
+
+        w.type("backend_tracing_spans_dropped_total", "counter", "Sampled spans dropped because the exporter fell behind or the export failed.");
+        w.sample("backend_tracing_spans_dropped_total").value(Tracing.dropped());
+
+        w.type("backend_proxy_latency_seconds", "histogram", "Latency of the proxying phases per virtual host, route and upstream.");
+        for (ProxyMetrics metrics : ProxyMetrics.allRoutes()) {
+            String host = metrics.virtualHost == null ? "" : metrics.virtualHost;
+            for (ProxyMetrics.Upstream upstream : metrics.upstreams()) {
+                String upstreamLabel = upstream.host + ':' + upstream.port;
+                for (ProxyMetrics.Phase phase : ProxyMetrics.Phase.values()) {
+                    upstream.histogram(phase).collect(h -> w.histogram("backend_proxy_latency_seconds", h,
+                            "virtual_host", host, "route", metrics.route, "upstream", upstreamLabel, "phase", phase.name()));
+                }
+            }
+        }
+
+        w.type("backend_proxy_failures_total", "counter", "Proxied requests that got no complete response from the upstream per virtual host, route and upstream.");
+        for (ProxyMetrics metrics : ProxyMetrics.allRoutes()) {
+            String host = metrics.virtualHost == null ? "" : metrics.virtualHost;
+            for (ProxyMetrics.Upstream upstream : metrics.upstreams()) {
+                w.sample("backend_proxy_failures_total").label("virtual_host", host).label("route", metrics.route).label("upstream", upstream.host + ':' + upstream.port).value(upstream.failures());
+            }
+        }
+
+        w.type("backend_proxy_mirror_requests_total", "counter", "Mirrored request copies per virtual host, route and result.");
+        for (TrafficMirror mirror : TrafficMirror.allMirrors()) {
+            String host = mirror.virtualHost == null ? "" : mirror.virtualHost;
+            w.sample("backend_proxy_mirror_requests_total").label("virtual_host", host).label("route", mirror.route).label("result", "sent").value(mirror.sent());
+            w.sample("backend_proxy_mirror_requests_total").label("virtual_host", host).label("route", mirror.route).label("result", "dropped").value(mirror.dropped());
+            w.sample("backend_proxy_mirror_requests_total").label("virtual_host", host).label("route", mirror.route).label("result", "failed").value(mirror.failed());
+        }
+        w.type("backend_proxy_mirror_buffered_bytes", "gauge", "Bytes buffered for mirrored request copies per virtual host and route.");
+        for (TrafficMirror mirror : TrafficMirror.allMirrors()) {
+            String host = mirror.virtualHost == null ? "" : mirror.virtualHost;
+            w.sample("backend_proxy_mirror_buffered_bytes").label("virtual_host", host).label("route", mirror.route).value(mirror.buffered());
+        }
+
+        PriorityClasses priorityClasses = PriorityClasses.instance();
+        if (priorityClasses != null) {
+            w.type("backend_proxy_queue_wait_seconds", "histogram", "Time the proxied requests waited for an upstream slot per upstream and priority class.");
+            for (PriorityScheduler scheduler : priorityClasses.allUpstreams()) {
+                for (int c = 0; c < scheduler.classCount(); ++c) {
+                    String className = scheduler.className(c);
+                    scheduler.queueWait(c).collect(h -> w.histogram("backend_proxy_queue_wait_seconds", h,
+                            "upstream", scheduler.upstream, "class", className));
+                }
+            }
+            w.type("backend_proxy_queue_length", "gauge", "Proxied requests waiting for an upstream slot per upstream and priority class.");
+            for (PriorityScheduler scheduler : priorityClasses.allUpstreams()) {
+                for (int c = 0; c < scheduler.classCount(); ++c) {
+                    w.sample("backend_proxy_queue_length").label("upstream", scheduler.upstream).label("class", scheduler.className(c)).value(scheduler.queueLength(c));
+                }
+            }
+            w.type("backend_proxy_queue_rejected_total", "counter", "Proxied requests rejected because the queue was full or the wait timed out per upstream and priority class.");
+            for (PriorityScheduler scheduler : priorityClasses.allUpstreams()) {
+                for (int c = 0; c < scheduler.classCount(); ++c) {
+                    w.sample("backend_proxy_queue_rejected_total").label("upstream", scheduler.upstream).label("class", scheduler.className(c)).value(scheduler.rejected(c));
+                }
+            }
+            w.type("backend_proxy_active_requests", "gauge", "Proxied requests holding an upstream slot per upstream.");
+            for (PriorityScheduler scheduler : priorityClasses.allUpstreams()) {
+                w.sample("backend_proxy_active_requests").label("upstream", scheduler.upstream).value(scheduler.running());
+            }
+        }
+
+        w.type("backend_http_client_pool_connections", "gauge", "Open connections in the http client pool per endpoint.");
+        for (HttpClientPoolMetrics client : HttpClientPoolMetrics.allClients()) {
+            for (HttpClientPoolMetrics.Endpoint endpoint : client.endpoints()) {
+                w.sample("backend_http_client_pool_connections").label("endpoint", endpoint.host + ':' + endpoint.port).value(endpoint.connections.get());
+            }
+        }
+        w.type("backend_http_client_pool_max_connections", "gauge", "Maximum size of the http client pool per endpoint.");
+        for (HttpClientPoolMetrics client : HttpClientPoolMetrics.allClients()) {
+            for (HttpClientPoolMetrics.Endpoint endpoint : client.endpoints()) {
+                w.sample("backend_http_client_pool_max_connections").label("endpoint", endpoint.host + ':' + endpoint.port).value(endpoint.maxPoolSize);
+            }
+        }
+        w.type("backend_http_client_wait_queue", "gauge", "Requests waiting for a http client pool connection per endpoint.");
+        for (HttpClientPoolMetrics client : HttpClientPoolMetrics.allClients()) {
+            for (HttpClientPoolMetrics.Endpoint endpoint : client.endpoints()) {
+                w.sample("backend_http_client_wait_queue").label("endpoint", endpoint.host + ':' + endpoint.port).value(endpoint.waiting.get());
+            }
+        }
+
+        w.type("backend_session_cookie_cache_hits_total", "counter", "Session cookies found from the decrypted cookie cache.");
+        w.sample("backend_session_cookie_cache_hits_total").value(CookieConverter.cacheHits());
+        w.type("backend_session_cookie_cache_misses_total", "counter", "Session cookies that had to be decrypted.");
+        w.sample("backend_session_cookie_cache_misses_total").value(CookieConverter.cacheMisses());
+        w.type("backend_session_cookie_cache_size", "gauge", "Entries in the decrypted cookie cache.");
+        w.sample("backend_session_cookie_cache_size").value(CookieConverter.cacheSize());
+
+        w.type("backend_s3_latency_seconds", "histogram", "Latency of the S3 requests per route.");
+        for (Map.Entry<String, LatencyHistogram> e : S3Handler.latencies().entrySet()) {
+            e.getValue().collect(h -> w.histogram("backend_s3_latency_seconds", h, "route", e.getKey()));
+        }
+
+        w.type("backend_script_hook_seconds", "histogram", "Execution time of the customization script hooks per script.");
+        for (Map.Entry<String, InlineJS.HookStats> e : InlineJS.stats().entrySet()) {
+            for (InlineJS.Hook hook : InlineJS.Hook.values()) {
+                e.getValue().latency(hook).collect(h -> w.histogram("backend_script_hook_seconds", h, "script", e.getKey(), "hook", hook.name()));
+            }
+        }
+        w.type("backend_script_over_budget_total", "counter", "Customization script hook calls that exceeded the time budget per script.");
+        for (Map.Entry<String, InlineJS.HookStats> e : InlineJS.stats().entrySet()) {
+            w.sample("backend_script_over_budget_total").label("script", e.getKey()).value(e.getValue().overBudget());
+        }
+
+        w.type("backend_event_loop_lag_seconds", "histogram", "Delay of scheduled tasks on the event loops.");
+        EventLoopLagProbe.LAG.collect(h -> w.histogram("backend_event_loop_lag_seconds", h));
+
+        w.type("jvm_buffer_pool_used_bytes", "gauge", "Used bytes of the JVM buffer pools.");
+        for (BufferPoolMXBean pool : bufferPools) {
+            w.sample("jvm_buffer_pool_used_bytes").label("pool", pool.getName()).value(pool.getMemoryUsed());
+        }
+        w.type("jvm_buffer_pool_capacity_bytes", "gauge", "Total capacity of the buffers in the JVM buffer pools.");
+        for (BufferPoolMXBean pool : bufferPools) {
+            w.sample("jvm_buffer_pool_capacity_bytes").label("pool", pool.getName()).value(pool.getTotalCapacity());
+        }
+        w.type("jvm_buffer_pool_buffers", "gauge", "Buffers in the JVM buffer pools.");
+        for (BufferPoolMXBean pool : bufferPools) {
+            w.sample("jvm_buffer_pool_buffers").label("pool", pool.getName()).value(pool.getCount());
+        }
+    }
+}
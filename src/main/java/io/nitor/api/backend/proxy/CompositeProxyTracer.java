@@ -0,0 +1,183 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Passes the lifecycle events of a request to several tracers.
+ */
+public class CompositeProxyTracer implements ProxyTracer {
+    private final ProxyTracer[] tracers;
+
+    public CompositeProxyTracer(ProxyTracer... tracers) {
+        this.tracers = tracers;
+    }
+
+    public static Supplier<ProxyTracer> combine(List<Supplier<ProxyTracer>> factories) {
+        if (factories.size() == 1) {
+            return factories.get(0);
+        }
+        @SuppressWarnings("unchecked")
+        Supplier<ProxyTracer>[] array = factories.toArray((Supplier<ProxyTracer>[]) new Supplier<?>[factories.size()]);
+        return () -> {
+            ProxyTracer[] tracers = new ProxyTracer[array.length];
+            for (int i = 0; i < array.length; ++i) {
+                tracers[i] = array[i].get();
+            }
+            return new CompositeProxyTracer(tracers);
+        };
+    }
+
+    @Override
+    public void incomingRequestStart(RoutingContext ctx, boolean isTls, boolean isHTTP2, String chost, String reqId) {
+        for (ProxyTracer t : tracers) {
+            t.incomingRequestStart(ctx, isTls, isHTTP2, chost, reqId);
+        }
+    }
+
+    @Override
+    public void incomingRequestEnd() {
+        for (ProxyTracer t : tracers) {
+            t.incomingRequestEnd();
+        }
+    }
+
+    @Override
+    public void incomingRequestException(Throwable e) {
+        for (ProxyTracer t : tracers) {
+            t.incomingRequestException(e);
+        }
+    }
+
+    @Override
+    public void incomingConnectionPrematurelyClosed() {
+        for (ProxyTracer t : tracers) {
+            t.incomingConnectionPrematurelyClosed();
+        }
+    }
+
+    @Override
+    public void nextHopResolved(Proxy.Target nextHop) {
+        for (ProxyTracer t : tracers) {
+            t.nextHopResolved(nextHop);
+        }
+    }
+
+    @Override
+    public void outgoingRequestInitial(HttpClientRequest creq) {
+        for (ProxyTracer t : tracers) {
+            t.outgoingRequestInitial(creq);
+        }
+    }
+
+    @Override
+    public void outgoingRequestException(Throwable e) {
+        for (ProxyTracer t : tracers) {
+            t.outgoingRequestException(e);
+        }
+    }
+
+    @Override
+    public void incomingResponseStart(HttpClientResponse cres) {
+        for (ProxyTracer t : tracers) {
+            t.incomingResponseStart(cres);
+        }
+    }
+
+    @Override
+    public void incomingResponseEnd() {
+        for (ProxyTracer t : tracers) {
+            t.incomingResponseEnd();
+        }
+    }
+
+    @Override
+    public void incomingResponseException(Throwable e) {
+        for (ProxyTracer t : tracers) {
+            t.incomingResponseException(e);
+        }
+    }
+
+    @Override
+    public void outgoingResponseInitial() {
+        for (ProxyTracer t : tracers) {
+            t.outgoingResponseInitial();
+        }
+    }
+
+    @Override
+    public void outgoingResponseHeadersEnd(Void v) {
+        for (ProxyTracer t : tracers) {
+            t.outgoingResponseHeadersEnd(v);
+        }
+    }
+
+    @Override
+    public void outgoingResponseBodyEnd(Void v) {
+        for (ProxyTracer t : tracers) {
+            t.outgoingResponseBodyEnd(v);
+        }
+    }
+
+    @Override
+    public void outgoingResponseException(Throwable e) {
+        for (ProxyTracer t : tracers) {
+            t.outgoingResponseException(e);
+        }
+    }
+
+    @Override
+    public void outgoingWebsocketInitial(MultiMap creqh) {
+        for (ProxyTracer t : tracers) {
+            t.outgoingWebsocketInitial(creqh);
+        }
+    }
+
+    @Override
+    public void outgoingWebsocketException(Throwable e) {
+        for (ProxyTracer t : tracers) {
+            t.outgoingWebsocketException(e);
+        }
+    }
+
+    @Override
+    public void websocketEstablished() {
+        for (ProxyTracer t : tracers) {
+            t.websocketEstablished();
+        }
+    }
+
+    @Override
+    public void establishedWebsocketClosed() {
+        for (ProxyTracer t : tracers) {
+            t.establishedWebsocketClosed();
+        }
+    }
+
+    @Override
+    public void establishedWebsocketException(Throwable e) {
+        for (ProxyTracer t : tracers) {
+            t.establishedWebsocketException(e);
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import sun.misc.Signal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static java.lang.Integer.highestOneBit;
+import static java.lang.System.arraycopy;
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Always-on ring buffer of the latest proxied exchanges. Each exchange is stored as a fixed size record of longs,
+ * written without locks by the event loops. The records can be dumped through an http route, a signal or
+ * automatically when the error rate of the proxied requests crosses a threshold.
+ */
+public class FlightRecorder {
+    private static final Logger logger = LogManager.getLogger(FlightRecorder.class);
+
+    static final int MARKER = 0;
+    static final int START_MILLIS = 1;
+    static final int RESOLVED = 2;
+    static final int REQUEST_START = 3;
+    static final int RESPONSE_START = 4;
+    static final int END = 5;
+    static final int STATUS = 6;
+    static final int BYTES = 7;
+    static final int UPSTREAM = 8;
+    static final int FAILED = 9;
+    static final int RECORD_SIZE = 10;
+
+    private static volatile FlightRecorder instance;
+
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicLongArray records;
+    private final AtomicReferenceArray<String> reqIds;
+    private volatile String[] upstreams = new String[0];
+
+    private final Path dumpDir;
+    private final double errorRate;
+    private final int minErrors;
+    private final long windowMillis;
+    private final long cooldownMillis;
+    private final AtomicLong windowStart = new AtomicLong(currentTimeMillis());
+    private final AtomicLong windowRequests = new AtomicLong();
+    private final AtomicLong windowErrors = new AtomicLong();
+    private final AtomicLong lastAutoDump = new AtomicLong();
+    private final ExecutorService dumper = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "flight-recorder-dump");
+        t.setDaemon(true);
+        return t;
+    });
+
+    FlightRecorder(JsonObject conf) {
+        int size = highestOneBit(Math.max(2, conf.getInteger("size", 4096)));
+        this.mask = size - 1;
+        this.records = new AtomicLongArray(size * RECORD_SIZE);
+        this.reqIds = new AtomicReferenceArray<>(size);
+        this.dumpDir = Paths.get(conf.getString("dumpDir", "."));
+        this.errorRate = conf.getDouble("errorRate", 0.5);
+        this.minErrors = conf.getInteger("minErrors", 20);
+        this.windowMillis = SECONDS.toMillis(conf.getInteger("window", 10));
+        this.cooldownMillis = SECONDS.toMillis(conf.getInteger("cooldown", 300));
+    }
+
+    public static synchronized void setup(Router router, JsonObject conf) {
+        if (instance == null) {
+            instance = new FlightRecorder(conf);
+            String signal = conf.getString("signal", "USR2");
+            if (signal != null) {
+                try {
+                    Signal.handle(new Signal(signal), s -> instance.dumpToFile("signal"));
+                } catch (IllegalArgumentException e) {
+                    logger.warn("Cannot dump flight recorder on signal " + signal, e);
+                }
+            }
+        }
+        FlightRecorder recorder = instance;
+        router.get(conf.getString("path", "/flightRecorder")).handler(ctx ->
+                ctx.response().putHeader("content-type", "text/plain; charset=utf-8").end(recorder.dump()));
+    }
+
+    /**
+     * @return the recorder, or null if it has not been configured
+     */
+    public static FlightRecorder instance() {
+        return instance;
+    }
+
+    int upstreamId(String host, int port) {
+        String upstream = host + ':' + port;
+        String[] current = upstreams;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i].equals(upstream)) {
+                return i;
+            }
+        }
+        return addUpstream(upstream);
+    }
+
+    private synchronized int addUpstream(String upstream) {
+        String[] current = upstreams;
+        for (int i = 0; i < current.length; ++i) {
+            if (current[i].equals(upstream)) {
+                return i;
+            }
+        }
+        String[] updated = new String[current.length + 1];
+        arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = upstream;
+        upstreams = updated;
+        return current.length;
+    }
+
+    /**
+     * @param phases nanoTime offsets of the phases from the request start, indexed by the record field constants
+     */
+    void record(String reqId, long startMillis, long[] phases, int status, long bytes, int upstream, boolean failed) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        int base = slot * RECORD_SIZE;
+        records.set(base + MARKER, -1);
+        records.lazySet(base + START_MILLIS, startMillis);
+        for (int i = RESOLVED; i <= END; ++i) {
+            records.lazySet(base + i, phases[i]);
+        }
+        records.lazySet(base + STATUS, status);
+        records.lazySet(base + BYTES, bytes);
+        records.lazySet(base + UPSTREAM, upstream);
+        records.lazySet(base + FAILED, failed ? 1 : 0);
+        reqIds.lazySet(slot, reqId);
+        records.set(base + MARKER, sequence + 1);
+        checkErrorRate(failed || status >= 500);
+    }
+
+    private void checkErrorRate(boolean error) {
+        long now = currentTimeMillis();
+        long start = windowStart.get();
+        if (now - start > windowMillis && windowStart.compareAndSet(start, now)) {
+            windowRequests.set(0);
+            windowErrors.set(0);
+        }
+        long requests = windowRequests.incrementAndGet();
+        if (!error) {
+            return;
+        }
+        long errors = windowErrors.incrementAndGet();
+        if (errors >= minErrors && errors >= errorRate * requests) {
+            long last = lastAutoDump.get();
+            if (now - last > cooldownMillis && lastAutoDump.compareAndSet(last, now)) {
+                dumpToFile("error rate " + errors + "/" + requests);
+            }
+        }
+    }
+
+    void dumpToFile(String reason) {
+        dumper.execute(() -> {
+            Path file = dumpDir.resolve("flight-recorder-" + currentTimeMillis() + ".txt");
+            try (Writer out = Files.newBufferedWriter(file, UTF_8)) {
+                out.write("# Dumped because of " + reason + "\n");
+                out.write(dump());
+                logger.warn("Dumped flight recorder to " + file + " because of " + reason);
+            } catch (IOException e) {
+                logger.error("Failed to dump flight recorder to " + file, e);
+            }
+        });
+    }
+
+    /**
+     * Renders the records from oldest to newest. Records that are overwritten during the dump are skipped.
+     */
+    public String dump() {
+        StringBuilder sb = new StringBuilder(256 * (mask + 1));
+        sb.append("# start reqId upstream status bytes failed resolvedUs requestStartUs responseStartUs endUs\n");
+        String[] upstreamNames = upstreams;
+        long[] record = new long[RECORD_SIZE];
+        long end = cursor.get();
+        for (long sequence = Math.max(0, end - mask - 1); sequence < end; ++sequence) {
+            int slot = (int) (sequence & mask);
+            int base = slot * RECORD_SIZE;
+            if (records.get(base + MARKER) != sequence + 1) {
+                continue;
+            }
+            for (int i = 1; i < RECORD_SIZE; ++i) {
+                record[i] = records.get(base + i);
+            }
+            String reqId = reqIds.get(slot);
+            if (records.get(base + MARKER) != sequence + 1) {
+                continue;
+            }
+            sb.append(Instant.ofEpochMilli(record[START_MILLIS])).append(' ').append(reqId)
+                    .append(' ').append(record[UPSTREAM] >= 0 && upstreamNames.length > record[UPSTREAM] ? upstreamNames[(int) record[UPSTREAM]] : "-")
+                    .append(' ').append(record[STATUS])
+                    .append(' ').append(record[BYTES])
+                    .append(' ').append(record[FAILED] != 0);
+            for (int i = RESOLVED; i <= END; ++i) {
+                sb.append(' ').append(record[i] < 0 ? -1 : record[i] / 1000);
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import static io.nitor.api.backend.proxy.FlightRecorder.END;
+import static io.nitor.api.backend.proxy.FlightRecorder.RECORD_SIZE;
+import static io.nitor.api.backend.proxy.FlightRecorder.RESOLVED;
+import static io.nitor.api.backend.proxy.FlightRecorder.REQUEST_START;
+import static io.nitor.api.backend.proxy.FlightRecorder.RESPONSE_START;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.Arrays.fill;
+
+/**
+ * Stores the phase timestamps of each proxied exchange into the {@link FlightRecorder}.
+ */
+public class FlightRecorderProxyTracer extends DevNullProxyTracer {
+    private final FlightRecorder recorder;
+    private final long[] phases = new long[RECORD_SIZE];
+    private RoutingContext ctx;
+    private String reqId;
+    private Proxy.Target nextHop;
+    private long startMillis;
+    private long start;
+    private boolean failed;
+    private boolean done;
+
+    public FlightRecorderProxyTracer(FlightRecorder recorder) {
+        this.recorder = recorder;
+        fill(phases, -1);
+    }
+
+    private void phase(int phase) {
+        phases[phase] = nanoTime() - start;
+    }
+
+    @Override
+    public void incomingRequestStart(RoutingContext ctx, boolean isTls, boolean isHTTP2, String chost, String reqId) {
+        this.ctx = ctx;
+        this.reqId = reqId;
+        this.startMillis = currentTimeMillis();
+        this.start = nanoTime();
+    }
+
+    @Override
+    public void incomingRequestException(Throwable t) {
+        failed = true;
+    }
+
+    @Override
+    public void incomingConnectionPrematurelyClosed() {
+        failed = true;
+        complete();
+    }
+
+    @Override
+    public void nextHopResolved(Proxy.Target nextHop) {
+        this.nextHop = nextHop;
+        phase(RESOLVED);
+    }
+
+    @Override
+    public void outgoingRequestInitial(HttpClientRequest creq) {
+        phase(REQUEST_START);
+    }
+
+    @Override
+    public void outgoingRequestException(Throwable t) {
+        failed = true;
+    }
+
+    @Override
+    public void incomingResponseStart(HttpClientResponse cres) {
+        phase(RESPONSE_START);
+    }
+
+    @Override
+    public void incomingResponseException(Throwable t) {
+        failed = true;
+    }
+
+    @Override
+    public void outgoingResponseBodyEnd(Void v) {
+        complete();
+    }
+
+    @Override
+    public void outgoingResponseException(Throwable t) {
+        failed = true;
+        complete();
+    }
+
+    @Override
+    public void outgoingWebsocketException(Throwable t) {
+        failed = true;
+    }
+
+    @Override
+    public void websocketEstablished() {
+        complete();
+    }
+
+    private void complete() {
+        if (done || ctx == null) {
+            return;
+        }
+        done = true;
+        phase(END);
+        int upstream = nextHop == null ? -1 : recorder.upstreamId(nextHop.socketHost, nextHop.socketPort);
+        recorder.record(reqId, startMillis, phases, ctx.response().getStatusCode(), ctx.response().bytesWritten(), upstream, failed);
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.nitor.api.backend.proxy.ProxyMetrics.Phase;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Records the latencies of the proxying phases of a request into the {@link ProxyMetrics} of the route. Requests that
+ * fail after the next hop was resolved, by a connect failure, a timeout or an abort of either side, are recorded in
+ * the <tt>total</tt> phase and counted as failures of the upstream.
+ */
+public class MetricsProxyTracer extends DevNullProxyTracer {
+    private final ProxyMetrics metrics;
+    private Proxy.Target nextHop;
+    private long requestStart;
+    private long resolved;
+    private long outgoingStart;
+    private long responseStart;
+    private boolean failed;
+    private boolean recorded;
+
+    public MetricsProxyTracer(ProxyMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void incomingRequestStart(RoutingContext ctx, boolean isTls, boolean isHTTP2, String chost, String reqId) {
+        requestStart = nanoTime();
+    }
+
+    @Override
+    public void nextHopResolved(Proxy.Target nextHop) {
+        resolved = nanoTime();
+        this.nextHop = nextHop;
+    }
+
+    @Override
+    public void outgoingRequestInitial(HttpClientRequest creq) {
+        outgoingStart = nanoTime();
+    }
+
+    @Override
+    public void outgoingRequestException(Throwable t) {
+        failed = true;
+    }
+
+    @Override
+    public void incomingResponseStart(HttpClientResponse cres) {
+        responseStart = nanoTime();
+    }
+
+    @Override
+    public void incomingResponseException(Throwable t) {
+        failed = true;
+    }
+
+    @Override
+    public void incomingRequestException(Throwable t) {
+        failed = true;
+    }
+
+    @Override
+    public void outgoingResponseException(Throwable t) {
+        failed = true;
+    }
+
+    /**
+     * The response is not ended when the client has gone, so the request is recorded here.
+     */
+    @Override
+    public void incomingConnectionPrematurelyClosed() {
+        failed = true;
+        record(nanoTime());
+    }
+
+    @Override
+    public void outgoingResponseBodyEnd(Void v) {
+        record(nanoTime());
+    }
+
+    private void record(long end) {
+        if (nextHop == null || recorded) {
+            return;
+        }
+        recorded = true;
+        ProxyMetrics.Upstream upstream = metrics.upstream(nextHop.socketHost, nextHop.socketPort);
+        upstream.record(Phase.resolve, resolved - requestStart);
+        if (responseStart != 0) {
+            upstream.record(Phase.ttfb, responseStart - outgoingStart);
+            upstream.record(Phase.body, end - responseStart);
+        }
+        upstream.record(Phase.total, end - requestStart);
+        if (failed || responseStart == 0) {
+            upstream.recordFailure();
+        }
+    }
+}
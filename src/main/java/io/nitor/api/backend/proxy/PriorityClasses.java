@@ -0,0 +1,160 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.nitor.api.backend.session.CookieSessionHandler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.ext.web.RoutingContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.util.Collections.unmodifiableCollection;
+
+/**
+ * Priority classes of the proxied requests. A request is classified by the class of its route, the session attribute,
+ * the priority header or the default class, in that order. The header is set by the client, so it is only trusted
+ * when the request comes from one of the configured header sources. The requests to each upstream are admitted
+ * through a {@link PriorityScheduler} shared by all the routes proxying to that upstream.
+ */
+public class PriorityClasses {
+    private static final Logger logger = LogManager.getLogger(PriorityClasses.class);
+
+    private static volatile PriorityClasses instance;
+
+    final String[] names;
+    final int[] weights;
+    private final int defaultClass;
+    private final String header;
+    private final Set<InetAddress> headerSources = new HashSet<>();
+    private final String sessionAttribute;
+    final int maxConcurrent;
+    final int maxQueueSize;
+    final long maxQueueTimeNanos;
+    private final ConcurrentHashMap<String, PriorityScheduler> upstreams = new ConcurrentHashMap<>();
+
+    PriorityClasses(JsonObject conf) {
+        JsonObject classes = conf.getJsonObject("classes", new JsonObject().put("interactive", 10).put("bulk", 1));
+        names = new String[classes.size()];
+        weights = new int[classes.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> e : classes) {
+            names[i] = e.getKey();
+            weights[i] = ((Number) e.getValue()).intValue();
+            if (weights[i] <= 0) {
+                throw new IllegalArgumentException("Weight of priority class " + names[i] + " must be positive");
+            }
+            ++i;
+        }
+        String defaultName = conf.getString("default", names[0]);
+        defaultClass = indexOf(defaultName);
+        if (defaultClass < 0) {
+            throw new IllegalArgumentException("Unknown default priority class " + defaultName);
+        }
+        header = conf.getString("header");
+        for (Object source : conf.getJsonArray("headerSources", new JsonArray().add("127.0.0.1").add("::1"))) {
+            try {
+                headerSources.add(InetAddress.getByName(source.toString()));
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Priority header source " + source + " is not an IP address", e);
+            }
+        }
+        sessionAttribute = conf.getString("sessionAttribute");
+        maxConcurrent = conf.getInteger("maxConcurrent", 20);
+        maxQueueSize = conf.getInteger("maxQueueSize", 100);
+        maxQueueTimeNanos = conf.getLong("maxQueueTime", 10_000L) * 1_000_000;
+    }
+
+    public static synchronized void setup(JsonObject conf) {
+        if (instance == null) {
+            instance = new PriorityClasses(conf);
+            logger.info("Priority classes enabled: " + conf.encode());
+        }
+    }
+
+    public static PriorityClasses instance() {
+        return instance;
+    }
+
+    public PriorityScheduler forUpstream(String upstream) {
+        return upstreams.computeIfAbsent(upstream, u -> new PriorityScheduler(u, this));
+    }
+
+    public Collection<PriorityScheduler> allUpstreams() {
+        return unmodifiableCollection(upstreams.values());
+    }
+
+    /**
+     * @return the index of the named class, or -1
+     */
+    int indexOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        for (int i = 0; i < names.length; ++i) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param routeClass the class of the route, or -1 if the route has none
+     */
+    int classify(RoutingContext ctx, int routeClass) {
+        if (routeClass >= 0) {
+            return routeClass;
+        }
+        if (sessionAttribute != null) {
+            Map<String, String> sessionData = CookieSessionHandler.currentSessionData(ctx);
+            if (sessionData != null) {
+                int c = indexOf(sessionData.get(sessionAttribute));
+                if (c >= 0) {
+                    return c;
+                }
+            }
+        }
+        if (header != null && isHeaderSource(ctx.request().remoteAddress())) {
+            int c = indexOf(ctx.request().getHeader(header));
+            if (c >= 0) {
+                return c;
+            }
+        }
+        return defaultClass;
+    }
+
+    private boolean isHeaderSource(SocketAddress address) {
+        if (address == null || address.host() == null) {
+            return false;
+        }
+        try {
+            // the host of a connection is a numeric address, so this does not resolve names
+            return headerSources.contains(InetAddress.getByName(address.host()));
+        } catch (UnknownHostException e) {
+            return false;
+        }
+    }
+}
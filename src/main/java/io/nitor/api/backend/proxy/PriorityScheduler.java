@@ -0,0 +1,284 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.nitor.api.backend.metrics.LatencyHistogram;
+import io.nitor.api.backend.proxy.Proxy.ProxyException;
+import io.nitor.api.backend.proxy.Proxy.RejectReason;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Limits the concurrent proxied requests to one upstream and queues the excess requests per priority class.
+ * Free slots are handed to the queued requests with stride scheduling, so that each class with waiting requests
+ * gets a share of the slots proportional to its weight and no class is starved. A queued request is rejected
+ * by a timer once it has waited for the maximum queue time, even if no slot is freed meanwhile.
+ */
+public class PriorityScheduler {
+    static final String TICKET_KEY = "_priority_ticket";
+    private static final long STRIDE_BASE = 1 << 20;
+
+    public final String upstream;
+    private final PriorityClasses classes;
+    private final ArrayDeque<Ticket>[] queues;
+    private final long[] pass;
+    private final long[] stride;
+    private final LatencyHistogram[] waits;
+    private final AtomicLongArray rejected;
+    private long globalPass;
+    private int running;
+
+    @SuppressWarnings("unchecked")
+    PriorityScheduler(String upstream, PriorityClasses classes) {
+        this.upstream = upstream;
+        this.classes = classes;
+        int n = classes.names.length;
+        queues = (ArrayDeque<Ticket>[]) new ArrayDeque<?>[n];
+        pass = new long[n];
+        stride = new long[n];
+        waits = new LatencyHistogram[n];
+        rejected = new AtomicLongArray(n);
+        for (int i = 0; i < n; ++i) {
+            queues[i] = new ArrayDeque<>();
+            stride[i] = STRIDE_BASE / classes.weights[i];
+            waits[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Wraps a target resolver so that the target is only passed on once the request has been admitted.
+     *
+     * @param routeClass the class of the route, or -1 if the route has none
+     */
+    public Proxy.TargetResolver admitting(int routeClass, Proxy.TargetResolver resolver) {
+        return (ctx, targetHandler) -> admit(ctx, classes.classify(ctx, routeClass), () -> resolver.resolveNextHop(ctx, targetHandler));
+    }
+
+    void admit(RoutingContext ctx, int c, Runnable proceed) {
+        Ticket ticket = new Ticket(ctx, c, proceed);
+        ctx.put(TICKET_KEY, ticket);
+        synchronized (this) {
+            if (running < classes.maxConcurrent) {
+                ++running;
+                ticket.granted = true;
+            } else if (queues[c].size() >= classes.maxQueueSize) {
+                ticket.done = true;
+            } else {
+                if (queues[c].isEmpty()) {
+                    pass[c] = max(pass[c], globalPass);
+                }
+                queues[c].add(ticket);
+                if (ticket.context != null) {
+                    ticket.timer = ticket.context.owner().setTimer(max(1, NANOSECONDS.toMillis(classes.maxQueueTimeNanos)), id -> expire(ticket));
+                }
+                return;
+            }
+        }
+        if (ticket.granted) {
+            waits[c].record(0);
+            proceed.run();
+        } else {
+            rejected.incrementAndGet(c);
+            ctx.fail(new ProxyException(503, RejectReason.queueFull, null));
+        }
+    }
+
+    /**
+     * Frees the slot of the request, or removes it from the queue. Safe to call several times.
+     */
+    void release(RoutingContext ctx) {
+        Ticket ticket = ctx.get(TICKET_KEY);
+        if (ticket == null) {
+            return;
+        }
+        Ticket next;
+        synchronized (this) {
+            if (ticket.done) {
+                return;
+            }
+            ticket.done = true;
+            if (!ticket.granted) {
+                queues[ticket.priorityClass].remove(ticket);
+                cancelTimer(ticket);
+                return;
+            }
+            next = poll();
+            if (next == null) {
+                --running;
+                return;
+            }
+        }
+        grant(next);
+    }
+
+    /**
+     * @return the next request to take over a freed slot, or null if no requests are waiting
+     */
+    private Ticket poll() {
+        int c = -1;
+        for (int i = 0; i < queues.length; ++i) {
+            if (!queues[i].isEmpty() && (c < 0 || pass[i] < pass[c])) {
+                c = i;
+            }
+        }
+        if (c < 0) {
+            return null;
+        }
+        Ticket ticket = queues[c].poll();
+        globalPass = pass[c];
+        pass[c] += stride[c];
+        ticket.granted = true;
+        return ticket;
+    }
+
+    /**
+     * Rejects the request if it is still queued, removing it from the queue so that a stalled upstream does not
+     * keep the expired requests and their bodies in memory.
+     */
+    private void expire(Ticket ticket) {
+        synchronized (this) {
+            if (ticket.granted || ticket.done) {
+                return;
+            }
+            ticket.done = true;
+            queues[ticket.priorityClass].remove(ticket);
+        }
+        waits[ticket.priorityClass].record(nanoTime() - ticket.enqueued);
+        rejected.incrementAndGet(ticket.priorityClass);
+        ticket.ctx.fail(new ProxyException(503, RejectReason.queueTimeout, null));
+    }
+
+    private static void cancelTimer(Ticket ticket) {
+        if (ticket.timer >= 0) {
+            ticket.context.owner().cancelTimer(ticket.timer);
+        }
+    }
+
+    private void grant(Ticket ticket) {
+        cancelTimer(ticket);
+        long waited = nanoTime() - ticket.enqueued;
+        waits[ticket.priorityClass].record(waited);
+        Handler<Void> resume = v -> {
+            HttpServerResponse response = ticket.ctx.response();
+            if (response.closed() || response.ended()) {
+                release(ticket.ctx);
+            } else if (waited > classes.maxQueueTimeNanos) {
+                rejected.incrementAndGet(ticket.priorityClass);
+                ticket.ctx.fail(new ProxyException(503, RejectReason.queueTimeout, null));
+            } else {
+                ticket.proceed.run();
+            }
+        };
+        if (ticket.context != null) {
+            ticket.context.runOnContext(resume);
+        } else {
+            resume.handle(null);
+        }
+    }
+
+    public String className(int c) {
+        return classes.names[c];
+    }
+
+    public int classCount() {
+        return classes.names.length;
+    }
+
+    public synchronized int queueLength(int c) {
+        return queues[c].size();
+    }
+
+    public synchronized int running() {
+        return running;
+    }
+
+    public long rejected(int c) {
+        return rejected.get(c);
+    }
+
+    public LatencyHistogram queueWait(int c) {
+        return waits[c];
+    }
+
+    static class Ticket {
+        final RoutingContext ctx;
+        final int priorityClass;
+        final Runnable proceed;
+        final Context context = Vertx.currentContext();
+        final long enqueued = nanoTime();
+        long timer = -1;
+        boolean granted;
+        boolean done;
+
+        Ticket(RoutingContext ctx, int priorityClass, Runnable proceed) {
+            this.ctx = ctx;
+            this.priorityClass = priorityClass;
+            this.proceed = proceed;
+        }
+    }
+
+    /**
+     * Releases the slot of the request when the proxying of it ends.
+     */
+    static class ReleasingTracer extends DevNullProxyTracer {
+        private final PriorityScheduler scheduler;
+        private RoutingContext ctx;
+
+        ReleasingTracer(PriorityScheduler scheduler) {
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void incomingRequestStart(RoutingContext ctx, boolean isTls, boolean isHTTP2, String chost, String reqId) {
+            this.ctx = ctx;
+        }
+
+        @Override
+        public void incomingConnectionPrematurelyClosed() {
+            scheduler.release(ctx);
+        }
+
+        @Override
+        public void outgoingResponseBodyEnd(Void v) {
+            scheduler.release(ctx);
+        }
+
+        @Override
+        public void outgoingResponseException(Throwable throwable) {
+            scheduler.release(ctx);
+        }
+
+        @Override
+        public void websocketEstablished() {
+            scheduler.release(ctx);
+        }
+
+        @Override
+        public void outgoingWebsocketException(Throwable t) {
+            scheduler.release(ctx);
+        }
+    }
+}
@@ -15,7 +15,10 @@
  */
 package io.nitor.api.backend.proxy;
 
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.codec.http.HttpResponseStatus;
+import io.nitor.api.backend.tls.ClientCertificate;
+import io.nitor.vertx.util.DomainSocketChannelProvider;
 import io.nitor.vertx.util.LazyHandlerWrapper;
 import io.nitor.vertx.util.ReadStreamWrapper;
 import io.vertx.core.Handler;
@@ -30,6 +33,8 @@ import io.vertx.core.streams.ReadStream;
 import io.vertx.core.streams.WriteStream;
 import io.vertx.ext.web.RoutingContext;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.time.Clock;
 import java.util.HashSet;
 import java.util.Set;
@@ -55,6 +60,8 @@ public class Proxy implements Handler<RoutingContext> {
     private final int clientReceiveTimeout;
     private final Supplier<ProxyTracer> tracerFactory;
     private final PumpStarter pump;
+    private TrafficMirror mirror;
+    private boolean clientCertHeaders;
 
     public interface TargetResolver {
         /**
@@ -97,8 +104,35 @@ public class Proxy implements Handler<RoutingContext> {
         this.pump = pump;
     }
 
+    /**
+     * @param mirror receives copies of a share of the proxied requests, or null to disable mirroring
+     */
+    public Proxy setMirror(TrafficMirror mirror) {
+        this.mirror = mirror;
+        return this;
+    }
+
+    /**
+     * @param clientCertHeaders whether to pass the identity of the client certificate to the next hop in the
+     *                          <tt>X-Client-Cert-*</tt> headers, replacing any sent by the client
+     */
+    public Proxy setClientCertHeaders(boolean clientCertHeaders) {
+        this.clientCertHeaders = clientCertHeaders;
+        return this;
+    }
+
     public static class Target {
+        /**
+         * Unresolved {@link InetSocketAddress} of a TCP upstream, or the {@link DomainSocketAddress} of an unix domain socket.
+         */
+        public final SocketAddress address;
+        /**
+         * Host name, or the path of the domain socket.
+         */
         public final String socketHost;
+        /**
+         * TCP port, or 0 for a domain socket.
+         */
         public final int socketPort;
         public final String uri;
         public final String hostHeader;
@@ -107,14 +141,39 @@ public class Proxy implements Handler<RoutingContext> {
          * @param hostHeader can be null, in which case socketHost &amp; socketPort is used
          */
         public Target(String socketHost, int socketPort, String uri, String hostHeader) {
+            this(InetSocketAddress.createUnresolved(socketHost, socketPort), socketHost, socketPort, uri, hostHeader);
+        }
+
+        private Target(SocketAddress address, String socketHost, int socketPort, String uri, String hostHeader) {
+            this.address = address;
             this.socketHost = socketHost;
             this.socketPort = socketPort;
             this.uri = uri;
             this.hostHeader = hostHeader;
         }
 
+        /**
+         * Target listening on an unix domain socket instead of a TCP port.
+         *
+         * @param hostHeader can be null, in which case <tt>localhost</tt> is used
+         */
+        public static Target domainSocket(String socketPath, String uri, String hostHeader) {
+            return new Target(new DomainSocketAddress(socketPath), socketPath, 0, uri, hostHeader != null ? hostHeader : "localhost");
+        }
+
+        public boolean isDomainSocket() {
+            return address instanceof DomainSocketAddress;
+        }
+
+        /**
+         * @return the host to pass to the http client, which connects to domain sockets by a host it maps back to the socket
+         */
+        String clientHost() {
+            return isDomainSocket() ? DomainSocketChannelProvider.clientHost((DomainSocketAddress) address) : socketHost;
+        }
+
         public Target withSuffix(String suffix) {
-            return new Target(socketHost, socketPort, uri + suffix, hostHeader);
+            return new Target(address, socketHost, socketPort, uri + suffix, hostHeader);
         }
     }
 
@@ -136,6 +195,8 @@ public class Proxy implements Handler<RoutingContext> {
         incomingResponseFail,
         outgoingResponseFail,
         noHostHeader,
+        queueFull,
+        queueTimeout,
     }
 
     static final Set<String> hopByHopHeaders = new HashSet<>(asList(
@@ -159,6 +220,9 @@ public class Proxy implements Handler<RoutingContext> {
     static final Pattern connectionHeaderValueRE = Pattern.compile("\\s*,[\\s,]*+"); // from RFC2616
 
     static final String requestIdHeader = "X-Request-Id";
+    static final String clientCertSubjectHeader = "X-Client-Cert-Subject";
+    static final String clientCertIssuerHeader = "X-Client-Cert-Issuer";
+    static final String clientCertFingerprintHeader = "X-Client-Cert-Sha256";
 
     static void copyEndToEndHeaders(MultiMap from, MultiMap to) {
         to.addAll(from);
@@ -200,8 +264,8 @@ public class Proxy implements Handler<RoutingContext> {
 
         HttpServerResponse sres = sreq.response();
         sres.exceptionHandler(tracer::outgoingResponseException);
-        sres.headersEndHandler(tracer::outgoingResponseHeadersEnd);
-        sres.bodyEndHandler(tracer::outgoingResponseBodyEnd);
+        routingContext.addHeadersEndHandler(tracer::outgoingResponseHeadersEnd);
+        routingContext.addBodyEndHandler(tracer::outgoingResponseBodyEnd);
         if (!isHTTP2) {
             sres.headers().add("keep-alive", keepAliveHeaderValue);
             sres.headers().add("connection", "keep-alive");
@@ -238,14 +302,14 @@ public class Proxy implements Handler<RoutingContext> {
             boolean isWebsocket = !isHTTP2 && "websocket".equals(sreqh.get("upgrade"));
             if (isWebsocket) {
                 MultiMap creqh = new CaseInsensitiveHeaders();
-                propagateRequestHeaders(isTls, chost, sreqh, origHost, creqh);
+                propagateRequestHeaders(routingContext, isTls, chost, sreqh, origHost, creqh);
                 if (nextHop.hostHeader != null) {
                     creqh.set("Host", nextHop.hostHeader);
                 } else {
                     creqh.remove("Host");
                 }
                 tracer.outgoingWebsocketInitial(creqh);
-                client.websocket(nextHop.socketPort, nextHop.socketHost, nextHop.uri, creqh, cws -> {
+                client.websocket(nextHop.socketPort, nextHop.clientHost(), nextHop.uri, creqh, cws -> {
                     // lol no headers copied
                     final boolean[] isClosed = {false};
                     ServerWebSocket sws = sreq.upgrade();
@@ -295,7 +359,7 @@ public class Proxy implements Handler<RoutingContext> {
             }
             String expectStr;
             state.expecting100 = null != (expectStr = sreq.headers().get("expect")) && expectStr.equalsIgnoreCase("100-continue");
-            HttpClientRequest creq = client.request(sreq.method(), nextHop.socketPort, nextHop.socketHost, nextHop.uri);
+            HttpClientRequest creq = client.request(sreq.method(), nextHop.socketPort, nextHop.clientHost(), nextHop.uri);
             creq.setRawMethod(sreq.rawMethod());
             creq.setTimeout(SECONDS.toMillis(clientReceiveTimeout));
             creq.handler(cres -> {
@@ -359,7 +423,7 @@ public class Proxy implements Handler<RoutingContext> {
                 }
             });
             MultiMap creqh = creq.headers();
-            propagateRequestHeaders(isTls, chost, sreqh, origHost, creqh);
+            propagateRequestHeaders(routingContext, isTls, chost, sreqh, origHost, creqh);
             if (nextHop.hostHeader != null) {
                 creq.setHost(nextHop.hostHeader);
             } else {
@@ -368,7 +432,14 @@ public class Proxy implements Handler<RoutingContext> {
             if (sreqh.getAll("transfer-encoding").stream().anyMatch(v -> v.equals("chunked"))) {
                 creq.setChunked(true);
             }
+            final TrafficMirror.Copy mirrorCopy = mirror != null ? mirror.start(routingContext, creq) : null;
+            if (mirrorCopy != null) {
+                routingContext.addBodyEndHandler(v -> mirrorCopy.abort());
+            }
             sres.closeHandler(v -> {
+                if (mirrorCopy != null) {
+                    mirrorCopy.abort();
+                }
                 if (!state.clientFinished) {
                     state.clientFinished = true;
                     tracer.incomingConnectionPrematurelyClosed();
@@ -395,6 +466,12 @@ public class Proxy implements Handler<RoutingContext> {
                     creq.end(routingContext.getBody());
                 }
                 tracer.incomingRequestEnd();
+                if (mirrorCopy != null) {
+                    if (body != null && body.length() > 0) {
+                        mirrorCopy.write(body);
+                    }
+                    mirrorCopy.end();
+                }
             } else {
                 sreq.endHandler(v -> {
                     state.requestComplete = true;
@@ -404,6 +481,9 @@ public class Proxy implements Handler<RoutingContext> {
                         // ignore - nothing can be done - the request is already complete/closed - TODO log?
                     }
                     tracer.incomingRequestEnd();
+                    if (mirrorCopy != null) {
+                        mirrorCopy.end();
+                    }
                 });
 
                 ReadStream<Buffer> sreqStream;
@@ -443,15 +523,30 @@ public class Proxy implements Handler<RoutingContext> {
                     log.info("Not expect-100");
                     sreqStream = sreq;
                 }
+                if (mirrorCopy != null) {
+                    sreqStream = mirrorCopy.tee(sreqStream);
+                }
                 pump.start(PumpStarter.Type.REQUEST, sreqStream, creq, tracer);
             }
         });
     }
 
-    private void propagateRequestHeaders(boolean isTls, String chost, MultiMap sreqh, String origHost, MultiMap creqh) {
+    private void propagateRequestHeaders(RoutingContext routingContext, boolean isTls, String chost, MultiMap sreqh, String origHost, MultiMap creqh) {
         copyEndToEndHeaders(sreqh, creqh);
         creqh.set("X-Host", origHost);
         creqh.set("X-Forwarded-For", chost);
         creqh.set("X-Forwarded-Proto", isTls ? "https" : "http");
+        if (clientCertHeaders) {
+            ClientCertificate clientCert = ClientCertificate.of(routingContext);
+            if (clientCert != null) {
+                creqh.set(clientCertSubjectHeader, clientCert.subject);
+                creqh.set(clientCertIssuerHeader, clientCert.issuer);
+                creqh.set(clientCertFingerprintHeader, clientCert.fingerprint);
+            } else {
+                creqh.remove(clientCertSubjectHeader);
+                creqh.remove(clientCertIssuerHeader);
+                creqh.remove(clientCertFingerprintHeader);
+            }
+        }
     }
 }
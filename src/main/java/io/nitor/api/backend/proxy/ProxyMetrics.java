@@ -0,0 +1,190 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.nitor.api.backend.metrics.LatencyHistogram;
+import org.HdrHistogram.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.nitor.api.backend.metrics.LatencyHistogram.HIGHEST_TRACKABLE_MICROS;
+import static java.lang.System.arraycopy;
+import static java.util.Collections.unmodifiableCollection;
+
+/**
+ * Latency histograms of the proxy phases of one route of a virtual host, per upstream.
+ */
+public class ProxyMetrics {
+    private static final Logger logger = LogManager.getLogger(ProxyMetrics.class);
+
+    private static final ConcurrentHashMap<String, ProxyMetrics> routes = new ConcurrentHashMap<>();
+
+    public enum Phase {
+        /** incoming request start to next hop resolved */
+        resolve,
+        /** outgoing request start to incoming response start */
+        ttfb,
+        /** incoming response start to outgoing response end */
+        body,
+        /** incoming request start to outgoing response end */
+        total,
+    }
+
+    static final Phase[] PHASES = Phase.values();
+
+    /**
+     * The virtual host of the route, or null
+     */
+    public final String virtualHost;
+    public final String route;
+    private volatile Upstream[] upstreams = new Upstream[0];
+    private boolean reporting;
+
+    ProxyMetrics(String virtualHost, String route) {
+        this.virtualHost = virtualHost;
+        this.route = route;
+    }
+
+    /**
+     * @param virtualHost the virtual host of the route, or null
+     */
+    public static ProxyMetrics forRoute(String virtualHost, String route) {
+        return routes.computeIfAbsent(virtualHost == null ? route : virtualHost + route, key -> new ProxyMetrics(virtualHost, route));
+    }
+
+    public static Collection<ProxyMetrics> allRoutes() {
+        return unmodifiableCollection(routes.values());
+    }
+
+    /**
+     * @return true for the first caller only, so that periodic reporting is started once per route.
+     */
+    synchronized boolean startReporting() {
+        if (reporting) {
+            return false;
+        }
+        reporting = true;
+        return true;
+    }
+
+    public Upstream[] upstreams() {
+        return upstreams;
+    }
+
+    Upstream upstream(String host, int port) {
+        for (Upstream upstream : upstreams) {
+            if (upstream.port == port && upstream.host.equals(host)) {
+                return upstream;
+            }
+        }
+        return addUpstream(host, port);
+    }
+
+    private synchronized Upstream addUpstream(String host, int port) {
+        Upstream[] old = upstreams;
+        for (Upstream upstream : old) {
+            if (upstream.port == port && upstream.host.equals(host)) {
+                return upstream;
+            }
+        }
+        Upstream[] updated = new Upstream[old.length + 1];
+        arraycopy(old, 0, updated, 0, old.length);
+        Upstream upstream = new Upstream(host, port);
+        updated[old.length] = upstream;
+        upstreams = updated;
+        return upstream;
+    }
+
+    public void logInterval() {
+        StringBuilder sb = new StringBuilder(256);
+        for (Upstream upstream : upstreams) {
+            Histogram[] intervals = new Histogram[PHASES.length];
+            for (Phase phase : PHASES) {
+                intervals[phase.ordinal()] = upstream.sinceLastLog(phase);
+            }
+            if (intervals[Phase.total.ordinal()].getTotalCount() == 0) {
+                continue;
+            }
+            sb.setLength(0);
+            sb.append("Proxy latency ").append(virtualHost == null ? "" : virtualHost).append(route).append(" -> ").append(upstream.host).append(':').append(upstream.port);
+            for (Phase phase : PHASES) {
+                Histogram h = intervals[phase.ordinal()];
+                sb.append("\n\t").append(phase).append(": n=").append(h.getTotalCount())
+                        .append(" p50=").append(h.getValueAtPercentile(50)).append("us")
+                        .append(" p99=").append(h.getValueAtPercentile(99)).append("us")
+                        .append(" p99.9=").append(h.getValueAtPercentile(99.9)).append("us")
+                        .append(" max=").append(h.getMaxValue()).append("us");
+            }
+            logger.info(sb);
+        }
+    }
+
+    public static class Upstream {
+        public final String host;
+        public final int port;
+        private final LatencyHistogram[] histograms = new LatencyHistogram[PHASES.length];
+        private final Histogram[] logged = new Histogram[PHASES.length];
+        private final LongAdder failures = new LongAdder();
+
+        Upstream(String host, int port) {
+            this.host = host;
+            this.port = port;
+            for (int i = 0; i < PHASES.length; ++i) {
+                histograms[i] = new LatencyHistogram();
+                logged[i] = new Histogram(HIGHEST_TRACKABLE_MICROS, 2);
+            }
+        }
+
+        void record(Phase phase, long nanos) {
+            histograms[phase.ordinal()].record(nanos);
+        }
+
+        void recordFailure() {
+            failures.increment();
+        }
+
+        /**
+         * @return the requests that got no complete response from the upstream
+         */
+        public long failures() {
+            return failures.sum();
+        }
+
+        public void collect() {
+            for (LatencyHistogram histogram : histograms) {
+                histogram.collect();
+            }
+        }
+
+        public LatencyHistogram histogram(Phase phase) {
+            return histograms[phase.ordinal()];
+        }
+
+        /**
+         * @return the values recorded since the previous call, independent of other collectors
+         */
+        synchronized Histogram sinceLastLog(Phase phase) {
+            Histogram interval = histograms[phase.ordinal()].collect(Histogram::copy);
+            interval.subtract(logged[phase.ordinal()]);
+            logged[phase.ordinal()].add(interval);
+            return interval;
+        }
+    }
+}
@@ -15,9 +15,14 @@
  */
 package io.nitor.api.backend.proxy;
 
+import io.netty.channel.unix.DomainSocketAddress;
+import io.nitor.api.backend.jfr.Jfr;
+import io.nitor.api.backend.jfr.JfrProxyTracer;
 import io.nitor.api.backend.proxy.Proxy.DefaultPumpStarter;
 import io.nitor.api.backend.proxy.Proxy.ProxyException;
 import io.nitor.api.backend.proxy.Proxy.RejectReason;
+import io.nitor.api.backend.tracing.Tracing;
+import io.nitor.api.backend.tracing.TracingProxyTracer;
 import io.vertx.core.Vertx;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
@@ -27,6 +32,11 @@ import io.vertx.ext.web.Router;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static io.nitor.vertx.util.DomainSocketChannelProvider.ensureAvailable;
 import static io.vertx.core.http.HttpVersion.HTTP_1_1;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -57,18 +67,72 @@ public class SetupProxy {
             route = route.substring(0, route.length() - 1);
         }
         final String proxyRoute = route;
-        final Proxy.Target proxyTarget = new Proxy.Target(proxyConf.getString("host"), proxyConf.getInteger("port"), prefix, proxyConf.getString("hostHeader"));
-        logger.info("Proxying {} to {}:{}/{}", route, proxyTarget.socketHost, proxyTarget.socketPort, proxyTarget.uri);
+        final Proxy.Target proxyTarget = target(proxyConf, prefix);
+        if (proxyTarget.isDomainSocket()) {
+            logger.info("Proxying {} to unix domain socket {} at {}", route, proxyTarget.socketHost, proxyTarget.uri);
+        } else {
+            logger.info("Proxying {} to {}:{}/{}", route, proxyTarget.socketHost, proxyTarget.socketPort, proxyTarget.uri);
+        }
+
+        List<Supplier<ProxyTracer>> tracers = new ArrayList<>();
+        JsonObject tailSampling = proxyConf.getJsonObject("tailSampling");
+        if (tailSampling != null) {
+            long slowThreshold = tailSampling.getLong("slowThreshold", 1000L);
+            int failedStatus = tailSampling.getInteger("failedStatus", 500);
+            tracers.add(() -> new TailSamplingProxyTracer(slowThreshold, failedStatus));
+        } else {
+            tracers.add(SimpleLogProxyTracer::new);
+        }
+        if (proxyConf.getBoolean("metrics", false)) {
+            ProxyMetrics metrics = ProxyMetrics.forRoute(proxyConf.getString("virtualHost"), proxyConf.getString("route"));
+            tracers.add(() -> new MetricsProxyTracer(metrics));
+            int logInterval = proxyConf.getInteger("metricsLogInterval", 60);
+            if (logInterval > 0 && metrics.startReporting()) {
+                vertx.setPeriodic(SECONDS.toMillis(logInterval), id -> metrics.logInterval());
+            }
+        }
+
+        FlightRecorder flightRecorder = FlightRecorder.instance();
+        if (flightRecorder != null) {
+            tracers.add(() -> new FlightRecorderProxyTracer(flightRecorder));
+        }
+        Tracing tracing = Tracing.instance();
+        if (tracing != null) {
+            String tracedRoute = proxyConf.getString("route");
+            tracers.add(() -> new TracingProxyTracer(tracing, tracedRoute));
+        }
+        if (Jfr.AVAILABLE) {
+            tracers.add(JfrProxyTracer::new);
+        }
+
+        Proxy.TargetResolver targetResolver = (routingContext, targetHandler) -> {
+            String suffix = routingContext.request().uri().substring(proxyRoute.length());
+            targetHandler.handle(proxyTarget.withSuffix(suffix));
+        };
+        PriorityClasses priorityClasses = PriorityClasses.instance();
+        if (priorityClasses != null) {
+            String className = proxyConf.getString("priorityClass");
+            int routeClass = priorityClasses.indexOf(className);
+            if (className != null && routeClass < 0) {
+                throw new IllegalArgumentException("Unknown priority class " + className + " for proxy route " + route);
+            }
+            PriorityScheduler scheduler = priorityClasses.forUpstream(proxyTarget.socketHost + ':' + proxyTarget.socketPort);
+            targetResolver = scheduler.admitting(routeClass, targetResolver);
+            tracers.add(() -> new PriorityScheduler.ReleasingTracer(scheduler));
+        }
 
         Proxy proxy = new Proxy(client,
-                (routingContext, targetHandler) -> {
-                    String suffix = routingContext.request().uri().substring(proxyRoute.length());
-                    targetHandler.handle(proxyTarget.withSuffix(suffix));
-                },
+                targetResolver,
                 serverOptions.getIdleTimeout(),
                 proxyConf.getInteger("clientReceiveTimeout", 300),
-                SimpleLogProxyTracer::new,
+                CompositeProxyTracer.combine(tracers),
                 new DefaultPumpStarter());
+        proxy.setClientCertHeaders(proxyConf.getBoolean("clientCertHeaders", false));
+
+        JsonObject mirrorConf = proxyConf.getJsonObject("mirror");
+        if (mirrorConf != null) {
+            proxy.setMirror(createMirror(vertx, proxyConf.getString("virtualHost"), proxyConf.getString("route"), proxyRoute, mirrorConf));
+        }
 
         router.route(proxyConf.getString("route")).handler(proxy::handle);
 
@@ -84,6 +148,10 @@ public class SetupProxy {
                             statusMsg = ex.getCause().getMessage();
                         } else if (ex.reason == RejectReason.noHostHeader) {
                             statusMsg = "Exhausted resources while trying to extract Host header from the request";
+                        } else if (ex.reason == RejectReason.queueFull) {
+                            statusMsg = "Too many requests waiting for the upstream";
+                        } else if (ex.reason == RejectReason.queueTimeout) {
+                            statusMsg = "Timed out waiting for the upstream";
                         }
                     }
                     routingContext.response().setStatusCode(statusCode);
@@ -95,4 +163,37 @@ public class SetupProxy {
             }
         });
     }
+
+    private static TrafficMirror createMirror(Vertx vertx, String virtualHost, String route, String proxyRoute, JsonObject mirrorConf) {
+        HttpClient client = vertx.createHttpClient(new HttpClientOptions()
+                .setConnectTimeout((int) SECONDS.toMillis(mirrorConf.getInteger("connectTimeout", 10)))
+                .setMaxPoolSize(mirrorConf.getInteger("maxPoolSize", 10))
+                .setMaxWaitQueueSize(mirrorConf.getInteger("maxWaitQueueSize", 50))
+                .setProtocolVersion(HTTP_1_1)
+                .setTryUseCompression(false));
+        String prefix = mirrorConf.getString("path", "/");
+        if (prefix.endsWith("/")) {
+            prefix = prefix.substring(0, prefix.length() - 1);
+        }
+        Proxy.Target target = target(mirrorConf, prefix);
+        double percentage = mirrorConf.getDouble("percentage", 100.0);
+        logger.info("Mirroring {}% of {} to {}:{}/{}", percentage, route, target.socketHost, target.socketPort, target.uri);
+        return new TrafficMirror(virtualHost, route, client, target, proxyRoute, percentage,
+                mirrorConf.getInteger("maxBodySize", 64 * 1024),
+                mirrorConf.getLong("maxBufferedBytes", 16L * 1024 * 1024),
+                mirrorConf.getInteger("timeout", 30));
+    }
+
+    /**
+     * @return the upstream at the <tt>socketPath</tt> of an unix domain socket if given, otherwise at <tt>host</tt> and <tt>port</tt>
+     * @throws IllegalStateException if the domain sockets are not supported on this platform
+     */
+    static Proxy.Target target(JsonObject conf, String prefix) {
+        String socketPath = conf.getString("socketPath");
+        if (socketPath != null) {
+            ensureAvailable(new DomainSocketAddress(socketPath));
+            return Proxy.Target.domainSocket(socketPath, prefix, conf.getString("hostHeader"));
+        }
+        return new Proxy.Target(conf.getString("host"), conf.getInteger("port"), prefix, conf.getString("hostHeader"));
+    }
 }
@@ -0,0 +1,281 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.ext.web.RoutingContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.time.Instant;
+import java.util.Arrays;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Records only the event types and timestamps of a request, and renders the full trace with headers to the log
+ * when the request turns out to be slow or fails. Other requests are discarded without formatting anything.
+ */
+public class TailSamplingProxyTracer extends SimpleLogProxyTracer {
+    private static final Logger log = LogManager.getLogger(TailSamplingProxyTracer.class);
+    private static final Event[] EVENTS = Event.values();
+
+    enum Event {
+        incomingRequestStart(LogType.sreq),
+        incomingRequestEnd(LogType.sreq),
+        incomingRequestException(LogType.sreq),
+        incomingConnectionPrematurelyClosed(LogType.sreq),
+        nextHopResolved(LogType.none),
+        outgoingRequestInitial(LogType.creq),
+        outgoingRequestException(LogType.creq),
+        incomingResponseStart(LogType.cres),
+        incomingResponseEnd(LogType.cres),
+        incomingResponseException(LogType.cres),
+        outgoingResponseInitial(LogType.sres),
+        outgoingResponseHeadersEnd(LogType.sres),
+        outgoingResponseBodyEnd(LogType.sres),
+        outgoingResponseException(LogType.sres),
+        outgoingWebsocketInitial(LogType.creq),
+        outgoingWebsocketException(LogType.sres),
+        websocketEstablished(LogType.none),
+        establishedWebsocketClosed(LogType.none),
+        establishedWebsocketException(LogType.none),
+        ;
+        final LogType logType;
+
+        Event(LogType logType) {
+            this.logType = logType;
+        }
+    }
+
+    private final long slowThresholdNanos;
+    private final int failedStatus;
+
+    private byte[] events = new byte[16];
+    private long[] times = new long[16];
+    private Throwable[] failures;
+    private int count;
+    private boolean failed;
+    private boolean done;
+    private boolean isTls;
+    private boolean isHTTP2;
+    private String chost;
+    private long startMillis;
+    private MultiMap websocketHeaders;
+
+    /**
+     * @param slowThresholdMillis requests taking longer are logged
+     * @param failedStatus requests with response status code this or higher are logged
+     */
+    public TailSamplingProxyTracer(long slowThresholdMillis, int failedStatus) {
+        this.slowThresholdNanos = MILLISECONDS.toNanos(slowThresholdMillis);
+        this.failedStatus = failedStatus;
+    }
+
+    private void record(Event event) {
+        record(event, null);
+    }
+
+    private void record(Event event, Throwable t) {
+        if (count == events.length) {
+            events = Arrays.copyOf(events, count * 2);
+            times = Arrays.copyOf(times, count * 2);
+        }
+        events[count] = (byte) event.ordinal();
+        times[count] = nanoTime();
+        if (t != null) {
+            failed = true;
+            if (failures == null) {
+                failures = new Throwable[events.length];
+            } else if (failures.length < events.length) {
+                failures = Arrays.copyOf(failures, events.length);
+            }
+            failures[count] = t;
+        }
+        ++count;
+    }
+
+    @Override
+    public void incomingRequestStart(RoutingContext ctx, boolean isTls, boolean isHTTP2, String chost, String reqId) {
+        this.ctx = ctx;
+        this.reqId = reqId;
+        this.isTls = isTls;
+        this.isHTTP2 = isHTTP2;
+        this.chost = chost;
+        this.startMillis = currentTimeMillis();
+        record(Event.incomingRequestStart);
+    }
+
+    @Override
+    public void incomingRequestEnd() {
+        record(Event.incomingRequestEnd);
+    }
+
+    @Override
+    public void incomingRequestException(Throwable t) {
+        record(Event.incomingRequestException, t);
+    }
+
+    @Override
+    public void incomingConnectionPrematurelyClosed() {
+        record(Event.incomingConnectionPrematurelyClosed);
+        failed = true;
+        complete();
+    }
+
+    @Override
+    public void nextHopResolved(Proxy.Target nextHop) {
+        this.nextHop = nextHop;
+        record(Event.nextHopResolved);
+    }
+
+    @Override
+    public void outgoingRequestInitial(HttpClientRequest creq) {
+        this.creq = creq;
+        record(Event.outgoingRequestInitial);
+    }
+
+    @Override
+    public void outgoingRequestException(Throwable t) {
+        record(Event.outgoingRequestException, t);
+    }
+
+    @Override
+    public void incomingResponseStart(HttpClientResponse cres) {
+        this.cres = cres;
+        record(Event.incomingResponseStart);
+    }
+
+    @Override
+    public void incomingResponseEnd() {
+        record(Event.incomingResponseEnd);
+    }
+
+    @Override
+    public void incomingResponseException(Throwable t) {
+        record(Event.incomingResponseException, t);
+    }
+
+    @Override
+    public void outgoingResponseInitial() {
+        record(Event.outgoingResponseInitial);
+    }
+
+    @Override
+    public void outgoingResponseHeadersEnd(Void v) {
+        record(Event.outgoingResponseHeadersEnd);
+    }
+
+    @Override
+    public void outgoingResponseBodyEnd(Void v) {
+        record(Event.outgoingResponseBodyEnd);
+        complete();
+    }
+
+    @Override
+    public void outgoingResponseException(Throwable t) {
+        record(Event.outgoingResponseException, t);
+        complete();
+    }
+
+    @Override
+    public void outgoingWebsocketInitial(MultiMap creqh) {
+        this.websocketHeaders = creqh;
+        record(Event.outgoingWebsocketInitial);
+    }
+
+    @Override
+    public void outgoingWebsocketException(Throwable t) {
+        record(Event.outgoingWebsocketException, t);
+    }
+
+    @Override
+    public void websocketEstablished() {
+        record(Event.websocketEstablished);
+        complete();
+    }
+
+    @Override
+    public void establishedWebsocketClosed() {
+        record(Event.establishedWebsocketClosed);
+    }
+
+    @Override
+    public void establishedWebsocketException(Throwable t) {
+        record(Event.establishedWebsocketException, t);
+    }
+
+    private void complete() {
+        if (done) {
+            return;
+        }
+        done = true;
+        long duration = times[count - 1] - times[0];
+        boolean failedStatus = ctx.response().getStatusCode() >= this.failedStatus;
+        if (failed || failedStatus || duration >= slowThresholdNanos) {
+            log.warn(render(failed || failedStatus ? "Failed" : "Slow", duration), firstFailure());
+        }
+    }
+
+    private Throwable firstFailure() {
+        if (failures != null) {
+            for (Throwable t : failures) {
+                if (t != null) {
+                    return t;
+                }
+            }
+        }
+        return null;
+    }
+
+    String render(String kind, long durationNanos) {
+        StringBuilder sb = new StringBuilder(2048);
+        sb.append(kind).append(" request [").append(reqId).append("] took ").append(NANOSECONDS.toMillis(durationNanos))
+                .append("ms, started at ").append(Instant.ofEpochMilli(startMillis)).append(':');
+        for (int i = 0; i < count; ++i) {
+            Event event = EVENTS[events[i]];
+            sb.append("\n+").append(NANOSECONDS.toMicros(times[i] - times[0])).append("us ")
+                    .append(event.logType.graphic).append(' ').append(event);
+            switch (event) {
+                case incomingRequestStart:
+                    sb.append(' ').append(incomingRequestMsgPrefix(isTls, isHTTP2, chost)).append(dumpSReq(ctx.request(), ""));
+                    break;
+                case outgoingRequestInitial:
+                    sb.append(" to ").append(nextHop.socketHost).append(':').append(nextHop.socketPort).append(':').append(dumpCReq(creq));
+                    break;
+                case incomingResponseStart:
+                    sb.append(dumpCRes(cres));
+                    break;
+                case outgoingResponseHeadersEnd:
+                    sb.append(dumpSRes(ctx.response(), ""));
+                    break;
+                case outgoingWebsocketInitial:
+                    sb.append(dumpCWebsocket(websocketHeaders));
+                    break;
+                default:
+            }
+            if (failures != null && i < failures.length && failures[i] != null) {
+                sb.append(": ").append(failures[i]);
+            }
+        }
+        return sb.toString();
+    }
+}
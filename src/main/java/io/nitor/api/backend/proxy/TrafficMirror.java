@@ -0,0 +1,259 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.nitor.vertx.util.ReadStreamWrapper;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.CaseInsensitiveHeaders;
+import io.vertx.core.http.ConnectionPoolTooBusyException;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.web.RoutingContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Collections.unmodifiableCollection;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Duplicates a sampled share of the proxied requests of a route to a shadow upstream and discards its responses.
+ * The copy of a request is buffered until the primary request body has been read and only then sent, so the shadow
+ * never adds latency or back-pressure to the primary exchange. Copies are dropped when their body exceeds
+ * <tt>maxBodySize</tt>, when the bytes buffered for all copies of the route would exceed <tt>maxBufferedBytes</tt>
+ * or when the connection pool to the shadow has no room left.
+ */
+public class TrafficMirror {
+    private static final Logger logger = LogManager.getLogger(TrafficMirror.class);
+
+    private static final ConcurrentHashMap<String, TrafficMirror> routes = new ConcurrentHashMap<>();
+
+    /** null if the route serves all hosts */
+    public final String virtualHost;
+    public final String route;
+    private final HttpClient client;
+    private final Proxy.Target target;
+    private final String routePrefix;
+    private final double percentage;
+    private final int maxBodySize;
+    private final long maxBufferedBytes;
+    private final int timeout;
+    private final AtomicLong buffered = new AtomicLong();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile boolean failing;
+
+    /**
+     * @param virtualHost the virtual host of the route, or null
+     * @param routePrefix the prefix of the incoming request uri that is replaced with the uri of the target
+     */
+    public TrafficMirror(String virtualHost, String route, HttpClient client, Proxy.Target target, String routePrefix, double percentage,
+                         int maxBodySize, long maxBufferedBytes, int timeout) {
+        this.virtualHost = virtualHost;
+        this.route = route;
+        this.client = client;
+        this.target = target;
+        this.routePrefix = routePrefix;
+        this.percentage = percentage;
+        this.maxBodySize = maxBodySize;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.timeout = timeout;
+        routes.put(virtualHost == null ? route : virtualHost + route, this);
+    }
+
+    public static Collection<TrafficMirror> allMirrors() {
+        return unmodifiableCollection(routes.values());
+    }
+
+    public long sent() {
+        return sent.sum();
+    }
+
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    public long failed() {
+        return failed.sum();
+    }
+
+    public long buffered() {
+        return buffered.get();
+    }
+
+    /**
+     * @param creq the outgoing primary request, whose method and headers are copied
+     * @return the copy to feed with the request body, or null if this request is not mirrored
+     */
+    Copy start(RoutingContext ctx, HttpClientRequest creq) {
+        if (ThreadLocalRandom.current().nextDouble() * 100 >= percentage) {
+            return null;
+        }
+        String uri = ctx.request().uri();
+        Proxy.Target copyTarget = target.withSuffix(uri.startsWith(routePrefix) ? uri.substring(routePrefix.length()) : uri);
+        return new Copy(copyTarget, creq.method(), ctx.request().rawMethod(), new CaseInsensitiveHeaders().addAll(creq.headers()));
+    }
+
+    private boolean reserve(int bytes) {
+        long current;
+        do {
+            current = buffered.get();
+            if (current + bytes > maxBufferedBytes) {
+                return false;
+            }
+        } while (!buffered.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    /**
+     * Copy of one request, only accessed from the event loop of the primary request.
+     */
+    class Copy {
+        private final Proxy.Target copyTarget;
+        private final HttpMethod method;
+        private final String rawMethod;
+        private final MultiMap headers;
+        private Buffer body;
+        private int reserved;
+        private boolean done;
+        private boolean completed;
+
+        Copy(Proxy.Target copyTarget, HttpMethod method, String rawMethod, MultiMap headers) {
+            this.copyTarget = copyTarget;
+            this.method = method;
+            this.rawMethod = rawMethod;
+            this.headers = headers;
+        }
+
+        /**
+         * @return the stream with the data also copied to this request
+         */
+        ReadStream<Buffer> tee(ReadStream<Buffer> stream) {
+            return new ReadStreamWrapper<Buffer>(stream) {
+                @Override
+                public ReadStream<Buffer> handler(Handler<Buffer> handler) {
+                    if (handler == null) {
+                        return super.handler(null);
+                    }
+                    return super.handler(data -> {
+                        write(data);
+                        handler.handle(data);
+                    });
+                }
+            };
+        }
+
+        void write(Buffer data) {
+            if (done) {
+                return;
+            }
+            int length = data.length();
+            if (reserved + length > maxBodySize || !reserve(length)) {
+                drop();
+                return;
+            }
+            reserved += length;
+            if (body == null) {
+                body = Buffer.buffer(length);
+            }
+            body.appendBuffer(data);
+        }
+
+        /**
+         * Sends the copy once the primary request body has been completely read.
+         */
+        void end() {
+            if (done) {
+                return;
+            }
+            done = true;
+            HttpClientRequest req = client.request(method, copyTarget.socketPort, copyTarget.clientHost(), copyTarget.uri, res -> {
+                res.exceptionHandler(t -> {});
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                release();
+                sent.increment();
+                if (failing) {
+                    failing = false;
+                    logger.info("Mirroring " + route + " recovered");
+                }
+            });
+            req.exceptionHandler(t -> {
+                if (completed) {
+                    return;
+                }
+                completed = true;
+                release();
+                if (t instanceof ConnectionPoolTooBusyException) {
+                    dropped.increment();
+                } else {
+                    failed.increment();
+                    if (!failing) {
+                        failing = true;
+                        logger.warn("Mirroring " + route + " failed: " + t);
+                    }
+                }
+            });
+            req.setRawMethod(rawMethod);
+            req.setTimeout(SECONDS.toMillis(timeout));
+            req.headers().setAll(headers);
+            if (copyTarget.hostHeader != null) {
+                req.setHost(copyTarget.hostHeader);
+            } else {
+                req.headers().remove("host");
+            }
+            if (body == null) {
+                req.end();
+            } else {
+                req.putHeader("content-length", Integer.toString(body.length()));
+                req.end(body);
+            }
+        }
+
+        /**
+         * Drops the copy unless it has already been sent.
+         */
+        void abort() {
+            if (!done) {
+                drop();
+            }
+        }
+
+        private void drop() {
+            done = true;
+            release();
+            dropped.increment();
+        }
+
+        private void release() {
+            buffered.addAndGet(-reserved);
+            reserved = 0;
+            body = null;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.routing;
+
+import java.util.function.Supplier;
+
+import static java.lang.System.arraycopy;
+
+/**
+ * Radix trie of paths. Each key is registered either as an exact path or as a path prefix, and a lookup
+ * returns the value of the exact match or of the longest matching prefix in one pass over the path.
+ * Not thread safe for modification, the tries are built before the http server is started.
+ */
+public class RadixTrie<V> {
+    private final Node<V> root = new Node<>("");
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public V get(String key, boolean prefix) {
+        Node<V> node = find(key);
+        if (node == null) {
+            return null;
+        }
+        return prefix ? node.prefixValue : node.exactValue;
+    }
+
+    public V computeIfAbsent(String key, boolean prefix, Supplier<V> supplier) {
+        Node<V> node = insert(key);
+        V value = prefix ? node.prefixValue : node.exactValue;
+        if (value == null) {
+            value = supplier.get();
+            put(node, prefix, value);
+        }
+        return value;
+    }
+
+    public void put(String key, boolean prefix, V value) {
+        put(insert(key), prefix, value);
+    }
+
+    private void put(Node<V> node, boolean prefix, V value) {
+        if ((prefix ? node.prefixValue : node.exactValue) == null) {
+            ++size;
+        }
+        if (prefix) {
+            node.prefixValue = value;
+        } else {
+            node.exactValue = value;
+        }
+    }
+
+    /**
+     * @return the value of the exact match of the path, or if there is none the value of the longest
+     * prefix of the path, or null
+     */
+    public V lookup(CharSequence path) {
+        Node<V> node = root;
+        V best = root.prefixValue;
+        int pos = 0;
+        int len = path.length();
+        while (pos < len) {
+            Node<V> child = node.child(path.charAt(pos));
+            if (child == null || !child.matches(path, pos)) {
+                return best;
+            }
+            node = child;
+            pos += child.label.length();
+            if (node.prefixValue != null) {
+                best = node.prefixValue;
+            }
+        }
+        return node.exactValue != null ? node.exactValue : best;
+    }
+
+    private Node<V> find(String key) {
+        Node<V> node = root;
+        int pos = 0;
+        while (pos < key.length()) {
+            Node<V> child = node.child(key.charAt(pos));
+            if (child == null || !child.matches(key, pos)) {
+                return null;
+            }
+            node = child;
+            pos += child.label.length();
+        }
+        return node;
+    }
+
+    private Node<V> insert(String key) {
+        Node<V> node = root;
+        int pos = 0;
+        while (pos < key.length()) {
+            Node<V> child = node.child(key.charAt(pos));
+            if (child == null) {
+                child = new Node<>(key.substring(pos));
+                node.addChild(child);
+                return child;
+            }
+            int common = child.commonPrefix(key, pos);
+            if (common < child.label.length()) {
+                child = node.split(child, common);
+            }
+            node = child;
+            pos += common;
+        }
+        return node;
+    }
+
+    private static final class Node<V> {
+        String label;
+        char[] firstChars = new char[0];
+        @SuppressWarnings("unchecked")
+        Node<V>[] children = (Node<V>[]) new Node<?>[0];
+        V exactValue;
+        V prefixValue;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node<V> child(char c) {
+            char[] chars = firstChars;
+            for (int i = 0; i < chars.length; ++i) {
+                if (chars[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        boolean matches(CharSequence path, int pos) {
+            String l = label;
+            int n = l.length();
+            if (path.length() - pos < n) {
+                return false;
+            }
+            for (int i = 1; i < n; ++i) {
+                if (path.charAt(pos + i) != l.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int commonPrefix(String key, int pos) {
+            int n = Math.min(label.length(), key.length() - pos);
+            int i = 0;
+            while (i < n && label.charAt(i) == key.charAt(pos + i)) {
+                ++i;
+            }
+            return i;
+        }
+
+        void addChild(Node<V> child) {
+            int n = children.length;
+            char[] chars = new char[n + 1];
+            @SuppressWarnings("unchecked")
+            Node<V>[] nodes = (Node<V>[]) new Node<?>[n + 1];
+            arraycopy(firstChars, 0, chars, 0, n);
+            arraycopy(children, 0, nodes, 0, n);
+            chars[n] = child.label.charAt(0);
+            nodes[n] = child;
+            firstChars = chars;
+            children = nodes;
+        }
+
+        /**
+         * Replaces the child with a new node holding the first {@code at} characters of its label.
+         */
+        Node<V> split(Node<V> child, int at) {
+            Node<V> parent = new Node<>(child.label.substring(0, at));
+            child.label = child.label.substring(at);
+            parent.addChild(child);
+            for (int i = 0; i < children.length; ++i) {
+                if (children[i] == child) {
+                    children[i] = parent;
+                }
+            }
+            return parent;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.routing;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compiled routing table of the proxy, static and S3 routes, mounted on the main router as a single route.
+ * A request is dispatched by a hash lookup of its <tt>Host</tt> header followed by a {@link RadixTrie} lookup of
+ * its path to the sub router of the entry with the longest matching path, so the routing cost does not grow with
+ * the number of configured routes. Entries without a virtual host serve all the hosts that have no matching entry
+ * of their own.
+ * <p>
+ * The sub routers are run with {@link Router#handleContext}, requests they do not handle continue on the main router.
+ * Middleware that passes every request on, like the customize scripts, stays on the main router before the table,
+ * as a single entry per request could not run them all.
+ */
+public class RoutingTable implements Handler<RoutingContext> {
+    private static final String CTX_KEY = "_routing_table_router";
+
+    private final Vertx vertx;
+    private final RadixTrie<Router> defaultHost = new RadixTrie<>();
+    private final Map<String, RadixTrie<Router>> virtualHosts = new HashMap<>();
+
+    public RoutingTable(Vertx vertx) {
+        this.vertx = vertx;
+    }
+
+    /**
+     * @param virtualHost the host name the entry serves, or null for all hosts
+     * @param path the route path of the entry in vert.x syntax, a trailing <tt>*</tt> matches all paths under it
+     * @return the sub router to register the handlers of the entry on
+     */
+    public Router route(String virtualHost, String path) {
+        RadixTrie<Router> paths = virtualHost == null ? defaultHost
+                : virtualHosts.computeIfAbsent(virtualHost.toLowerCase(Locale.ROOT), h -> new RadixTrie<>());
+        if (path == null) {
+            path = "/*";
+        }
+        int param = path.indexOf(':');
+        boolean prefix = path.endsWith("*") || param >= 0;
+        String key = param >= 0 ? path.substring(0, param) : prefix ? path.substring(0, path.length() - 1) : path;
+        Router router = paths.computeIfAbsent(key, prefix, () -> Router.router(vertx));
+        // vert.x matches "/foo/*" also with "/foo" and "/foo" also with "/foo/"
+        if (key.length() > 1 && key.endsWith("/")) {
+            paths.computeIfAbsent(key.substring(0, key.length() - 1), false, () -> router);
+        } else if (!prefix) {
+            paths.computeIfAbsent(key + "/", false, () -> router);
+        }
+        return router;
+    }
+
+    public void mount(Router router) {
+        router.route("/*").handler(this).failureHandler(this::handleFailure);
+    }
+
+    /**
+     * @return the sub router of the entry matching the host and path, or null
+     */
+    public Router lookup(String host, String path) {
+        if (!virtualHosts.isEmpty() && host != null) {
+            RadixTrie<Router> paths = virtualHosts.get(hostName(host));
+            if (paths != null) {
+                Router router = paths.lookup(path);
+                if (router != null) {
+                    return router;
+                }
+            }
+        }
+        return defaultHost.lookup(path);
+    }
+
+    @Override
+    public void handle(RoutingContext ctx) {
+        Router router = lookup(ctx.request().host(), ctx.normalisedPath());
+        if (router == null) {
+            ctx.next();
+            return;
+        }
+        ctx.put(CTX_KEY, router);
+        router.handleContext(ctx);
+    }
+
+    private void handleFailure(RoutingContext ctx) {
+        Router router = ctx.get(CTX_KEY);
+        if (router == null) {
+            ctx.next();
+            return;
+        }
+        router.handleFailure(ctx);
+    }
+
+    /**
+     * @return the host header without the port, in lower case
+     */
+    static String hostName(String host) {
+        int end = host.length();
+        int colon = host.lastIndexOf(':');
+        if (colon >= 0 && host.indexOf(']') < colon) {
+            end = colon;
+        }
+        for (int i = 0; i < end; ++i) {
+            char c = host.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                return host.substring(0, end).toLowerCase(Locale.ROOT);
+            }
+        }
+        return end == host.length() ? host : host.substring(0, end);
+    }
+}
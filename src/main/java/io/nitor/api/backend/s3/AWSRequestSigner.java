@@ -18,6 +18,8 @@ package io.nitor.api.backend.s3;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSSessionCredentials;
+import io.nitor.api.backend.jfr.Jfr;
+import io.nitor.api.backend.jfr.S3SigningEvent;
 import io.vertx.core.MultiMap;
 import io.vertx.core.http.HttpClientRequest;
 import io.vertx.core.http.HttpServerRequest;
@@ -98,6 +100,7 @@ public class AWSRequestSigner {
     }
 
     public void copyHeadersAndSign(HttpServerRequest sreq, HttpClientRequest creq, byte[] body) {
+        S3SigningEvent event = Jfr.AVAILABLE ? S3SigningEvent.start() : null;
         MessageDigest sha256 = SHA256_POOL.get();
         String contentHash;
         if (body == null) {
@@ -156,6 +159,9 @@ public class AWSRequestSigner {
                 .append(signature);
 
         headers.set(AUTHORIZATION, sb.toString());
+        if (event != null) {
+            event.finish(creq.method().name(), creq.path(), body != null);
+        }
     }
 
     private void putHeader(MultiMap headers, StringBuilder canonicalHeaders, StringBuilder signedHeaders, String name, String value) {
@@ -20,6 +20,7 @@ import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
 import com.amazonaws.regions.DefaultAwsRegionProviderChain;
+import io.nitor.api.backend.metrics.LatencyHistogram;
 import io.vertx.core.Handler;
 import io.vertx.core.MultiMap;
 import io.vertx.core.Vertx;
@@ -35,35 +36,43 @@ import io.vertx.ext.web.RoutingContext;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 import static io.netty.handler.codec.http.HttpResponseStatus.BAD_REQUEST;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
 import static io.vertx.core.http.HttpVersion.HTTP_1_1;
+import static java.lang.Math.min;
 import static java.lang.System.getenv;
+import static java.lang.System.nanoTime;
+import static java.util.Collections.unmodifiableMap;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public class S3Handler implements Handler<RoutingContext> {
     private static final Logger logger = LogManager.getLogger(S3Handler.class);
+    private static final ConcurrentHashMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private static final long MAX_REGION_RETRY_DELAY = 60;
 
-    private final String s3Host;
     private final String basePath;
     private final HttpClient http;
-    private final AWSRequestSigner signer;
+    private final AWSCredentialsProvider secretsProvider;
     private final int routeLength;
+    private final LatencyHistogram latency;
+    private String s3Host;
+    private AWSRequestSigner signer;
+    /** requests received before the region was resolved, null once resolved */
+    private List<RoutingContext> waiting;
 
     public S3Handler(Vertx vertx, JsonObject conf, int routeLength) {
         this.routeLength = routeLength;
-
-        String region = conf.getString("region");
-        if (region == null) {
-            region = new DefaultAwsRegionProviderChain().getRegion();
-        }
-        this.s3Host = ("us-east-1".equals(region) ? "s3" : "s3-" + region) + ".amazonaws.com";
+        this.latency = latencies.computeIfAbsent(conf.getString("path"), k -> new LatencyHistogram());
 
         String bucket = conf.getString("bucket");
         basePath = '/' + bucket + '/' + conf.getString("basePath", "");
 
-        AWSCredentialsProvider secretsProvider;
         String accessKey = conf.getString("accessKey");
         String secretKey = conf.getString("secretKey");
         if (accessKey != null && secretKey != null) {
@@ -72,8 +81,6 @@ public class S3Handler implements Handler<RoutingContext> {
             secretsProvider = new DefaultAWSCredentialsProviderChain();
         }
 
-        signer = new AWSRequestSigner(region, s3Host, secretsProvider);
-
         http = vertx.createHttpClient(new HttpClientOptions()
                 .setConnectTimeout((int) SECONDS.toMillis(conf.getInteger("connectTimeout", 5)))
                 .setIdleTimeout((int) SECONDS.toSeconds(conf.getInteger("idleTimeout", 60)))
@@ -84,10 +91,53 @@ public class S3Handler implements Handler<RoutingContext> {
                 .setProtocolVersion(HTTP_1_1)
                 .setMaxRedirects(5)
                 .setTryUseCompression(false));
+
+        String region = conf.getString("region");
+        if (region != null) {
+            setRegion(region);
+        } else {
+            // may query the instance metadata service, so it is done in parallel with the rest of the startup
+            waiting = new ArrayList<>();
+            resolveRegion(vertx, bucket, 1);
+        }
+    }
+
+    /**
+     * Resolves the region until it succeeds, the requests received while it fails are rejected with 503.
+     *
+     * @param retryDelay seconds to wait before the next attempt if this one fails
+     */
+    private void resolveRegion(Vertx vertx, String bucket, long retryDelay) {
+        vertx.<String>executeBlocking(f -> f.complete(new DefaultAwsRegionProviderChain().getRegion()), false, ar -> {
+            List<RoutingContext> requests = waiting;
+            waiting = null;
+            if (ar.succeeded()) {
+                setRegion(ar.result());
+            } else {
+                logger.error("Could not resolve the region of bucket " + bucket + ", retrying in " + retryDelay + "s", ar.cause());
+                vertx.setTimer(SECONDS.toMillis(retryDelay), id -> resolveRegion(vertx, bucket, min(retryDelay * 2, MAX_REGION_RETRY_DELAY)));
+            }
+            if (requests != null) {
+                requests.forEach(this::handle);
+            }
+        });
+    }
+
+    private void setRegion(String region) {
+        s3Host = ("us-east-1".equals(region) ? "s3" : "s3-" + region) + ".amazonaws.com";
+        signer = new AWSRequestSigner(region, s3Host, secretsProvider);
     }
 
     @Override
     public void handle(RoutingContext ctx) {
+        if (signer == null) {
+            if (waiting != null) {
+                waiting.add(ctx);
+            } else {
+                ctx.response().setStatusCode(SERVICE_UNAVAILABLE.code()).end();
+            }
+            return;
+        }
         HttpServerRequest sreq = ctx.request();
         String path = sreq.path();
         if (path.contains("../")) {
@@ -105,6 +155,8 @@ public class S3Handler implements Handler<RoutingContext> {
                 HttpClientRequest creq = http.get(s3Host, path);
                 prepareRequest(sreq, creq);
                 HttpServerResponse sres = ctx.response();
+                long start = nanoTime();
+                ctx.addBodyEndHandler(v -> latency.record(nanoTime() - start));
                 sres.closeHandler(close -> creq.connection().close());
                 creq.handler(cres -> mapResponse(cres, sres));
                 creq.end();
@@ -114,6 +166,10 @@ public class S3Handler implements Handler<RoutingContext> {
         }
     }
 
+    public static Map<String, LatencyHistogram> latencies() {
+        return unmodifiableMap(latencies);
+    }
+
     private void prepareRequest(HttpServerRequest sreq, HttpClientRequest creq) {
         signer.copyHeadersAndSign(sreq, creq, null);
     }
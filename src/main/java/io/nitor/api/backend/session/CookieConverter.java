@@ -15,6 +15,8 @@
  */
 package io.nitor.api.backend.session;
 
+import io.nitor.api.backend.jfr.CookieDecryptEvent;
+import io.nitor.api.backend.jfr.Jfr;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.logging.Logger;
 import io.vertx.core.logging.LoggerFactory;
@@ -26,6 +28,7 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Stream;
 
 import static io.nitor.api.backend.session.ByteHelpers.*;
@@ -49,6 +52,8 @@ public class CookieConverter {
 
     private static final ConcurrentHashMap<String, StatelessSession> cookieCache = new ConcurrentHashMap<>();
     private static final AtomicInteger cachePutCount = new AtomicInteger();
+    private static final LongAdder cacheHits = new LongAdder();
+    private static final LongAdder cacheMisses = new LongAdder();
 
     private final String cookieName;
     private final Encryptor encryptor;
@@ -109,11 +114,14 @@ public class CookieConverter {
         String value = cookie.getValue();
         StatelessSession session = cookieCache.get(value);
         if (session != null) {
+            cacheHits.increment();
             return new StatelessSession(session);
         }
+        cacheMisses.increment();
 
         session = new StatelessSession();
 
+        CookieDecryptEvent event = Jfr.AVAILABLE ? CookieDecryptEvent.start() : null;
         try {
             byte[] encrypted = BASE64DEC.decode(value);
             byte[] decrypted = encryptor.decrypt(encrypted);
@@ -132,8 +140,14 @@ public class CookieConverter {
             }
         } catch (Exception ex) {
             LOG.warn("Invalid cookie", ex);
+            if (event != null) {
+                event.finish(value.length(), false);
+            }
             return null;
         }
+        if (event != null) {
+            event.finish(value.length(), true);
+        }
 
         cookieCache.put(value, new StatelessSession(session));
         if (cachePutCount.incrementAndGet() > maxCacheSize) {
@@ -159,6 +173,18 @@ public class CookieConverter {
         return map;
     }
 
+    public static long cacheHits() {
+        return cacheHits.sum();
+    }
+
+    public static long cacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    public static int cacheSize() {
+        return cookieCache.size();
+    }
+
     public StatelessSession getSession(Iterable<Cookie> cookies) {
         for (Cookie cookie : cookies) {
             if (cookieName.equals(cookie.getName())) {
@@ -55,6 +55,14 @@ public class CookieSessionHandler {
         return ofNullable(getSession(ctx)).filter(StatelessSession::isValid).map(s -> s.sessionData).orElse(null);
     }
 
+    /**
+     * @return the data of the valid session already resolved for the request, or null
+     */
+    public static Map<String, String> currentSessionData(RoutingContext ctx) {
+        StatelessSession session = ctx.get(CTX_KEY);
+        return session != null && session.isValid() ? session.sessionData : null;
+    }
+
     private StatelessSession getSession(RoutingContext ctx) {
         StatelessSession session = ctx.get(CTX_KEY);
         if (session != null) {
@@ -0,0 +1,169 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.handler.ssl.SslHandler;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.net.impl.ConnectionBase;
+import io.vertx.ext.web.RoutingContext;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import java.lang.reflect.Field;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Identity of a verified client certificate. The chain is parsed once per TLS session and the result is stored in
+ * the session, so that the requests of the connection and of resumed sessions reuse it. Handlers get it with
+ * {@link #of(RoutingContext)}, which also caches it in the routing context under {@link #CONTEXT_KEY}.
+ */
+public final class ClientCertificate {
+    private static final Logger logger = LogManager.getLogger(ClientCertificate.class);
+
+    public static final String CONTEXT_KEY = "clientCertificate";
+    private static final String SESSION_KEY = ClientCertificate.class.getName();
+    private static final ClientCertificate NONE = new ClientCertificate(null, null, null, new String[0]);
+    private static final Field channelField = channelField();
+
+    /** subject distinguished name of the client certificate */
+    public final String subject;
+    /** issuer distinguished name of the client certificate */
+    public final String issuer;
+    /** lower case hex encoded SHA-256 of the DER encoded client certificate */
+    public final String fingerprint;
+    /** subject distinguished names of the presented chain, client certificate first */
+    public final List<String> chainSubjects;
+
+    ClientCertificate(String subject, String issuer, String fingerprint, String[] chainSubjects) {
+        this.subject = subject;
+        this.issuer = issuer;
+        this.fingerprint = fingerprint;
+        this.chainSubjects = unmodifiableList(asList(chainSubjects));
+    }
+
+    /**
+     * @return the client certificate of the request, or null if the request is not over TLS or the client did not
+     * present a verified certificate
+     */
+    public static ClientCertificate of(RoutingContext routingContext) {
+        ClientCertificate cert = routingContext.get(CONTEXT_KEY);
+        if (cert == null) {
+            cert = lookup(routingContext.request());
+            routingContext.put(CONTEXT_KEY, cert);
+        }
+        return cert == NONE ? null : cert;
+    }
+
+    /**
+     * @see #of(RoutingContext)
+     */
+    public static ClientCertificate of(HttpServerRequest request) {
+        ClientCertificate cert = lookup(request);
+        return cert == NONE ? null : cert;
+    }
+
+    private static ClientCertificate lookup(HttpServerRequest request) {
+        if (!request.isSSL()) {
+            return NONE;
+        }
+        SSLSession session = session(request);
+        if (session == null) {
+            return NONE;
+        }
+        ClientCertificate cert = (ClientCertificate) session.getValue(SESSION_KEY);
+        if (cert == null) {
+            cert = parse(session);
+            session.putValue(SESSION_KEY, cert);
+        }
+        return cert;
+    }
+
+    private static SSLSession session(HttpServerRequest request) {
+        if (channelField == null || !(request.connection() instanceof ConnectionBase)) {
+            return null;
+        }
+        try {
+            Channel channel = (Channel) channelField.get(request.connection());
+            ChannelHandler handler = channel.pipeline().get("ssl");
+            return handler instanceof SslHandler ? ((SslHandler) handler).engine().getSession() : null;
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    static ClientCertificate parse(SSLSession session) {
+        Certificate[] chain;
+        try {
+            chain = session.getPeerCertificates();
+        } catch (SSLPeerUnverifiedException e) {
+            return NONE;
+        }
+        if (chain == null || chain.length == 0 || !(chain[0] instanceof X509Certificate)) {
+            return NONE;
+        }
+        return parse(chain);
+    }
+
+    static ClientCertificate parse(Certificate[] chain) {
+        X509Certificate leaf = (X509Certificate) chain[0];
+        String[] chainSubjects = new String[chain.length];
+        for (int i = 0; i < chain.length; ++i) {
+            chainSubjects[i] = ((X509Certificate) chain[i]).getSubjectDN().getName();
+        }
+        return new ClientCertificate(chainSubjects[0], leaf.getIssuerDN().getName(), fingerprint(leaf), chainSubjects);
+    }
+
+    private static String fingerprint(X509Certificate cert) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+            throw new IllegalStateException("Could not fingerprint client certificate", e);
+        }
+    }
+
+    private static Field channelField() {
+        try {
+            Field f = ConnectionBase.class.getDeclaredField("channel");
+            f.setAccessible(true);
+            return f;
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Client certificates are not available: " + e);
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ClientCertificate[subject=" + subject + ", issuer=" + issuer + ", sha256=" + fingerprint + "]";
+    }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.ApplicationProtocolNegotiator;
+import io.netty.handler.ssl.SslContext;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+import java.util.List;
+
+/**
+ * Passes the engines of the wrapped context through {@link #configure(SSLEngine)}. Unlike
+ * {@link io.netty.handler.ssl.DelegatingSslContext} the engine may also be replaced with a wrapper.
+ */
+abstract class ConfiguringSslContext extends SslContext {
+    private final SslContext context;
+
+    ConfiguringSslContext(SslContext context) {
+        this.context = context;
+    }
+
+    /**
+     * @return the engine to use, either the given one or a wrapper of it
+     */
+    protected abstract SSLEngine configure(SSLEngine engine);
+
+    @Override
+    public boolean isClient() {
+        return context.isClient();
+    }
+
+    @Override
+    public List<String> cipherSuites() {
+        return context.cipherSuites();
+    }
+
+    @Override
+    public long sessionCacheSize() {
+        return context.sessionCacheSize();
+    }
+
+    @Override
+    public long sessionTimeout() {
+        return context.sessionTimeout();
+    }
+
+    @Override
+    public ApplicationProtocolNegotiator applicationProtocolNegotiator() {
+        return context.applicationProtocolNegotiator();
+    }
+
+    @Override
+    public SSLEngine newEngine(ByteBufAllocator alloc) {
+        return configure(context.newEngine(alloc));
+    }
+
+    @Override
+    public SSLEngine newEngine(ByteBufAllocator alloc, String peerHost, int peerPort) {
+        return configure(context.newEngine(alloc, peerHost, peerPort));
+    }
+
+    @Override
+    public SSLSessionContext sessionContext() {
+        return context.sessionContext();
+    }
+}
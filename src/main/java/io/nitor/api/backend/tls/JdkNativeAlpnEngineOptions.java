@@ -0,0 +1,31 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.vertx.core.net.SSLEngineOptions;
+
+/**
+ * Selects the JDK SSL engine with ALPN negotiated by the JVM itself, see
+ * {@link io.netty.handler.ssl.JdkNativeAlpnSslEngine}. Vert.x refuses ALPN with {@link
+ * io.vertx.core.net.JdkSSLEngineOptions} unless the jetty alpn classes are loaded, so the engines are wrapped by
+ * {@link SniKeyCertOptions#configureEngines} instead.
+ */
+public class JdkNativeAlpnEngineOptions extends SSLEngineOptions {
+    @Override
+    public SSLEngineOptions clone() {
+        return new JdkNativeAlpnEngineOptions();
+    }
+}
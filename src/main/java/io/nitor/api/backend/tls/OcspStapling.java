@@ -0,0 +1,341 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.netty.handler.ssl.ReferenceCountedOpenSslContext;
+import io.netty.handler.ssl.SslContext;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.DERIA5String;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.CertException;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.RuntimeOperatorException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URI;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static java.lang.System.currentTimeMillis;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.bouncycastle.asn1.x509.AccessDescription.id_ad_ocsp;
+
+/**
+ * Staples an OCSP response for the server certificate to the handshakes, so that clients need not ask the
+ * responder of the certificate authority themselves. The response is fetched in the background, cached until its
+ * <tt>nextUpdate</tt> and refreshed half way there. While the responder can not be reached the handshakes go on
+ * without a stapled response, or with the cached one if it has not expired yet.
+ * <p>
+ * Netty can only staple with the OpenSSL engine, and since the response is set before the client hello has been
+ * read, only when there is a single certificate for clients without SNI. The JDK engine can staple on its own with
+ * <tt>-Djdk.tls.server.enableStatusRequestExtension=true</tt>, but it fetches the responses during the handshake.
+ */
+public class OcspStapling {
+    private static final Logger logger = LogManager.getLogger(OcspStapling.class);
+
+    private static final long DEFAULT_MAX_AGE = HOURS.toMillis(1);
+
+    private final Vertx vertx;
+    private final SniKeyManager keyManager;
+    private final HttpClient client;
+    private final URI responderUrl;
+    private final long timeoutMillis;
+    private final long checkMillis;
+    private volatile Staple staple;
+    private boolean fetching;
+    private X509Certificate unsupported;
+
+    OcspStapling(Vertx vertx, SniKeyManager keyManager, JsonObject conf) {
+        this.vertx = vertx;
+        this.keyManager = keyManager;
+        this.client = vertx.createHttpClient(new HttpClientOptions().setKeepAlive(false));
+        String url = conf.getString("responderUrl");
+        this.responderUrl = url == null ? null : URI.create(url);
+        this.timeoutMillis = SECONDS.toMillis(conf.getInteger("timeout", 10));
+        this.checkMillis = SECONDS.toMillis(conf.getInteger("checkInterval", 60));
+    }
+
+    /**
+     * @return null if stapling is not configured
+     */
+    public static OcspStapling setup(Vertx vertx, SniKeyManager keyManager, JsonObject tls) {
+        JsonObject conf = tls.getJsonObject("ocsp");
+        if (conf == null) {
+            return null;
+        }
+        return new OcspStapling(vertx, keyManager, conf);
+    }
+
+    /**
+     * Turns on stapling in the SSL context of the server and starts fetching the responses, must be called before
+     * any engines are created.
+     *
+     * @return false if the engine does not support stapling
+     */
+    boolean enable(SslContext sslContext) {
+        if (!(sslContext instanceof ReferenceCountedOpenSslContext)) {
+            logger.warn("OCSP stapling requires the OpenSSL engine, handshakes go on without stapled responses");
+            return false;
+        }
+        try {
+            Field enableOcsp = ReferenceCountedOpenSslContext.class.getDeclaredField("enableOcsp");
+            enableOcsp.setAccessible(true);
+            enableOcsp.setBoolean(sslContext, true);
+            Field ctx = ReferenceCountedOpenSslContext.class.getDeclaredField("ctx");
+            ctx.setAccessible(true);
+            Class.forName("io.netty.internal.tcnative.SSLContext")
+                    .getMethod("enableOcsp", long.class, boolean.class)
+                    .invoke(null, ctx.getLong(sslContext), false);
+        } catch (ReflectiveOperationException e) {
+            logger.warn("Failed to enable OCSP stapling in the OpenSSL engine", e);
+            return false;
+        }
+        refresh();
+        vertx.setPeriodic(checkMillis, id -> refresh());
+        return true;
+    }
+
+    /**
+     * @return the response to staple for the current certificate, or null if there is no valid one
+     */
+    byte[] response() {
+        Staple s = staple;
+        X509Certificate[] chain = keyManager.defaultChain();
+        if (s == null || chain == null || !s.cert.equals(chain[0]) || currentTimeMillis() >= s.expires) {
+            return null;
+        }
+        return s.response;
+    }
+
+    void refresh() {
+        X509Certificate[] chain = keyManager.defaultChain();
+        if (fetching || chain == null) {
+            return;
+        }
+        Staple s = staple;
+        if (s != null && s.cert.equals(chain[0]) && currentTimeMillis() < s.refreshAt) {
+            return;
+        }
+        X509Certificate cert = chain[0];
+        URI uri = responderUrl != null ? responderUrl : responderUri(cert);
+        if (chain.length < 2 || uri == null) {
+            if (!cert.equals(unsupported)) {
+                unsupported = cert;
+                logger.warn("Not stapling OCSP responses for " + cert.getSubjectX500Principal()
+                        + ", it needs the issuer in the certificate chain and an OCSP responder url");
+            }
+            return;
+        }
+        X509Certificate issuer = chain[1];
+        CertificateID certId;
+        byte[] request;
+        try {
+            certId = certId(cert, issuer);
+            request = encodeRequest(certId);
+        } catch (IOException e) {
+            logger.warn("Failed to create OCSP request for " + cert.getSubjectX500Principal(), e);
+            return;
+        }
+        fetching = true;
+        HttpClientRequest req = client.postAbs(uri.toString(), resp -> resp.bodyHandler(body -> {
+            fetching = false;
+            if (resp.statusCode() != 200) {
+                failed(uri, new IOException("HTTP status " + resp.statusCode()));
+                return;
+            }
+            try {
+                staple = parse(cert, issuer, certId, body.getBytes(), currentTimeMillis());
+                logger.info("Stapling OCSP response for " + cert.getSubjectX500Principal() + " until " + new Date(staple.expires));
+            } catch (IOException e) {
+                failed(uri, e);
+            }
+        }).exceptionHandler(e -> {
+            fetching = false;
+            failed(uri, e);
+        }));
+        req.exceptionHandler(e -> {
+            fetching = false;
+            failed(uri, e);
+        });
+        req.setTimeout(timeoutMillis)
+                .putHeader("content-type", "application/ocsp-request")
+                .putHeader("accept", "application/ocsp-response")
+                .end(Buffer.buffer(request));
+    }
+
+    private void failed(URI uri, Throwable e) {
+        Staple s = staple;
+        logger.warn("Failed to fetch OCSP response from " + uri + (s == null ? "" : ", using the cached one until " + new Date(s.expires)), e);
+    }
+
+    /**
+     * @return the OCSP responder url in the authority information access extension of the certificate, or null
+     */
+    static URI responderUri(X509Certificate cert) {
+        byte[] extension = cert.getExtensionValue(Extension.authorityInfoAccess.getId());
+        if (extension == null) {
+            return null;
+        }
+        AuthorityInformationAccess aia = AuthorityInformationAccess.getInstance(ASN1OctetString.getInstance(extension).getOctets());
+        for (AccessDescription description : aia.getAccessDescriptions()) {
+            GeneralName location = description.getAccessLocation();
+            if (id_ad_ocsp.equals(description.getAccessMethod()) && location.getTagNo() == GeneralName.uniformResourceIdentifier) {
+                return URI.create(DERIA5String.getInstance(location.getName()).getString());
+            }
+        }
+        return null;
+    }
+
+    static CertificateID certId(X509Certificate cert, X509Certificate issuer) throws IOException {
+        try {
+            return new CertificateID(new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+                    new JcaX509CertificateHolder(issuer), cert.getSerialNumber());
+        } catch (OperatorCreationException | CertificateEncodingException | OCSPException e) {
+            throw new IOException("Failed to identify " + cert.getSubjectX500Principal(), e);
+        }
+    }
+
+    /**
+     * @return a request for the status of one certificate, without a nonce so that the responder can cache the response
+     */
+    static byte[] encodeRequest(CertificateID certId) throws IOException {
+        try {
+            return new OCSPReqBuilder().addRequest(certId).build().getEncoded();
+        } catch (OCSPException e) {
+            throw new IOException("Failed to encode OCSP request", e);
+        }
+    }
+
+    static Staple parse(X509Certificate cert, X509Certificate issuer, CertificateID certId, byte[] der, long now) throws IOException {
+        OCSPResp response = new OCSPResp(der);
+        if (response.getStatus() != OCSPResp.SUCCESSFUL) {
+            throw new IOException("OCSP response status " + response.getStatus());
+        }
+        BasicOCSPResp basic;
+        try {
+            basic = (BasicOCSPResp) response.getResponseObject();
+        } catch (OCSPException | ClassCastException e) {
+            throw new IOException("Unsupported OCSP response", e);
+        }
+        if (basic == null) {
+            throw new IOException("Empty OCSP response");
+        }
+        verifySigner(basic, issuer, now);
+        SingleResp single = null;
+        for (SingleResp r : basic.getResponses()) {
+            if (certId.equals(r.getCertID())) {
+                single = r;
+            }
+        }
+        if (single == null) {
+            throw new IOException("OCSP response does not cover " + cert.getSubjectX500Principal());
+        }
+        if (single.getCertStatus() != CertificateStatus.GOOD) {
+            throw new IOException("OCSP certificate status " + single.getCertStatus().getClass().getSimpleName() + " for " + cert.getSubjectX500Principal());
+        }
+        long expires = single.getNextUpdate() == null ? now + DEFAULT_MAX_AGE : single.getNextUpdate().getTime();
+        if (expires <= now) {
+            throw new IOException("OCSP response expired at " + single.getNextUpdate());
+        }
+        return new Staple(cert, der, expires, now + (expires - now) / 2);
+    }
+
+    /**
+     * Checks that the response is signed by the issuer, or by a responder certificate the issuer has delegated
+     * OCSP signing to, so that a man in the middle of the responder connection can not get forged responses stapled.
+     */
+    static void verifySigner(BasicOCSPResp basic, X509Certificate issuer, long now) throws IOException {
+        try {
+            JcaContentVerifierProviderBuilder verifiers = new JcaContentVerifierProviderBuilder();
+            ContentVerifierProvider issuerVerifier = verifiers.build(issuer.getPublicKey());
+            X509CertificateHolder issuerCert = new JcaX509CertificateHolder(issuer);
+            if (signedBy(basic.getResponderId(), issuerCert)) {
+                if (basic.isSignatureValid(issuerVerifier)) {
+                    return;
+                }
+            } else {
+                for (X509CertificateHolder responder : basic.getCerts()) {
+                    if (signedBy(basic.getResponderId(), responder)
+                            && responder.getIssuer().equals(issuerCert.getSubject())
+                            && responder.isValidOn(new Date(now))
+                            && isOcspSigner(responder)
+                            && responder.isSignatureValid(issuerVerifier)
+                            && basic.isSignatureValid(verifiers.build(responder))) {
+                        return;
+                    }
+                }
+            }
+        } catch (OCSPException | CertException | OperatorCreationException | RuntimeOperatorException | CertificateException e) {
+            // a signature of the wrong length for the key fails with an exception instead of false
+            throw new IOException("Failed to verify the OCSP response signature", e);
+        }
+        throw new IOException("OCSP response is not signed by " + issuer.getSubjectX500Principal() + " or a responder it has delegated to");
+    }
+
+    private static boolean signedBy(RespID responderId, X509CertificateHolder cert) throws OperatorCreationException, OCSPException {
+        return responderId.equals(new RespID(cert.getSubject()))
+                || responderId.equals(new RespID(cert.getSubjectPublicKeyInfo(), new JcaDigestCalculatorProviderBuilder().build().get(RespID.HASH_SHA1)));
+    }
+
+    private static boolean isOcspSigner(X509CertificateHolder cert) {
+        ExtendedKeyUsage usage = ExtendedKeyUsage.fromExtensions(cert.getExtensions());
+        return usage != null && usage.hasKeyPurposeId(KeyPurposeId.id_kp_OCSPSigning);
+    }
+
+    static final class Staple {
+        final X509Certificate cert;
+        final byte[] response;
+        final long expires;
+        final long refreshAt;
+
+        Staple(X509Certificate cert, byte[] response, long expires, long refreshAt) {
+            this.cert = cert;
+            this.response = response;
+            this.expires = expires;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
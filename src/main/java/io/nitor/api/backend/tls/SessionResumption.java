@@ -0,0 +1,127 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.impl.HttpServerImpl;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+
+import static java.lang.System.currentTimeMillis;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.copyOfRange;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Configures TLS session resumption of the http server: the size and lifetime of the session cache, and with the
+ * OpenSSL engine the keys of the session tickets. The ticket keys are derived from a secret read from
+ * <tt>ticketKeyFile</tt> and the current rotation period, so all instances sharing the file encrypt tickets with the
+ * same key and rotate it at the same time without coordination. The keys of the previous and the next period are
+ * accepted for decryption to allow for clock skew between the instances.
+ * <p>
+ * The JDK engine keeps its ticket keys to itself, so with it only the session cache is configured.
+ */
+public class SessionResumption {
+    private static final Logger logger = LogManager.getLogger(SessionResumption.class);
+
+    private static final int MIN_SECRET_LENGTH = 32;
+
+    private final Vertx vertx;
+    private final SSLSessionContext sessionContext;
+    private final Path ticketKeyFile;
+    private final long rotationMillis;
+    private long period = -1;
+
+    SessionResumption(Vertx vertx, SSLSessionContext sessionContext, JsonObject tls) {
+        this.vertx = vertx;
+        this.sessionContext = sessionContext;
+        String file = tls.getString("ticketKeyFile");
+        this.ticketKeyFile = file == null ? null : Paths.get(file);
+        this.rotationMillis = SECONDS.toMillis(tls.getInteger("ticketKeyRotation", (int) HOURS.toSeconds(12)));
+    }
+
+    /**
+     * Called once the server is listening and its SSL context has been created.
+     */
+    public static void setup(Vertx vertx, HttpServer server, JsonObject tls) {
+        SslContext sslContext = ((HttpServerImpl) server).getSslHelper().getContext((VertxInternal) vertx);
+        SSLSessionContext sessionContext = sslContext.sessionContext();
+        sessionContext.setSessionCacheSize(tls.getInteger("sessionCacheSize", 20_000));
+        sessionContext.setSessionTimeout(tls.getInteger("sessionTimeout", (int) HOURS.toSeconds(24)));
+        SessionResumption resumption = new SessionResumption(vertx, sessionContext, tls);
+        if (resumption.ticketKeyFile == null) {
+            return;
+        }
+        if (!(sessionContext instanceof OpenSslSessionContext)) {
+            logger.warn("Session ticket keys can only be set with the OpenSSL engine, ignoring " + resumption.ticketKeyFile);
+            return;
+        }
+        resumption.rotate();
+    }
+
+    private void rotate() {
+        long now = currentTimeMillis();
+        long current = now / rotationMillis;
+        try {
+            byte[] secret = Files.readAllBytes(ticketKeyFile);
+            if (secret.length < MIN_SECRET_LENGTH) {
+                throw new GeneralSecurityException("Ticket key file must contain at least " + MIN_SECRET_LENGTH + " bytes");
+            }
+            ((OpenSslSessionContext) sessionContext).setTicketKeys(
+                    ticketKey(secret, current), ticketKey(secret, current - 1), ticketKey(secret, current + 1));
+            if (period != current) {
+                logger.info("Session ticket keys rotated to period " + current);
+            }
+            period = current;
+        } catch (IOException | GeneralSecurityException e) {
+            logger.error("Failed to set session ticket keys from " + ticketKeyFile + ", keeping the previous keys", e);
+        }
+        vertx.setTimer((current + 1) * rotationMillis - now, id -> rotate());
+    }
+
+    static OpenSslSessionTicketKey ticketKey(byte[] secret, long period) throws GeneralSecurityException {
+        byte[] key = derive(secret, period);
+        int name = OpenSslSessionTicketKey.NAME_SIZE;
+        int hmac = name + OpenSslSessionTicketKey.HMAC_KEY_SIZE;
+        int aes = hmac + OpenSslSessionTicketKey.AES_KEY_SIZE;
+        return new OpenSslSessionTicketKey(copyOfRange(key, 0, name), copyOfRange(key, name, hmac), copyOfRange(key, hmac, aes));
+    }
+
+    /**
+     * @return 64 bytes of key material for the rotation period
+     */
+    static byte[] derive(byte[] secret, long period) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA512");
+        mac.init(new SecretKeySpec(secret, "HmacSHA512"));
+        return mac.doFinal(("nitor-backend session ticket key " + period).getBytes(UTF_8));
+    }
+}
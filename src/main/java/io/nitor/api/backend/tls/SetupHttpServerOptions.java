@@ -15,11 +15,11 @@
  */
 package io.nitor.api.backend.tls;
 
+import io.netty.handler.ssl.JdkNativeAlpnSslEngine;
 import io.vertx.core.http.HttpServerOptions;
 import io.vertx.core.json.JsonObject;
 import io.vertx.core.net.JdkSSLEngineOptions;
 import io.vertx.core.net.OpenSSLEngineOptions;
-import io.vertx.core.net.PemKeyCertOptions;
 import io.vertx.core.net.PemTrustOptions;
 
 import java.util.List;
@@ -31,12 +31,12 @@ import static java.util.Arrays.asList;
 import static java.util.concurrent.TimeUnit.MINUTES;
 
 public class SetupHttpServerOptions {
-    // syntax is in JVM SSL format
+    // syntax is in JVM SSL format, in order of preference: ECDSA handshakes are cheaper when there is an ECDSA certificate
     private static final List<String> cipherSuites = asList(
-            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
             "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
-            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
-            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384"
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384"
     );
 
     public static HttpServerOptions createHttpServerOptions(JsonObject config) {
@@ -47,6 +47,7 @@ public class SetupHttpServerOptions {
                 .setCompressionSupported(false) // otherwise it automatically compresses based on response headers even if pre-compressed with e.g. proxy
                 .setUsePooledBuffers(true)
                 .setCompressionLevel(2)
+                .setAcceptBacklog(config.getInteger("acceptBacklog", -1))
                 .setIdleTimeout(config.getInteger("idleTimeout", (int) MINUTES.toSeconds(10)));
 
         if (!config.getBoolean("http2", true)) {
@@ -56,10 +57,8 @@ public class SetupHttpServerOptions {
         if (tls != null) {
             httpOptions
                     .setSsl(true)
-                    // server side certificate
-                    .setPemKeyCertOptions(new PemKeyCertOptions()
-                            .setKeyPath(tls.getString("serverKey"))
-                            .setCertPath(tls.getString("serverCert")))
+                    // server side certificates, selected by SNI and reloaded when changed
+                    .setKeyCertOptions(new SniKeyCertOptions(new SniKeyManager(tls)))
                     // TLS tuning
                     .addEnabledSecureTransportProtocol("TLSv1.2")
                     .addEnabledSecureTransportProtocol("TLSv1.3");
@@ -79,9 +78,17 @@ public class SetupHttpServerOptions {
                 cipherSuites.stream().map(SetupHttpServerOptions::javaCipherNameToOpenSSLName)
                         .forEach(httpOptions::addEnabledCipherSuite);
             } else {
-                httpOptions
-                        .setUseAlpn(DynamicAgent.enableJettyAlpn())
-                        .setJdkSslEngineOptions(new JdkSSLEngineOptions());
+                boolean http2 = config.getBoolean("http2", true);
+                if (http2 && JdkNativeAlpnSslEngine.isAvailable()) {
+                    httpOptions
+                            .setUseAlpn(true)
+                            .setSslEngineOptions(new JdkNativeAlpnEngineOptions());
+                } else {
+                    // attaching the jetty alpn agent to ourselves takes long, so only do it if http2 is wanted
+                    httpOptions
+                            .setUseAlpn(http2 && DynamicAgent.enableJettyAlpn())
+                            .setJdkSslEngineOptions(new JdkSSLEngineOptions());
+                }
                 cipherSuites.forEach(httpOptions::addEnabledCipherSuite);
             }
         }
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.netty.handler.ssl.JdkNativeAlpnSslEngine;
+import io.netty.handler.ssl.JdkSslContext;
+import io.netty.handler.ssl.ReferenceCountedOpenSslEngine;
+import io.netty.handler.ssl.SslContext;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.core.http.impl.HttpServerImpl;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.net.KeyCertOptions;
+import io.vertx.core.net.impl.SSLHelper;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.KeyManagerFactorySpi;
+import javax.net.ssl.ManagerFactoryParameters;
+import javax.net.ssl.SNIMatcher;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.lang.reflect.Field;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static javax.net.ssl.StandardConstants.SNI_HOST_NAME;
+
+/**
+ * Plugs the {@link SniKeyManager} into the SSL context vert.x creates for the http server.
+ */
+public class SniKeyCertOptions implements KeyCertOptions {
+    private static final Provider PROVIDER = new KeyManagerProvider();
+
+    private static final SNIMatcher ANY_HOST_NAME = new SNIMatcher(SNI_HOST_NAME) {
+        @Override
+        public boolean matches(SNIServerName serverName) {
+            return true;
+        }
+    };
+
+    private final SniKeyManager keyManager;
+
+    public SniKeyCertOptions(SniKeyManager keyManager) {
+        this.keyManager = keyManager;
+    }
+
+    public SniKeyManager keyManager() {
+        return keyManager;
+    }
+
+    @Override
+    public KeyCertOptions clone() {
+        return new SniKeyCertOptions(keyManager);
+    }
+
+    @Override
+    public KeyManagerFactory getKeyManagerFactory(Vertx vertx) {
+        keyManager.startReloading(vertx);
+        return new KeyManagerFactory(new KeyManagerFactorySpi() {
+            @Override
+            protected void engineInit(KeyStore ks, char[] password) {
+            }
+
+            @Override
+            protected void engineInit(ManagerFactoryParameters spec) {
+            }
+
+            @Override
+            protected KeyManager[] engineGetKeyManagers() {
+                return new KeyManager[] { keyManager };
+            }
+        }, PROVIDER, "") {
+        };
+    }
+
+    /**
+     * Placeholder provider for the key manager factory, which only hands out the {@link SniKeyManager}.
+     */
+    private static final class KeyManagerProvider extends Provider {
+        private static final long serialVersionUID = 1L;
+
+        KeyManagerProvider() {
+            super("", 0.0, "");
+        }
+    }
+
+    /**
+     * The JDK engine only keeps the host name of the client hello around for the key manager if it has been given
+     * a matcher for it, and by default it follows the cipher suite order of the client instead of preferring the
+     * ECDSA suites. The OpenSSL engine needs the OCSP response to staple before the handshake. With
+     * {@link JdkNativeAlpnEngineOptions} the JDK engines are wrapped to negotiate ALPN. Vert.x has no hook for
+     * configuring its engines, so the SSL context of the server is wrapped before the server starts listening.
+     *
+     * @param ocsp null if OCSP stapling is not configured
+     */
+    public static void configureEngines(Vertx vertx, HttpServer server, HttpServerOptions options, OcspStapling ocsp) {
+        SSLHelper sslHelper = ((HttpServerImpl) server).getSslHelper();
+        boolean nativeAlpn = options.isUseAlpn() && options.getSslEngineOptions() instanceof JdkNativeAlpnEngineOptions;
+        if (options.isUseAlpn() && !nativeAlpn) {
+            // vert.x only sets these when it starts listening, after the context has been created here
+            sslHelper.setApplicationProtocols(options.getAlpnVersions());
+        }
+        SslContext sslContext = sslHelper.getContext((VertxInternal) vertx);
+        boolean jdk = sslContext instanceof JdkSslContext;
+        boolean stapling = ocsp != null && ocsp.enable(sslContext);
+        if (!jdk && !stapling) {
+            return;
+        }
+        List<String> alpnProtocols = options.getAlpnVersions().stream().map(SniKeyCertOptions::alpnName).collect(toList());
+        try {
+            Field field = SSLHelper.class.getDeclaredField("sslContext");
+            field.setAccessible(true);
+            field.set(sslHelper, new ConfiguringSslContext(sslContext) {
+                @Override
+                protected SSLEngine configure(SSLEngine engine) {
+                    if (jdk) {
+                        SSLParameters params = engine.getSSLParameters();
+                        params.setSNIMatchers(singletonList(ANY_HOST_NAME));
+                        params.setUseCipherSuitesOrder(true);
+                        engine.setSSLParameters(params);
+                    }
+                    if (stapling) {
+                        byte[] response = ocsp.response();
+                        if (response != null) {
+                            ((ReferenceCountedOpenSslEngine) engine).setOcspResponse(response);
+                        }
+                    }
+                    return nativeAlpn ? JdkNativeAlpnSslEngine.wrap(engine, alpnProtocols) : engine;
+                }
+            });
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to configure the SSL engines", e);
+        }
+    }
+
+    private static String alpnName(HttpVersion version) {
+        switch (version) {
+            case HTTP_2:
+                return "h2";
+            case HTTP_1_0:
+                return "http/1.0";
+            default:
+                return "http/1.1";
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.X509ExtendedKeyManager;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.Locale.ROOT;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.net.ssl.StandardConstants.SNI_HOST_NAME;
+
+/**
+ * Server side key manager that picks the certificate chain by the host name the client asked for with SNI. A host
+ * can have both an RSA and an ECDSA certificate, the engine asks for the key type of the cipher suite it is trying
+ * and the server prefers the ECDSA suites. Unknown host names and clients without SNI get the certificates of
+ * <tt>serverCert</tt>, and of the other entries sharing its host names.
+ * <p>
+ * The PEM files are checked for changes every <tt>reloadInterval</tt> seconds. New handshakes use the reloaded
+ * certificates, established connections keep the ones they were set up with.
+ * <p>
+ * The OpenSSL engine of netty asks for the key material before it has read the client hello, so with it the SNI host
+ * name is not known and the default certificates are always used.
+ */
+public class SniKeyManager extends X509ExtendedKeyManager {
+    private static final Logger logger = LogManager.getLogger(SniKeyManager.class);
+
+    private static final String[] NO_ALIASES = new String[0];
+
+    private final List<CertificateFiles> files;
+    private final long reloadMillis;
+    private volatile KeyMaterial current;
+    /** aliases chosen just before a reload must still resolve when the handshake asks for the key */
+    private volatile KeyMaterial previous;
+    private boolean reloading;
+
+    public SniKeyManager(JsonObject tls) {
+        this.files = new ArrayList<>();
+        files.add(new CertificateFiles(tls));
+        JsonArray certificates = tls.getJsonArray("certificates", new JsonArray());
+        for (int i = 0; i < certificates.size(); ++i) {
+            files.add(new CertificateFiles(certificates.getJsonObject(i)));
+        }
+        this.reloadMillis = SECONDS.toMillis(tls.getInteger("reloadInterval", 60));
+        try {
+            current = load(0);
+        } catch (IOException | GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to load server certificates", e);
+        }
+        previous = current;
+    }
+
+    /**
+     * Starts polling the certificate files for changes, subsequent calls do nothing.
+     */
+    synchronized void startReloading(Vertx vertx) {
+        if (reloading || reloadMillis <= 0) {
+            return;
+        }
+        reloading = true;
+        vertx.setPeriodic(reloadMillis, id -> vertx.executeBlocking(fut -> {
+            reloadIfChanged();
+            fut.complete();
+        }, false, null));
+    }
+
+    void reloadIfChanged() {
+        KeyMaterial old = current;
+        boolean changed = false;
+        for (int i = 0; i < files.size(); ++i) {
+            long[] lastModified = files.get(i).lastModified();
+            if (lastModified == null) {
+                return;
+            }
+            changed |= !Arrays.equals(lastModified, old.lastModified[i]);
+        }
+        if (!changed) {
+            return;
+        }
+        try {
+            KeyMaterial loaded = load(old.generation + 1);
+            previous = old;
+            current = loaded;
+            logger.info("Reloaded server certificates for " + loaded.byName.keySet());
+        } catch (IOException | GeneralSecurityException e) {
+            logger.error("Failed to reload server certificates, keeping the previous ones", e);
+        }
+    }
+
+    private KeyMaterial load(int generation) throws IOException, GeneralSecurityException {
+        List<Credential> credentials = new ArrayList<>(files.size());
+        long[][] lastModified = new long[files.size()][];
+        for (int i = 0; i < files.size(); ++i) {
+            CertificateFiles f = files.get(i);
+            lastModified[i] = f.lastModified();
+            credentials.add(f.load("sni-" + generation + "-" + i));
+        }
+        return new KeyMaterial(generation, credentials, lastModified);
+    }
+
+    /**
+     * @return the certificate chain used when the host name is not known, or null if there are several of them
+     */
+    X509Certificate[] defaultChain() {
+        Credential[] fallback = current.fallback;
+        return fallback.length == 1 ? fallback[0].chain : null;
+    }
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        for (Credential credential : current.forHost(requestedHostName(engine.getHandshakeSession()))) {
+            if (credential.keyType.equals(keyType)) {
+                return credential.alias;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        for (Credential credential : current.fallback) {
+            if (credential.keyType.equals(keyType)) {
+                return credential.alias;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        List<String> aliases = new ArrayList<>();
+        for (Credential credential : current.byAlias.values()) {
+            if (credential.keyType.equals(keyType)) {
+                aliases.add(credential.alias);
+            }
+        }
+        return aliases.isEmpty() ? null : aliases.toArray(NO_ALIASES);
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        Credential credential = credential(alias);
+        return credential == null ? null : credential.chain.clone();
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        Credential credential = credential(alias);
+        return credential == null ? null : credential.key;
+    }
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return null;
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
+        return null;
+    }
+
+    private Credential credential(String alias) {
+        Credential credential = current.byAlias.get(alias);
+        return credential != null ? credential : previous.byAlias.get(alias);
+    }
+
+    static String requestedHostName(SSLSession session) {
+        if (!(session instanceof ExtendedSSLSession)) {
+            return null;
+        }
+        for (SNIServerName name : ((ExtendedSSLSession) session).getRequestedServerNames()) {
+            if (name.getType() == SNI_HOST_NAME) {
+                SNIHostName hostName = name instanceof SNIHostName ? (SNIHostName) name : new SNIHostName(name.getEncoded());
+                return hostName.getAsciiName().toLowerCase(ROOT);
+            }
+        }
+        return null;
+    }
+
+    static final class KeyMaterial {
+        final int generation;
+        final long[][] lastModified;
+        final Map<String, Credential> byAlias = new HashMap<>();
+        final Map<String, Credential[]> byName = new HashMap<>();
+        final Credential[] fallback;
+
+        KeyMaterial(int generation, List<Credential> credentials, long[][] lastModified) {
+            this.generation = generation;
+            this.lastModified = lastModified;
+            Map<String, List<Credential>> names = new HashMap<>();
+            for (Credential credential : credentials) {
+                byAlias.put(credential.alias, credential);
+                for (String name : credential.names) {
+                    names.computeIfAbsent(name, n -> new ArrayList<>()).add(credential);
+                }
+            }
+            names.forEach((name, list) -> byName.put(name, list.toArray(new Credential[list.size()])));
+            Set<Credential> defaults = new LinkedHashSet<>();
+            Credential first = credentials.get(0);
+            defaults.add(first);
+            for (String name : first.names) {
+                defaults.addAll(names.get(name));
+            }
+            this.fallback = defaults.toArray(new Credential[defaults.size()]);
+        }
+
+        Credential[] forHost(String host) {
+            if (host == null) {
+                return fallback;
+            }
+            Credential[] credentials = byName.get(host);
+            if (credentials == null) {
+                int dot = host.indexOf('.');
+                if (dot > 0) {
+                    credentials = byName.get("*" + host.substring(dot));
+                }
+            }
+            return credentials == null ? fallback : credentials;
+        }
+    }
+
+    static final class Credential {
+        final String alias;
+        final Collection<String> names;
+        final String keyType;
+        final PrivateKey key;
+        final X509Certificate[] chain;
+
+        Credential(String alias, Collection<String> names, PrivateKey key, X509Certificate[] chain) {
+            this.alias = alias;
+            this.names = names;
+            this.keyType = key.getAlgorithm();
+            this.key = key;
+            this.chain = chain;
+        }
+    }
+
+    static final class CertificateFiles {
+        final Path keyPath;
+        final Path certPath;
+        final JsonArray hostNames;
+
+        CertificateFiles(JsonObject conf) {
+            this.keyPath = Paths.get(conf.getString("serverKey"));
+            this.certPath = Paths.get(conf.getString("serverCert"));
+            this.hostNames = conf.getJsonArray("hostNames");
+        }
+
+        long[] lastModified() {
+            try {
+                return new long[] { Files.getLastModifiedTime(keyPath).toMillis(), Files.getLastModifiedTime(certPath).toMillis() };
+            } catch (IOException e) {
+                // a renewal may be replacing the files right now, try again on the next round
+                return null;
+            }
+        }
+
+        Credential load(String alias) throws IOException, GeneralSecurityException {
+            List<X509Certificate> chain = new ArrayList<>();
+            CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
+            for (byte[] der : pems(certPath, "CERTIFICATE")) {
+                chain.add((X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(der)));
+            }
+            String algorithm = chain.get(0).getPublicKey().getAlgorithm();
+            PrivateKey key = KeyFactory.getInstance(algorithm)
+                    .generatePrivate(new PKCS8EncodedKeySpec(pems(keyPath, "PRIVATE KEY").get(0)));
+            if (!keyMatches(key, chain.get(0))) {
+                // a renewal may have replaced only one of the files so far
+                throw new GeneralSecurityException("Private key " + keyPath + " does not match the certificate " + certPath);
+            }
+            Collection<String> names = new LinkedHashSet<>();
+            if (hostNames != null) {
+                for (Object name : hostNames) {
+                    names.add(name.toString().toLowerCase(ROOT));
+                }
+            } else {
+                names.addAll(certificateNames(chain.get(0)));
+            }
+            return new Credential(alias, names, key, chain.toArray(new X509Certificate[chain.size()]));
+        }
+    }
+
+    /**
+     * @return whether the key signs data that the public key of the certificate verifies
+     */
+    static boolean keyMatches(PrivateKey key, X509Certificate cert) throws GeneralSecurityException {
+        String algorithm = "RSA".equals(key.getAlgorithm()) ? "SHA256withRSA" : "SHA256withECDSA";
+        byte[] data = cert.getSerialNumber().toByteArray();
+        Signature signer = Signature.getInstance(algorithm);
+        signer.initSign(key);
+        signer.update(data);
+        byte[] signature = signer.sign();
+        Signature verifier = Signature.getInstance(algorithm);
+        verifier.initVerify(cert.getPublicKey());
+        verifier.update(data);
+        return verifier.verify(signature);
+    }
+
+    /**
+     * @return the DNS names of the subject alternative names, or the common name if there are none
+     */
+    static Collection<String> certificateNames(X509Certificate cert) throws GeneralSecurityException {
+        Collection<String> names = new LinkedHashSet<>();
+        Collection<List<?>> altNames = cert.getSubjectAlternativeNames();
+        if (altNames != null) {
+            for (List<?> altName : altNames) {
+                if (Integer.valueOf(2).equals(altName.get(0))) {
+                    names.add(altName.get(1).toString().toLowerCase(ROOT));
+                }
+            }
+        }
+        if (names.isEmpty()) {
+            try {
+                for (Rdn rdn : new LdapName(cert.getSubjectX500Principal().getName()).getRdns()) {
+                    if (rdn.getType().equalsIgnoreCase("CN")) {
+                        names.add(rdn.getValue().toString().toLowerCase(ROOT));
+                    }
+                }
+            } catch (InvalidNameException e) {
+                throw new GeneralSecurityException("Invalid certificate subject " + cert.getSubjectX500Principal(), e);
+            }
+        }
+        return names;
+    }
+
+    private static List<byte[]> pems(Path file, String type) throws IOException {
+        String pem = new String(Files.readAllBytes(file), US_ASCII);
+        String begin = "-----BEGIN " + type + "-----";
+        String end = "-----END " + type + "-----";
+        List<byte[]> ders = new ArrayList<>();
+        for (int start = pem.indexOf(begin); start >= 0; start = pem.indexOf(begin, start)) {
+            start += begin.length();
+            int stop = pem.indexOf(end, start);
+            if (stop < 0) {
+                throw new IOException("Missing " + end + " in " + file);
+            }
+            ders.add(Base64.getMimeDecoder().decode(pem.substring(start, stop)));
+            start = stop + end.length();
+        }
+        if (ders.isEmpty()) {
+            throw new IOException("No " + begin + " in " + file);
+        }
+        return ders;
+    }
+}
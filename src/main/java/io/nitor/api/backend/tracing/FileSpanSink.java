@@ -0,0 +1,80 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.file.Path;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Appends the span batches to a file in the OTLP/JSON file format read by the OpenTelemetry collector.
+ */
+class FileSpanSink implements SpanSink {
+    private final Path file;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+    private final CharsetEncoder encoder = UTF_8.newEncoder();
+    private FileChannel channel;
+
+    FileSpanSink(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public void open() throws IOException {
+        channel = FileChannel.open(file, CREATE, WRITE, APPEND);
+    }
+
+    @Override
+    public void write(CharSequence batch, int spans) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(batch);
+        encoder.reset();
+        while (encoder.encode(chars, out, true).isOverflow()) {
+            flush();
+        }
+        flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    private void flush() throws IOException {
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        } finally {
+            out.clear();
+        }
+    }
+}
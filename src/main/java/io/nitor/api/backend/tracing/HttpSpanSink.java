@@ -0,0 +1,121 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import io.netty.channel.unix.DomainSocketAddress;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.URI;
+
+import static io.nitor.vertx.util.DomainSocketChannelProvider.clientHost;
+import static io.nitor.vertx.util.DomainSocketChannelProvider.ensureAvailable;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Posts the span batches to an OTLP/HTTP collector, either over TCP or through an unix domain socket. The posts
+ * are made on a vert.x context, batches that do not fit in the wait queue of the single connection are dropped.
+ */
+class HttpSpanSink implements SpanSink {
+    private static final Logger logger = LogManager.getLogger(HttpSpanSink.class);
+
+    private final Context context;
+    private final HttpClient client;
+    private final String host;
+    private final int port;
+    private final String path;
+    private final String hostHeader;
+    private boolean failing;
+
+    HttpSpanSink(Vertx vertx, JsonObject conf) {
+        String socketPath = conf.getString("socketPath");
+        boolean ssl = false;
+        if (socketPath != null) {
+            DomainSocketAddress address = new DomainSocketAddress(socketPath);
+            ensureAvailable(address);
+            host = clientHost(address);
+            port = 0;
+            path = conf.getString("path", "/v1/traces");
+            hostHeader = "localhost";
+        } else {
+            URI uri = URI.create(conf.getString("url"));
+            ssl = "https".equals(uri.getScheme());
+            host = uri.getHost();
+            port = uri.getPort() > 0 ? uri.getPort() : ssl ? 443 : 80;
+            path = uri.getRawPath();
+            hostHeader = null;
+        }
+        client = vertx.createHttpClient(new HttpClientOptions()
+                .setSsl(ssl)
+                .setMaxPoolSize(1)
+                .setMaxWaitQueueSize(conf.getInteger("maxPendingBatches", 8)));
+        context = vertx.getOrCreateContext();
+    }
+
+    @Override
+    public void open() {
+    }
+
+    @Override
+    public void write(CharSequence batch, int spans) {
+        Buffer body = Buffer.buffer(batch.toString());
+        context.runOnContext(v -> post(body, spans));
+    }
+
+    private void post(Buffer body, int spans) {
+        HttpClientRequest req = client.post(port, host, path, res -> {
+            if (res.statusCode() / 100 == 2) {
+                if (failing) {
+                    failing = false;
+                    logger.info("Exporting spans to " + this + " recovered");
+                }
+            } else {
+                failed(spans, res.statusCode() + " " + res.statusMessage());
+            }
+        });
+        req.exceptionHandler(t -> failed(spans, t.toString()));
+        if (hostHeader != null) {
+            req.setHost(hostHeader);
+        }
+        req.putHeader("content-type", "application/json");
+        req.setTimeout(SECONDS.toMillis(10));
+        req.end(body);
+    }
+
+    private void failed(int spans, String reason) {
+        Tracing.addDropped(spans);
+        if (!failing) {
+            failing = true;
+            logger.warn("Failed to export spans to " + this + ": " + reason);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        return host + (port > 0 ? ":" + port : "") + path;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import static io.nitor.api.backend.tracing.SpanEvent.KIND_SERVER;
+import static io.nitor.api.backend.tracing.TraceContext.appendHex;
+
+/**
+ * Encodes batches of spans as OTLP/JSON <tt>ExportTraceServiceRequest</tt> documents, one document per line.
+ */
+class OtlpJson {
+    private final String prefix;
+
+    OtlpJson(String serviceName) {
+        StringBuilder sb = new StringBuilder(128).append("{\"resourceSpans\":[{\"resource\":{\"attributes\":[");
+        attribute("service.name", serviceName, sb);
+        prefix = sb.append("]},\"scopeSpans\":[{\"scope\":{\"name\":\"io.nitor.api.backend\"},\"spans\":[").toString();
+    }
+
+    void begin(StringBuilder sb) {
+        sb.append(prefix);
+    }
+
+    void end(StringBuilder sb) {
+        sb.append("]}]}]}\n");
+    }
+
+    void span(SpanEvent e, boolean first, StringBuilder sb) {
+        if (!first) {
+            sb.append(',');
+        }
+        sb.append("{\"traceId\":\"");
+        appendHex(e.traceIdLow, appendHex(e.traceIdHigh, sb)).append("\",\"spanId\":\"");
+        appendHex(e.spanId, sb).append('"');
+        if (e.parentSpanId != 0) {
+            sb.append(",\"parentSpanId\":\"");
+            appendHex(e.parentSpanId, sb).append('"');
+        }
+        sb.append(",\"name\":");
+        string(e.name, sb).append(",\"kind\":").append(e.kind)
+                .append(",\"startTimeUnixNano\":\"").append(e.startEpochNanos)
+                .append("\",\"endTimeUnixNano\":\"").append(e.endEpochNanos)
+                .append("\",\"attributes\":[");
+        attribute("http.request.method", e.method, sb);
+        if (e.kind == KIND_SERVER) {
+            sb.append(',');
+            attribute("url.path", e.target, sb);
+            if (e.requestId != null) {
+                sb.append(',');
+                attribute("http.request.header.x-request-id", e.requestId, sb);
+            }
+        } else if (e.upstreamHost != null) {
+            sb.append(',');
+            attribute("server.address", e.upstreamHost, sb);
+            if (e.upstreamPort > 0) {
+                sb.append(',');
+                attribute("server.port", e.upstreamPort, sb);
+            }
+        }
+        if (e.status > 0) {
+            sb.append(',');
+            attribute("http.response.status_code", e.status, sb);
+        }
+        sb.append(']');
+        if (e.error) {
+            sb.append(",\"status\":{\"code\":2}");
+        }
+        sb.append('}');
+    }
+
+    private static void attribute(String key, String value, StringBuilder sb) {
+        sb.append("{\"key\":\"").append(key).append("\",\"value\":{\"stringValue\":");
+        string(value, sb).append("}}");
+    }
+
+    private static void attribute(String key, int value, StringBuilder sb) {
+        sb.append("{\"key\":\"").append(key).append("\",\"value\":{\"intValue\":\"").append(value).append("\"}}");
+    }
+
+    private static StringBuilder string(String s, StringBuilder sb) {
+        if (s == null) {
+            return sb.append("\"\"");
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"');
+    }
+}
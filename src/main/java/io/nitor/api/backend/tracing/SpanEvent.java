@@ -0,0 +1,50 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+/**
+ * Preallocated ring buffer slot for one finished span. The fields are captured on the event loop and encoded by
+ * the span exporter thread.
+ */
+public class SpanEvent {
+    static final int KIND_SERVER = 2;
+    static final int KIND_CLIENT = 3;
+
+    long sequence;
+    long traceIdHigh;
+    long traceIdLow;
+    long spanId;
+    long parentSpanId;
+    int kind;
+    String name;
+    long startEpochNanos;
+    long endEpochNanos;
+    String method;
+    String target;
+    String upstreamHost;
+    int upstreamPort;
+    int status;
+    String requestId;
+    boolean error;
+
+    void clear() {
+        name = null;
+        method = null;
+        target = null;
+        upstreamHost = null;
+        requestId = null;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.LifecycleAware;
+import com.lmax.disruptor.TimeoutHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Encodes the finished spans on the ring buffer consumer thread and hands them to the sink in batches of at most
+ * <tt>batchSize</tt> spans, or whatever has accumulated during <tt>flushInterval</tt>.
+ */
+class SpanExporter implements EventHandler<SpanEvent>, TimeoutHandler, LifecycleAware {
+    private static final Logger logger = LogManager.getLogger(SpanExporter.class);
+
+    private final SpanSink sink;
+    private final OtlpJson json;
+    private final int batchSize;
+    private final long flushIntervalNanos;
+    private final StringBuilder batch = new StringBuilder(64 * 1024);
+    private int spans;
+    private long lastFlush = nanoTime();
+    private boolean open;
+
+    SpanExporter(SpanSink sink, OtlpJson json, int batchSize, long flushIntervalNanos) {
+        this.sink = sink;
+        this.json = json;
+        this.batchSize = batchSize;
+        this.flushIntervalNanos = flushIntervalNanos;
+    }
+
+    @Override
+    public void onStart() {
+        try {
+            sink.open();
+            open = true;
+        } catch (IOException e) {
+            logger.error("Failed to open span export to " + sink, e);
+        }
+    }
+
+    @Override
+    public void onEvent(SpanEvent event, long sequence, boolean endOfBatch) {
+        if (spans == 0) {
+            json.begin(batch);
+        }
+        json.span(event, spans == 0, batch);
+        event.clear();
+        if (++spans >= batchSize || endOfBatch && nanoTime() - lastFlush >= flushIntervalNanos) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onTimeout(long sequence) {
+        if (spans > 0) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onShutdown() {
+        onTimeout(0);
+        try {
+            sink.close();
+        } catch (IOException e) {
+            logger.error("Failed to close span export to " + sink, e);
+        }
+    }
+
+    private void flush() {
+        json.end(batch);
+        try {
+            if (open) {
+                sink.write(batch, spans);
+            } else {
+                Tracing.addDropped(spans);
+            }
+        } catch (IOException e) {
+            Tracing.addDropped(spans);
+            logger.warn("Failed to export spans to " + sink, e);
+        } finally {
+            batch.setLength(0);
+            spans = 0;
+            lastFlush = nanoTime();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import java.io.IOException;
+
+/**
+ * Destination of the encoded span batches, called only from the span exporter thread.
+ */
+interface SpanSink {
+    void open() throws IOException;
+
+    void write(CharSequence batch, int spans) throws IOException;
+
+    void close() throws IOException;
+}
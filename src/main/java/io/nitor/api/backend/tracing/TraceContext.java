@@ -0,0 +1,164 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * W3C trace context of a request. The <tt>traceparent</tt> header is parsed without allocating and ids are kept
+ * as longs, hex strings are only produced for the outgoing header and the exported spans.
+ */
+public class TraceContext {
+    public static final String TRACEPARENT = "traceparent";
+    public static final String TRACESTATE = "tracestate";
+    public static final int FLAG_SAMPLED = 0x01;
+
+    static final int TRACEPARENT_LENGTH = 55;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    long traceIdHigh;
+    long traceIdLow;
+    long spanId;
+    int flags;
+
+    /**
+     * Parses a <tt>traceparent</tt> header. Headers of future versions are accepted as long as their prefix is
+     * compatible with version 00.
+     *
+     * @return false if the header is missing or invalid, in which case the context is left unchanged
+     */
+    public boolean parse(CharSequence header) {
+        if (header == null || header.length() < TRACEPARENT_LENGTH) {
+            return false;
+        }
+        int version = hexByte(header, 0);
+        if (version < 0 || version == 0xff) {
+            return false;
+        }
+        if (version == 0 ? header.length() != TRACEPARENT_LENGTH : header.length() > TRACEPARENT_LENGTH && header.charAt(TRACEPARENT_LENGTH) != '-') {
+            return false;
+        }
+        if (header.charAt(2) != '-' || header.charAt(35) != '-' || header.charAt(52) != '-') {
+            return false;
+        }
+        for (int i = 3; i < 52; ++i) {
+            if (i != 35 && hexValue(header.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        int traceFlags = hexByte(header, 53);
+        if (traceFlags < 0) {
+            return false;
+        }
+        long high = hexLong(header, 3);
+        long low = hexLong(header, 19);
+        long parent = hexLong(header, 36);
+        if ((high | low) == 0 || parent == 0) {
+            return false;
+        }
+        traceIdHigh = high;
+        traceIdLow = low;
+        spanId = parent;
+        flags = traceFlags;
+        return true;
+    }
+
+    /**
+     * Starts a new trace without a parent span.
+     */
+    public void start(boolean sampled) {
+        do {
+            traceIdHigh = ThreadLocalRandom.current().nextLong();
+            traceIdLow = ThreadLocalRandom.current().nextLong();
+        } while ((traceIdHigh | traceIdLow) == 0);
+        spanId = 0;
+        flags = sampled ? FLAG_SAMPLED : 0;
+    }
+
+    public boolean isSampled() {
+        return (flags & FLAG_SAMPLED) != 0;
+    }
+
+    /**
+     * @return the version 00 <tt>traceparent</tt> header value of this trace with the given span as the parent
+     */
+    public String traceparent(long parentSpanId) {
+        char[] chars = new char[TRACEPARENT_LENGTH];
+        chars[0] = '0';
+        chars[1] = '0';
+        chars[2] = '-';
+        hex(traceIdHigh, chars, 3);
+        hex(traceIdLow, chars, 19);
+        chars[35] = '-';
+        hex(parentSpanId, chars, 36);
+        chars[52] = '-';
+        chars[53] = HEX[(flags >> 4) & 0xf];
+        chars[54] = HEX[flags & 0xf];
+        return new String(chars);
+    }
+
+    public static long randomSpanId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    static StringBuilder appendHex(long value, StringBuilder sb) {
+        for (int shift = 60; shift >= 0; shift -= 4) {
+            sb.append(HEX[(int) (value >>> shift) & 0xf]);
+        }
+        return sb;
+    }
+
+    private static void hex(long value, char[] chars, int offset) {
+        for (int i = 15; i >= 0; --i) {
+            chars[offset + i] = HEX[(int) value & 0xf];
+            value >>>= 4;
+        }
+    }
+
+    private static long hexLong(CharSequence s, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; ++i) {
+            value = (value << 4) | hexValue(s.charAt(i));
+        }
+        return value;
+    }
+
+    private static int hexByte(CharSequence s, int offset) {
+        int high = hexValue(s.charAt(offset));
+        int low = hexValue(s.charAt(offset + 1));
+        if (high < 0 || low < 0) {
+            return -1;
+        }
+        return high << 4 | low;
+    }
+
+    /**
+     * @return the value of a lower case hex digit, or -1
+     */
+    private static int hexValue(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.TimeoutBlockingWaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.nio.file.Paths;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.lmax.disruptor.dsl.ProducerType.MULTI;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Span export pipeline: the event loops capture the finished spans of sampled traces into preallocated ring buffer
+ * slots and a single exporter thread encodes them as OTLP/JSON into a file or to a collector. Spans are dropped
+ * instead of blocking the event loops if the exporter falls behind.
+ */
+public class Tracing {
+    private static final Logger logger = LogManager.getLogger(Tracing.class);
+
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Tracing instance;
+
+    private final double sampleRatio;
+    private final Disruptor<SpanEvent> disruptor;
+    private final RingBuffer<SpanEvent> ringBuffer;
+
+    // handleEventsWith takes generic varargs
+    @SuppressWarnings("unchecked")
+    private Tracing(Vertx vertx, JsonObject conf) {
+        sampleRatio = conf.getDouble("sampleRatio", 1.0);
+        SpanSink sink;
+        if (conf.getString("url") != null || conf.getString("socketPath") != null) {
+            sink = new HttpSpanSink(vertx, conf);
+        } else {
+            sink = new FileSpanSink(Paths.get(conf.getString("file", "spans.json")));
+        }
+        int flushInterval = conf.getInteger("flushInterval", 1000);
+        disruptor = new Disruptor<>(SpanEvent::new, conf.getInteger("ringSize", 8192), r -> {
+            Thread t = new Thread(r, "span-exporter");
+            t.setDaemon(true);
+            return t;
+        }, MULTI, new TimeoutBlockingWaitStrategy(flushInterval, MILLISECONDS));
+        disruptor.handleEventsWith(new SpanExporter(sink, new OtlpJson(conf.getString("serviceName", "nitor-backend")),
+                conf.getInteger("batchSize", 512), MILLISECONDS.toNanos(flushInterval)));
+        ringBuffer = disruptor.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "span-exporter-shutdown"));
+        logger.info("Exporting " + sampleRatio * 100 + "% of traces to " + sink);
+    }
+
+    public static synchronized void setup(Vertx vertx, JsonObject conf) {
+        if (instance == null) {
+            instance = new Tracing(vertx, conf);
+        }
+    }
+
+    public static Tracing instance() {
+        return instance;
+    }
+
+    /**
+     * @return the number of spans dropped because the ring buffer was full or the export failed
+     */
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    static void addDropped(int spans) {
+        dropped.add(spans);
+    }
+
+    /**
+     * @return whether a new trace without a sampled parent should be exported
+     */
+    boolean sample() {
+        return sampleRatio >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRatio;
+    }
+
+    /**
+     * @return the slot to fill and pass to {@link #publish(SpanEvent)}, or null if the ring buffer is full
+     */
+    SpanEvent claim() {
+        long sequence;
+        try {
+            sequence = ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            dropped.increment();
+            return null;
+        }
+        SpanEvent event = ringBuffer.get(sequence);
+        event.sequence = sequence;
+        return event;
+    }
+
+    void publish(SpanEvent event) {
+        ringBuffer.publish(event.sequence);
+    }
+
+    private void shutdown() {
+        try {
+            disruptor.shutdown(5, SECONDS);
+        } catch (Exception e) {
+            disruptor.halt();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import io.nitor.api.backend.proxy.DevNullProxyTracer;
+import io.nitor.api.backend.proxy.Proxy;
+import io.vertx.core.MultiMap;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import static io.nitor.api.backend.tracing.SpanEvent.KIND_CLIENT;
+import static io.nitor.api.backend.tracing.SpanEvent.KIND_SERVER;
+import static io.nitor.api.backend.tracing.TraceContext.TRACEPARENT;
+import static io.nitor.api.backend.tracing.TraceContext.TRACESTATE;
+import static io.nitor.api.backend.tracing.TraceContext.randomSpanId;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+
+/**
+ * Continues the W3C trace context of the incoming request, or starts a new trace, and propagates it to the upstream.
+ * The proxy hop and the upstream call are exported as a server and a client span when the trace is sampled.
+ */
+public class TracingProxyTracer extends DevNullProxyTracer {
+    private final Tracing tracing;
+    private final String route;
+    private final TraceContext context = new TraceContext();
+    private boolean continued;
+    private RoutingContext ctx;
+    private String reqId;
+    private Proxy.Target nextHop;
+    private long serverSpanId;
+    private long clientSpanId;
+    private long startEpochNanos;
+    private long startNanos;
+    private long clientStartNanos;
+    private int upstreamStatus;
+    private boolean clientEnded;
+    private boolean serverEnded;
+
+    public TracingProxyTracer(Tracing tracing, String route) {
+        this.tracing = tracing;
+        this.route = route;
+    }
+
+    @Override
+    public void incomingRequestStart(RoutingContext ctx, boolean isTls, boolean isHTTP2, String chost, String reqId) {
+        startNanos = nanoTime();
+        startEpochNanos = currentTimeMillis() * 1_000_000;
+        this.ctx = ctx;
+        this.reqId = reqId;
+        continued = context.parse(ctx.request().getHeader(TRACEPARENT));
+        if (!continued) {
+            context.start(tracing.sample());
+        }
+        serverSpanId = randomSpanId();
+    }
+
+    @Override
+    public void nextHopResolved(Proxy.Target nextHop) {
+        this.nextHop = nextHop;
+    }
+
+    @Override
+    public void outgoingRequestInitial(HttpClientRequest creq) {
+        propagate(creq.headers());
+    }
+
+    @Override
+    public void outgoingWebsocketInitial(MultiMap creqh) {
+        propagate(creqh);
+    }
+
+    private void propagate(MultiMap headers) {
+        clientStartNanos = nanoTime();
+        clientSpanId = randomSpanId();
+        headers.set(TRACEPARENT, context.traceparent(clientSpanId));
+        if (!continued) {
+            headers.remove(TRACESTATE);
+        }
+    }
+
+    @Override
+    public void incomingResponseStart(HttpClientResponse cres) {
+        upstreamStatus = cres.statusCode();
+    }
+
+    @Override
+    public void incomingResponseEnd() {
+        endClient(false);
+    }
+
+    @Override
+    public void outgoingRequestException(Throwable t) {
+        endClient(true);
+    }
+
+    @Override
+    public void incomingResponseException(Throwable t) {
+        endClient(true);
+    }
+
+    @Override
+    public void outgoingWebsocketException(Throwable t) {
+        endClient(true);
+    }
+
+    @Override
+    public void websocketEstablished() {
+        upstreamStatus = 101;
+        endClient(false);
+        endServer(false);
+    }
+
+    @Override
+    public void incomingConnectionPrematurelyClosed() {
+        endClient(true);
+        endServer(true);
+    }
+
+    @Override
+    public void outgoingResponseException(Throwable throwable) {
+        endClient(true);
+        endServer(true);
+    }
+
+    @Override
+    public void outgoingResponseBodyEnd(Void v) {
+        endClient(true);
+        endServer(false);
+    }
+
+    private void endClient(boolean failed) {
+        if (clientEnded || clientStartNanos == 0) {
+            return;
+        }
+        clientEnded = true;
+        if (!context.isSampled()) {
+            return;
+        }
+        SpanEvent span = tracing.claim();
+        if (span == null) {
+            return;
+        }
+        try {
+            fill(span, KIND_CLIENT, clientSpanId, serverSpanId, clientStartNanos);
+            span.name = span.method;
+            span.upstreamHost = nextHop == null ? null : nextHop.socketHost;
+            span.upstreamPort = nextHop == null ? 0 : nextHop.socketPort;
+            span.status = upstreamStatus;
+            span.error = failed || upstreamStatus >= 500;
+        } finally {
+            tracing.publish(span);
+        }
+    }
+
+    private void endServer(boolean failed) {
+        if (serverEnded || ctx == null) {
+            return;
+        }
+        serverEnded = true;
+        if (!context.isSampled()) {
+            return;
+        }
+        SpanEvent span = tracing.claim();
+        if (span == null) {
+            return;
+        }
+        try {
+            fill(span, KIND_SERVER, serverSpanId, context.spanId, startNanos);
+            span.name = span.method + ' ' + route;
+            span.target = ctx.request().uri();
+            span.requestId = reqId;
+            span.status = ctx.response().getStatusCode();
+            span.error = failed || span.status >= 500;
+        } finally {
+            tracing.publish(span);
+        }
+    }
+
+    private void fill(SpanEvent span, int kind, long spanId, long parentSpanId, long start) {
+        long end = nanoTime();
+        span.traceIdHigh = context.traceIdHigh;
+        span.traceIdLow = context.traceIdLow;
+        span.spanId = spanId;
+        span.parentSpanId = parentSpanId;
+        span.kind = kind;
+        span.startEpochNanos = startEpochNanos + (start - startNanos);
+        span.endEpochNanos = startEpochNanos + (end - startNanos);
+        span.method = ctx.request().rawMethod();
+        span.upstreamPort = 0;
+    }
+}
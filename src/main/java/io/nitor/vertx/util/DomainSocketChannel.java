@@ -0,0 +1,466 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.vertx.util;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.channel.unix.Socket;
+import io.netty.util.internal.PlatformDependent;
+import sun.misc.SharedSecrets;
+import sun.nio.ch.Net;
+import sun.nio.ch.SelChImpl;
+import sun.nio.ch.SelectionKeyImpl;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+
+import static java.util.Collections.emptySet;
+
+/**
+ * Client side unix domain socket exposed as a non-blocking NIO {@link SocketChannel}, so that it can be
+ * registered with the selectors of the NIO event loops used by vert.x. The socket itself is created and
+ * operated with the JNI library of netty's native epoll transport.
+ */
+public class DomainSocketChannel extends SocketChannel implements SelChImpl {
+    /**
+     * Heap buffers are copied through a direct buffer of at most this size, larger ones are read and written in parts.
+     */
+    static final int DIRECT_BUFFER_SIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final FileDescriptor fd;
+    private DomainSocketAddress remoteAddress;
+    private boolean connectionPending;
+    private boolean connected;
+    private boolean inputShutdown;
+    private boolean outputShutdown;
+    private ByteBuffer directBuffer;
+
+    public DomainSocketChannel(SelectorProvider provider) {
+        super(provider);
+        Epoll.ensureAvailability();
+        socket = Socket.newSocketDomain();
+        fd = new FileDescriptor();
+        SharedSecrets.getJavaIOFileDescriptorAccess().set(fd, socket.intValue());
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) throws IOException {
+        throw new UnsupportedOperationException("Binding domain socket client is not supported");
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        return null;
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return emptySet();
+    }
+
+    @Override
+    public SocketChannel shutdownInput() throws IOException {
+        ensureOpen();
+        socket.shutdown(true, false);
+        inputShutdown = true;
+        return this;
+    }
+
+    @Override
+    public SocketChannel shutdownOutput() throws IOException {
+        ensureOpen();
+        socket.shutdown(false, true);
+        outputShutdown = true;
+        return this;
+    }
+
+    @Override
+    public java.net.Socket socket() {
+        return socketAdaptor;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public boolean isConnectionPending() {
+        return connectionPending;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) throws IOException {
+        ensureOpen();
+        if (!(remote instanceof DomainSocketAddress)) {
+            throw new UnsupportedAddressTypeException();
+        }
+        remoteAddress = (DomainSocketAddress) remote;
+        if (socket.connect(remote)) {
+            connected = true;
+        } else {
+            connectionPending = true;
+        }
+        return connected;
+    }
+
+    @Override
+    public boolean finishConnect() throws IOException {
+        ensureOpen();
+        if (connected) {
+            return true;
+        }
+        if (socket.finishConnect()) {
+            connectionPending = false;
+            connected = true;
+        }
+        return connected;
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        return remoteAddress;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        return null;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (!dst.isDirect()) {
+            ByteBuffer tmp = directBuffer(dst.remaining());
+            int n = read(tmp);
+            if (n > 0) {
+                tmp.flip();
+                dst.put(tmp);
+            }
+            return n;
+        }
+        int n = socket.read(dst, dst.position(), dst.limit());
+        if (n > 0) {
+            dst.position(dst.position() + n);
+        }
+        return n;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            if (!dsts[i].hasRemaining()) {
+                continue;
+            }
+            int n = read(dsts[i]);
+            if (n < 0) {
+                return total == 0 ? -1 : total;
+            }
+            total += n;
+            if (dsts[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        if (!src.isDirect()) {
+            ByteBuffer tmp = directBuffer(src.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + tmp.remaining());
+            tmp.put(part).flip();
+            int n = write(tmp);
+            src.position(src.position() + n);
+            return n;
+        }
+        int n = socket.write(src, src.position(), src.limit());
+        src.position(src.position() + n);
+        return n;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; ++i) {
+            if (!srcs[i].isDirect()) {
+                return writeEach(srcs, offset, length);
+            }
+        }
+        ensureOpen();
+        long n = socket.writev(srcs, offset, length);
+        long remaining = n;
+        for (int i = offset; i < offset + length && remaining > 0; ++i) {
+            int consumed = (int) Math.min(srcs[i].remaining(), remaining);
+            srcs[i].position(srcs[i].position() + consumed);
+            remaining -= consumed;
+        }
+        return n;
+    }
+
+    private long writeEach(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            total += write(srcs[i]);
+            if (srcs[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @return the direct buffer of this channel, cleared and limited to the size or {@link #DIRECT_BUFFER_SIZE}
+     */
+    private ByteBuffer directBuffer(int size) {
+        if (directBuffer == null) {
+            directBuffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+        }
+        directBuffer.clear();
+        directBuffer.limit(Math.min(size, DIRECT_BUFFER_SIZE));
+        return directBuffer;
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+        if (!isRegistered()) {
+            kill();
+        } else if (connected) {
+            // wake up the selector, the socket is closed once the selection key is deregistered
+            socket.shutdown();
+        }
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException {
+        if (block) {
+            throw new UnsupportedOperationException("Blocking domain sockets are not supported");
+        }
+    }
+
+    @Override
+    public FileDescriptor getFD() {
+        return fd;
+    }
+
+    @Override
+    public int getFDVal() {
+        return socket.intValue();
+    }
+
+    @Override
+    public boolean translateAndUpdateReadyOps(int ops, SelectionKeyImpl sk) {
+        return translateReadyOps(ops, sk.nioReadyOps(), sk);
+    }
+
+    @Override
+    public boolean translateAndSetReadyOps(int ops, SelectionKeyImpl sk) {
+        return translateReadyOps(ops, 0, sk);
+    }
+
+    private boolean translateReadyOps(int ops, int initialOps, SelectionKeyImpl sk) {
+        int intOps = sk.nioInterestOps();
+        int oldOps = sk.nioReadyOps();
+        int newOps = initialOps;
+        if ((ops & Net.POLLNVAL) != 0) {
+            return false;
+        }
+        if ((ops & (Net.POLLERR | Net.POLLHUP)) != 0) {
+            newOps = intOps;
+            sk.nioReadyOps(newOps);
+            return (newOps & ~oldOps) != 0;
+        }
+        if ((ops & Net.POLLIN) != 0 && (intOps & SelectionKey.OP_READ) != 0 && connected) {
+            newOps |= SelectionKey.OP_READ;
+        }
+        if ((ops & Net.POLLCONN) != 0 && (intOps & SelectionKey.OP_CONNECT) != 0 && !connected) {
+            newOps |= SelectionKey.OP_CONNECT;
+        }
+        if ((ops & Net.POLLOUT) != 0 && (intOps & SelectionKey.OP_WRITE) != 0 && connected) {
+            newOps |= SelectionKey.OP_WRITE;
+        }
+        sk.nioReadyOps(newOps);
+        return (newOps & ~oldOps) != 0;
+    }
+
+    @Override
+    public void translateAndSetInterestOps(int ops, SelectionKeyImpl sk) {
+        int newOps = 0;
+        if ((ops & SelectionKey.OP_READ) != 0) {
+            newOps |= Net.POLLIN;
+        }
+        if ((ops & SelectionKey.OP_WRITE) != 0) {
+            newOps |= Net.POLLOUT;
+        }
+        if ((ops & SelectionKey.OP_CONNECT) != 0) {
+            newOps |= Net.POLLCONN;
+        }
+        sk.selector.putEventOps(sk, newOps);
+    }
+
+    @Override
+    public void kill() throws IOException {
+        if (socket.isOpen()) {
+            socket.close();
+        }
+        if (directBuffer != null) {
+            PlatformDependent.freeDirectBuffer(directBuffer);
+            directBuffer = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + (remoteAddress == null ? "unconnected" : remoteAddress.path()) + "]";
+    }
+
+    /**
+     * Netty configures sockets and queries their state through {@link java.net.Socket}, none of the TCP
+     * options apply to domain sockets so they are ignored.
+     */
+    private final java.net.Socket socketAdaptor = new java.net.Socket() {
+        @Override
+        public boolean isConnected() {
+            return connected;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !DomainSocketChannel.this.isOpen();
+        }
+
+        @Override
+        public boolean isInputShutdown() {
+            return inputShutdown;
+        }
+
+        @Override
+        public boolean isOutputShutdown() {
+            return outputShutdown;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            return null;
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            return null;
+        }
+
+        @Override
+        public void shutdownInput() throws IOException {
+            DomainSocketChannel.this.shutdownInput();
+        }
+
+        @Override
+        public void shutdownOutput() throws IOException {
+            DomainSocketChannel.this.shutdownOutput();
+        }
+
+        @Override
+        public void setTcpNoDelay(boolean on) {
+        }
+
+        @Override
+        public boolean getTcpNoDelay() {
+            return true;
+        }
+
+        @Override
+        public void setKeepAlive(boolean on) {
+        }
+
+        @Override
+        public boolean getKeepAlive() {
+            return false;
+        }
+
+        @Override
+        public void setReuseAddress(boolean on) {
+        }
+
+        @Override
+        public boolean getReuseAddress() {
+            return false;
+        }
+
+        @Override
+        public void setSoLinger(boolean on, int linger) {
+        }
+
+        @Override
+        public int getSoLinger() {
+            return -1;
+        }
+
+        @Override
+        public void setTrafficClass(int tc) {
+        }
+
+        @Override
+        public int getTrafficClass() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void setSendBufferSize(int size) {
+        }
+
+        @Override
+        public synchronized int getSendBufferSize() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void setReceiveBufferSize(int size) {
+        }
+
+        @Override
+        public synchronized int getReceiveBufferSize() {
+            return 0;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            DomainSocketChannel.this.close();
+        }
+    };
+}
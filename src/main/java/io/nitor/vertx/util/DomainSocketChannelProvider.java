@@ -0,0 +1,92 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.vertx.util;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFactory;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.net.ProxyOptions;
+import io.vertx.core.net.impl.ChannelProvider;
+
+import java.nio.channels.spi.SelectorProvider;
+
+/**
+ * Connects vert.x http clients to unix domain sockets. The http client apis and connection pools of vert.x only know
+ * host names, so a {@link DomainSocketAddress} is passed to them as the host returned by {@link #clientHost}, which
+ * the patched connection manager turns back to the address with {@link #domainSocketAddress(String)}.
+ */
+public class DomainSocketChannelProvider extends ChannelProvider {
+    public static final DomainSocketChannelProvider INSTANCE = new DomainSocketChannelProvider();
+
+    public static final ChannelFactory<Channel> CHANNEL_FACTORY = () -> new NioSocketChannel(new DomainSocketChannel(SelectorProvider.provider()));
+
+    private static final String HOST_PREFIX = "unix:";
+
+    private DomainSocketChannelProvider() {
+    }
+
+    /**
+     * @throws IllegalStateException if the native library operating the domain sockets can not be loaded
+     */
+    public static void ensureAvailable(DomainSocketAddress address) {
+        if (!Epoll.isAvailable()) {
+            throw new IllegalStateException("Connecting to unix domain socket " + address.path()
+                    + " requires the native epoll library", Epoll.unavailabilityCause());
+        }
+    }
+
+    /**
+     * @return the host to give to the vert.x http client for connecting to the socket
+     */
+    public static String clientHost(DomainSocketAddress address) {
+        return HOST_PREFIX + address.path();
+    }
+
+    /**
+     * @return the domain socket of a host given to the vert.x http client, or null for TCP hosts
+     */
+    public static DomainSocketAddress domainSocketAddress(String host) {
+        return host.startsWith(HOST_PREFIX) ? new DomainSocketAddress(host.substring(HOST_PREFIX.length())) : null;
+    }
+
+    @Override
+    public void connect(VertxInternal vertx, Bootstrap bootstrap, ProxyOptions options, String host, int port,
+                        Handler<Channel> channelInitializer, Handler<AsyncResult<Channel>> channelHandler) {
+        bootstrap.handler(new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(Channel channel) throws Exception {
+                channelInitializer.handle(channel);
+            }
+        });
+        ChannelFuture fut = bootstrap.connect(domainSocketAddress(host));
+        fut.addListener(res -> {
+            if (res.isSuccess()) {
+                channelHandler.handle(Future.succeededFuture(fut.channel()));
+            } else {
+                channelHandler.handle(Future.failedFuture(res.cause()));
+            }
+        });
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.netty.handler.ssl;
+
+import io.nitor.api.backend.tls.SniKeyManager;
+import io.nitor.api.backend.tls.TlsTestSupport;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class JdkNativeAlpnSslEngineTest {
+    private static final SniKeyManager KEY_MANAGER = new SniKeyManager(new JsonObject()
+            .put("serverKey", "certs/localhost.key.clear")
+            .put("serverCert", "certs/localhost.crt"));
+
+    @Test
+    public void selectsFirstServerProtocolOfferedByClient() throws Exception {
+        assertEquals("h2", handshake("http/1.1", "h2"));
+        assertEquals("http/1.1", handshake("http/1.1"));
+    }
+
+    @Test
+    public void noProtocolWithoutCommonProtocols() throws Exception {
+        assertNull(handshake("spdy/3"));
+        assertNull(handshake());
+    }
+
+    /**
+     * @return the protocol netty sees as negotiated on the server side
+     */
+    private static String handshake(String... clientProtocols) throws Exception {
+        assumeTrue(JdkNativeAlpnSslEngine.isAvailable());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(new KeyManager[] { KEY_MANAGER }, null, null);
+        SSLEngine rawServer = serverContext.createSSLEngine();
+        rawServer.setUseClientMode(false);
+        SSLEngine server = JdkNativeAlpnSslEngine.wrap(rawServer, asList("h2", "http/1.1"));
+
+        SSLContext clientContext = TlsTestSupport.trustAllContext("TLS");
+        SSLEngine client = clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        SSLParameters params = client.getSSLParameters();
+        params.setProtocols(new String[] { "TLSv1.2" });
+        params.setApplicationProtocols(clientProtocols);
+        client.setSSLParameters(params);
+
+        TlsTestSupport.handshake(client, server);
+        return new SslHandler(server).applicationProtocol();
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.impl.SocketAddressImpl;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class GracefulShutdownTest {
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    private final CompletableFuture<Void> exited = new CompletableFuture<>();
+    private final InFlightRequests inFlight = mock(InFlightRequests.class);
+    private final GracefulShutdown shutdown = new GracefulShutdown(inFlight, new JsonObject()
+            .put("healthCheckGrace", 0)
+            .put("drainTimeout", 5),
+            () -> events.add("stop accepting, healthy: " + shutdown().isHealthy()),
+            () -> {
+                events.add("exit");
+                exited.complete(null);
+            });
+
+    private GracefulShutdown shutdown() {
+        return shutdown;
+    }
+
+    @Test
+    public void failsHealthCheckThenStopsAcceptingThenDrainsThenExits() throws Exception {
+        doAnswer(i -> {
+            events.add("drain");
+            new Thread(() -> {
+                events.add("drained");
+                i.<Runnable>getArgument(0).run();
+            }).start();
+            return null;
+        }).when(inFlight).drain(any());
+
+        shutdown.start("test");
+        assertFalse(shutdown.isHealthy());
+        assertTrue(shutdown.isStarted());
+        exited.get(5, SECONDS);
+        assertEquals(asList("stop accepting, healthy: false", "drain", "drained", "exit"), events);
+    }
+
+    @Test
+    public void exitsAfterDrainTimeout() throws Exception {
+        assertFalse(GracefulShutdown.drain(inFlight, () -> events.add("stop accepting"), 10));
+        verify(inFlight).drain(any());
+        assertEquals(asList("stop accepting"), events);
+    }
+
+    @Test
+    public void secondRequestExitsImmediately() throws Exception {
+        doAnswer(i -> null).when(inFlight).drain(any());
+        GracefulShutdown slow = new GracefulShutdown(inFlight, new JsonObject().put("healthCheckGrace", 60),
+                () -> events.add("stop accepting"), () -> events.add("exit"));
+        slow.start("first");
+        slow.start("second");
+        assertEquals(asList("exit"), events);
+    }
+
+    private Handler<RoutingContext> shutdownRoute(JsonObject conf) {
+        Router router = mock(Router.class);
+        Route route = mock(Route.class);
+        when(router.post("/shutdown")).thenReturn(route);
+        CompletableFuture<Handler<RoutingContext>> handler = new CompletableFuture<>();
+        doAnswer(i -> {
+            handler.complete(i.getArgument(0));
+            return route;
+        }).when(route).handler(any());
+        shutdown.route(router, conf.put("path", "/shutdown"));
+        return handler.getNow(null);
+    }
+
+    private HttpServerResponse post(Handler<RoutingContext> route, String remoteHost) {
+        RoutingContext ctx = mock(RoutingContext.class);
+        HttpServerRequest request = mock(HttpServerRequest.class);
+        HttpServerResponse response = mock(HttpServerResponse.class);
+        when(ctx.request()).thenReturn(request);
+        when(ctx.response()).thenReturn(response);
+        when(request.method()).thenReturn(HttpMethod.POST);
+        when(request.remoteAddress()).thenReturn(new SocketAddressImpl(40000, remoteHost));
+        when(response.setStatusCode(anyInt())).thenReturn(response);
+        route.handle(ctx);
+        return response;
+    }
+
+    @Test
+    public void routeOnlyAcceptsLoopbackByDefault() {
+        Handler<RoutingContext> route = shutdownRoute(new JsonObject());
+        verify(post(route, "10.1.2.3")).setStatusCode(eq(403));
+        assertTrue(shutdown.isHealthy());
+
+        verify(post(route, "127.0.0.1")).setStatusCode(eq(202));
+        assertFalse(shutdown.isHealthy());
+    }
+
+    @Test
+    public void routeAcceptsRemoteWhenAllowed() {
+        Handler<RoutingContext> route = shutdownRoute(new JsonObject().put("allowRemote", true));
+        verify(post(route, "10.1.2.3")).setStatusCode(eq(202));
+        assertFalse(shutdown.isHealthy());
+    }
+}
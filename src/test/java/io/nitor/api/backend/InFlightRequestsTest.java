@@ -0,0 +1,229 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import io.nitor.api.backend.proxy.Proxy;
+import io.nitor.api.backend.proxy.ProxyTracer;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpConnection;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.Router;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static io.vertx.core.http.HttpHeaders.CONNECTION;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InFlightRequestsTest {
+    private final InFlightRequests inFlight = new InFlightRequests();
+    private Vertx vertx;
+
+    @BeforeEach
+    public void setup() {
+        vertx = Vertx.vertx();
+    }
+
+    @AfterEach
+    public void teardown() {
+        vertx.close();
+    }
+
+    static class Connection {
+        final HttpConnection connection = mock(HttpConnection.class);
+        Handler<Void> closeHandler;
+
+        Connection() {
+            doAnswer(i -> {
+                closeHandler = i.getArgument(0);
+                return connection;
+            }).when(connection).closeHandler(any());
+        }
+    }
+
+    static class Request {
+        final HttpServerRequest request = mock(HttpServerRequest.class);
+        final HttpServerResponse response = mock(HttpServerResponse.class);
+        Handler<Void> endHandler;
+
+        Request(Connection connection, HttpVersion version) {
+            when(request.connection()).thenReturn(connection.connection);
+            when(request.version()).thenReturn(version);
+            when(request.response()).thenReturn(response);
+            doAnswer(i -> {
+                endHandler = i.getArgument(0);
+                return response;
+            }).when(response).endHandler(any());
+        }
+    }
+
+    /**
+     * Runs the task on the event loop like the request handler of the server and waits for it.
+     */
+    private void onContext(Runnable task) throws Exception {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        vertx.runOnContext(v -> {
+            try {
+                task.run();
+                done.complete(null);
+            } catch (Throwable t) {
+                done.completeExceptionally(t);
+            }
+        });
+        done.get(5, SECONDS);
+    }
+
+    private Request track(Connection connection, HttpVersion version) throws Exception {
+        Request request = new Request(connection, version);
+        onContext(() -> inFlight.track(request.request));
+        return request;
+    }
+
+    @Test
+    public void countsRequestsUntilTheirResponsesEnd() throws Exception {
+        Connection connection = new Connection();
+        Request first = track(connection, HttpVersion.HTTP_1_1);
+        Request second = track(connection, HttpVersion.HTTP_1_1);
+        assertEquals(2, inFlight.requests());
+        assertEquals(1, inFlight.connections());
+
+        onContext(() -> first.endHandler.handle(null));
+        assertEquals(1, inFlight.requests());
+        onContext(() -> second.endHandler.handle(null));
+        assertEquals(0, inFlight.requests());
+        verify(connection.connection, never()).close();
+    }
+
+    @Test
+    public void closedConnectionReleasesItsRequests() throws Exception {
+        Connection connection = new Connection();
+        Request request = track(connection, HttpVersion.HTTP_1_1);
+        track(connection, HttpVersion.HTTP_1_1);
+        AtomicBoolean drained = new AtomicBoolean();
+        onContext(() -> inFlight.drain(() -> drained.set(true)));
+        assertFalse(drained.get());
+
+        onContext(() -> connection.closeHandler.handle(null));
+        assertTrue(drained.get());
+        assertEquals(0, inFlight.requests());
+        assertEquals(0, inFlight.connections());
+
+        onContext(() -> request.endHandler.handle(null));
+        assertEquals(0, inFlight.requests());
+    }
+
+    @Test
+    public void drainClosesIdleConnectionsAndMarksNewResponses() throws Exception {
+        Connection idle = new Connection();
+        Connection busy = new Connection();
+        Request done = track(idle, HttpVersion.HTTP_1_1);
+        onContext(() -> done.endHandler.handle(null));
+        Request running = track(busy, HttpVersion.HTTP_1_1);
+        List<String> events = new ArrayList<>();
+        onContext(() -> inFlight.drain(() -> events.add("drained")));
+        onContext(() -> { });
+        verify(idle.connection).close();
+        verify(busy.connection, never()).close();
+        assertTrue(inFlight.isDraining());
+
+        Request late = track(busy, HttpVersion.HTTP_1_1);
+        verify(late.response).putHeader(CONNECTION, "close");
+        onContext(() -> running.endHandler.handle(null));
+        verify(busy.connection, never()).close();
+        assertEquals(new ArrayList<>(), events);
+
+        onContext(() -> late.endHandler.handle(null));
+        verify(busy.connection).close();
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void drainSendsGoAwayOnHttp2() throws Exception {
+        Connection connection = new Connection();
+        Request request = track(connection, HttpVersion.HTTP_2);
+        onContext(() -> inFlight.drain(() -> { }));
+        onContext(() -> { });
+        verify(connection.connection).shutdown();
+
+        Request late = track(connection, HttpVersion.HTTP_2);
+        verify(late.response, never()).putHeader(CONNECTION, "close");
+        onContext(() -> request.endHandler.handle(null));
+        onContext(() -> late.endHandler.handle(null));
+        verify(connection.connection).shutdown();
+        assertEquals(0, inFlight.requests());
+    }
+
+    @Test
+    public void proxiedResponsesInFlightCloseTheirConnectionWhenDrained() throws Exception {
+        CompletableFuture<HttpServerRequest> upstreamRequest = new CompletableFuture<>();
+        HttpServer upstream = listen(vertx.createHttpServer().requestHandler(upstreamRequest::complete));
+        Router router = Router.router(vertx);
+        router.route().handler(inFlight::closeWhenDraining);
+        Proxy proxy = new Proxy(vertx.createHttpClient(),
+                (ctx, target) -> target.handle(new Proxy.Target("localhost", upstream.actualPort(), ctx.request().uri(), null)),
+                60, 300, () -> mock(ProxyTracer.class), new Proxy.DefaultPumpStarter());
+        router.route().handler(proxy::handle);
+        HttpServer server = listen(vertx.createHttpServer().requestHandler(req -> {
+            inFlight.track(req);
+            router.accept(req);
+        }));
+
+        CompletableFuture<HttpClientResponse> response = new CompletableFuture<>();
+        vertx.createHttpClient().getNow(server.actualPort(), "localhost", "/slow", response::complete);
+        HttpServerRequest held = upstreamRequest.get(5, SECONDS);
+        CompletableFuture<Void> drained = new CompletableFuture<>();
+        inFlight.drain(() -> drained.complete(null));
+        held.response().end("ok");
+
+        HttpClientResponse res = response.get(5, SECONDS);
+        assertEquals(200, res.statusCode());
+        assertEquals("close", res.getHeader(CONNECTION));
+        assertNull(res.getHeader("keep-alive"));
+        drained.get(5, SECONDS);
+    }
+
+    private static HttpServer listen(HttpServer server) throws Exception {
+        CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+        server.listen(0, "localhost", ar -> {
+            if (ar.succeeded()) {
+                listening.complete(ar.result());
+            } else {
+                listening.completeExceptionally(ar.cause());
+            }
+        });
+        return listening.get(5, SECONDS);
+    }
+}
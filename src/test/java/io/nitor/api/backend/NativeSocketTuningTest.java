@@ -0,0 +1,84 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.LinuxSocketOptions;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import sun.nio.ch.SelChImpl;
+
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class NativeSocketTuningTest {
+    private final JsonObject allOptions = new JsonObject()
+            .put("reusePort", true)
+            .put("tcpFastOpen", 16)
+            .put("tcpDeferAccept", 5)
+            .put("tcpQuickAck", true);
+
+    @Test
+    public void fallsBackToNioWithoutSelectorProvider() {
+        NativeSocketTuning.setup(allOptions);
+        assertNull(NativeSocketTuning.active());
+    }
+
+    @Test
+    public void defaultOptionsDoNotNeedNativeLibrary() {
+        NativeSocketTuning tuning = new NativeSocketTuning(new JsonObject());
+        tuning.tuneServerSocket(-1, false);
+        tuning.tuneSocket(-1);
+    }
+
+    @Test
+    public void appliesOptionsToServerSocket() throws Exception {
+        assumeTrue(Epoll.isAvailable());
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            int fd = ((SelChImpl) channel).getFDVal();
+            NativeSocketTuning tuning = new NativeSocketTuning(allOptions);
+            tuning.tuneServerSocket(fd, false);
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+            assertTrue(LinuxSocketOptions.isReusePort(fd));
+            assertTrue(LinuxSocketOptions.getTcpDeferAccept(fd) > 0);
+        }
+    }
+
+    @Test
+    public void inheritedSocketKeepsItsReusePort() throws Exception {
+        assumeTrue(Epoll.isAvailable());
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            int fd = ((SelChImpl) channel).getFDVal();
+            channel.bind(new InetSocketAddress("127.0.0.1", 0));
+            new NativeSocketTuning(allOptions).tuneServerSocket(fd, true);
+            assertFalse(LinuxSocketOptions.isReusePort(fd));
+        }
+    }
+
+    @Test
+    public void failedNativeCallsAreOnlyLogged() {
+        assumeTrue(Epoll.isAvailable());
+        int notOpen = 1_000_000;
+        NativeSocketTuning tuning = new NativeSocketTuning(allOptions);
+        tuning.tuneServerSocket(notOpen, false);
+        tuning.tuneSocket(notOpen);
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend;
+
+import com.sun.net.httpserver.HttpServer;
+import io.nitor.api.backend.tls.TlsTestSupport;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.System.nanoTime;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Trains the class data sharing archive of the packages and measures its effect on startup.
+ * <p>
+ * The server is started with <tt>-verbose:class</tt> against a stub upstream and exercised over https, and the JDK
+ * classes it loaded are written to <tt>backend.classlist</tt>. Java 8 can only share classes of the boot class path,
+ * so vert.x, netty and the other libraries still load from their jars. The class list is dumped into
+ * <tt>backend.jsa</tt>, after which the time from starting the JVM to the first 200 response of
+ * <tt>/healthCheck</tt> is measured with and without the archive.
+ * <p>
+ * Run the main method with the test classpath from the project directory, optionally giving the output directory
+ * and the number of measured starts.
+ */
+public class StartupBenchmark {
+    private static final Pattern BOOT_CLASS = Pattern.compile("^\\[Loaded (\\S+) from (shared objects file|.*/jre/lib/[^/]+\\.jar)\\]$");
+    private static final String JAVA = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    private static final long START_TIMEOUT = SECONDS.toNanos(60);
+
+    private final Path out;
+    private final Path conf;
+    private final int port;
+
+    StartupBenchmark(Path out, int upstreamPort) throws IOException {
+        this.out = out;
+        this.port = freePort();
+        this.conf = out.resolve("training.json");
+        JsonObject config = new JsonObject()
+                .put("tls", new JsonObject()
+                        .put("serverKey", Paths.get("certs/localhost.key.clear").toAbsolutePath().toString())
+                        .put("serverCert", Paths.get("certs/localhost.crt").toAbsolutePath().toString()))
+                .put("shutdown", new JsonObject()
+                        .put("healthCheckGrace", 0)
+                        .put("drainTimeout", 0))
+                .put("accessLog", new JsonObject()
+                        .put("file", out.resolve("access.log").toString()))
+                .put("proxy", new JsonArray().add(new JsonObject()
+                        .put("route", "/*")
+                        .put("host", "localhost")
+                        .put("port", upstreamPort)
+                        .put("path", "/")));
+        Files.write(conf, config.encodePrettily().getBytes(UTF_8));
+    }
+
+    public static void main(String... args) throws Exception {
+        Path out = Paths.get(args.length > 0 ? args[0] : "target/cds").toAbsolutePath();
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Files.createDirectories(out);
+        trustAll();
+
+        HttpServer upstream = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        upstream.createContext("/", exchange -> {
+            byte[] body = "stub".getBytes(UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        upstream.start();
+        try {
+            StartupBenchmark benchmark = new StartupBenchmark(out, upstream.getAddress().getPort());
+            Path classList = benchmark.train();
+            Path archive = benchmark.dump(classList);
+            long[] without = benchmark.measure(runs, "-Xshare:off");
+            long[] with = benchmark.measure(runs, "-XX:+UnlockDiagnosticVMOptions", "-XX:SharedArchiveFile=" + archive, "-Xshare:on");
+            System.out.printf("JVM start to first 200 over %d starts: without archive %s, with archive %s%n",
+                    runs, summary(without), summary(with));
+        } finally {
+            upstream.stop(0);
+        }
+    }
+
+    /**
+     * @return the class list of the JDK classes loaded while starting and serving requests
+     */
+    Path train() throws Exception {
+        Path log = out.resolve("training.log");
+        Process server = start(log, "-verbose:class");
+        try {
+            awaitStarted(server);
+            for (int i = 0; i < 10; ++i) {
+                get("/healthCheck");
+                get("/proxied/" + i);
+            }
+        } finally {
+            stop(server);
+        }
+        Set<String> classes = new LinkedHashSet<>();
+        try (BufferedReader in = Files.newBufferedReader(log, UTF_8)) {
+            for (String line; (line = in.readLine()) != null; ) {
+                Matcher m = BOOT_CLASS.matcher(line);
+                if (m.matches()) {
+                    classes.add(m.group(1).replace('.', '/'));
+                }
+            }
+        }
+        Path classList = out.resolve("backend.classlist");
+        Files.write(classList, classes, UTF_8);
+        System.out.println("Wrote " + classes.size() + " classes to " + classList);
+        return classList;
+    }
+
+    Path dump(Path classList) throws Exception {
+        Path archive = out.resolve("backend.jsa");
+        Process dump = new ProcessBuilder(JAVA, "-XX:+UnlockDiagnosticVMOptions", "-XX:SharedClassListFile=" + classList,
+                "-XX:SharedArchiveFile=" + archive, "-Xshare:dump")
+                .redirectErrorStream(true)
+                .redirectOutput(out.resolve("dump.log").toFile())
+                .start();
+        if (dump.waitFor() != 0) {
+            throw new IllegalStateException("Dumping " + archive + " failed, see " + out.resolve("dump.log"));
+        }
+        return archive;
+    }
+
+    /**
+     * @return the nanoseconds from starting the process to the first 200 response, for each run
+     */
+    long[] measure(int runs, String... jvmArgs) throws Exception {
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; ++i) {
+            long start = nanoTime();
+            Process server = start(out.resolve("benchmark.log"), jvmArgs);
+            try {
+                awaitStarted(server);
+                times[i] = nanoTime() - start;
+            } finally {
+                stop(server);
+            }
+        }
+        return times;
+    }
+
+    private Process start(Path log, String... jvmArgs) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(JAVA);
+        command.addAll(Arrays.asList(jvmArgs));
+        command.add("-Dport=" + port);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(NitorBackend.class.getName());
+        command.add("-conf");
+        command.add(conf.toString());
+        return new ProcessBuilder(command)
+                .directory(out.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log.toFile())
+                .start();
+    }
+
+    private void awaitStarted(Process server) throws Exception {
+        long deadline = nanoTime() + START_TIMEOUT;
+        while (nanoTime() < deadline) {
+            if (!server.isAlive()) {
+                throw new IllegalStateException("Server exited with " + server.exitValue());
+            }
+            try {
+                if (get("/healthCheck") == 200) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not listening yet
+            }
+            Thread.sleep(10);
+        }
+        throw new IllegalStateException("Server did not start in time");
+    }
+
+    private int get(String path) throws IOException {
+        HttpsURLConnection conn = (HttpsURLConnection) new URL("https://localhost:" + port + path).openConnection();
+        conn.setConnectTimeout(1000);
+        conn.setReadTimeout(5000);
+        try (InputStream in = conn.getInputStream()) {
+            while (in.read() >= 0) {
+                // drain for keep-alive
+            }
+            return conn.getResponseCode();
+        }
+    }
+
+    private static void stop(Process server) throws InterruptedException {
+        server.destroy();
+        if (!server.waitFor(30, SECONDS)) {
+            server.destroyForcibly().waitFor();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static String summary(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return "median " + NANOSECONDS.toMillis(sorted[sorted.length / 2]) + "ms min " + NANOSECONDS.toMillis(sorted[0]) + "ms";
+    }
+
+    private static void trustAll() throws Exception {
+        SSLContext context = TlsTestSupport.trustAllContext("TLS");
+        HttpsURLConnection.setDefaultSSLSocketFactory(context.getSocketFactory());
+        HttpsURLConnection.setDefaultHostnameVerifier((host, session) -> true);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.accesslog;
+
+import io.vertx.core.http.HttpVersion;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class AccessLogFormatTest {
+    private final AccessLogEvent event = new AccessLogEvent();
+    private final StringBuilder sb = new StringBuilder();
+
+    {
+        event.startTime = 1_500_000_000_000L;
+        event.endTime = 1_500_000_000_042L;
+        event.remoteHost = "10.0.0.1";
+        event.method = "GET";
+        event.uri = "/a?b=\"c\"";
+        event.version = HttpVersion.HTTP_1_1;
+        event.status = 200;
+        event.statusMessage = "OK";
+        event.bytes = 1234;
+        event.userAgent = "curl";
+    }
+
+    @Test
+    public void combined() {
+        AccessLogFormat.create("combined").format(event, sb);
+        assertThat(sb.toString(), startsWith("10.0.0.1 - - ["));
+        assertThat(sb.toString(), endsWith("] \"GET /a?b=\\\"c\\\" HTTP/1.1\" 200 1234 \"-\" \"curl\" 42 \"\"\n"));
+    }
+
+    @Test
+    public void json() {
+        AccessLogFormat.create("json").format(event, sb);
+        assertThat(sb.toString(), startsWith("{\"time\":\""));
+        assertThat(sb.toString(), endsWith("\",\"remote\":\"10.0.0.1\",\"method\":\"GET\",\"uri\":\"/a?b=\\\"c\\\"\",\"protocol\":\"HTTP/1.1\"," +
+                "\"status\":200,\"statusMessage\":\"OK\",\"bytes\":1234,\"durationMs\":42,\"referer\":null,\"userAgent\":\"curl\"}\n"));
+    }
+
+    @Test
+    public void timeIsFormattedOncePerSecond() {
+        AccessLogFormat format = AccessLogFormat.create("combined");
+        String time = format.time(1_500_000_000_000L);
+        assertEquals(time, format.time(1_500_000_000_999L));
+        assertNotEquals(time, format.time(1_500_000_001_000L));
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.accesslog;
+
+import io.vertx.core.http.HttpVersion;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.time.ZoneOffset.UTC;
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AccessLogWriterTest {
+    private Path dir;
+    private Path file;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("access-log");
+        file = dir.resolve("access.log");
+    }
+
+    @AfterEach
+    public void teardown() throws IOException {
+        for (Path f : files()) {
+            Files.delete(dir.resolve(f));
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void rollsOverAtMidnight() throws IOException {
+        long today = System.currentTimeMillis();
+        long tomorrow = today + DAYS.toMillis(1);
+        AccessLogWriter writer = writer(0, 20);
+        writer.onStart();
+        writer.onEvent(event(today, "/today"), 0, true);
+        writer.onEvent(event(tomorrow, "/tomorrow"), 1, true);
+        writer.onShutdown();
+
+        String rolled = "access-" + LocalDate.now(UTC) + "-1.log";
+        assertThat(files(), containsInAnyOrder(Paths.get("access.log"), Paths.get(rolled)));
+        assertEquals(1, lines(rolled).size());
+        assertEquals(1, lines("access.log").size());
+        assertEquals(true, lines(rolled).get(0).contains("/today"));
+        assertEquals(true, lines("access.log").get(0).contains("/tomorrow"));
+    }
+
+    @Test
+    public void rollsOverBySizeAndKeepsTheNewestFiles() throws IOException {
+        long now = System.currentTimeMillis();
+        AccessLogWriter writer = writer(1, 2);
+        writer.onStart();
+        for (int i = 0; i < 4; ++i) {
+            writer.onEvent(event(now, "/" + i), i, true);
+        }
+        writer.onShutdown();
+
+        String date = LocalDate.now(UTC).toString();
+        assertThat(files(), containsInAnyOrder(Paths.get("access.log"),
+                Paths.get("access-" + date + "-3.log"), Paths.get("access-" + date + "-4.log")));
+        assertEquals(0, Files.size(file));
+        assertEquals(true, lines("access-" + date + "-4.log").get(0).contains("/3"));
+    }
+
+    @Test
+    public void reopensTheFileMovedAwayWhenRolloverIsDisabled() throws IOException {
+        long now = System.currentTimeMillis();
+        AccessLogWriter writer = writer(1, 0);
+        writer.onStart();
+        writer.onEvent(event(now, "/before"), 0, true);
+        Files.move(file, dir.resolve("access.log.1"));
+        writer.onTimeout(0);
+        writer.onEvent(event(now, "/after"), 1, true);
+        writer.onShutdown();
+
+        assertThat(files(), containsInAnyOrder(Paths.get("access.log"), Paths.get("access.log.1")));
+        assertEquals(true, lines("access.log.1").get(0).contains("/before"));
+        assertEquals(true, lines("access.log").get(0).contains("/after"));
+    }
+
+    private AccessLogWriter writer(long maxFileSize, int maxFiles) {
+        return new AccessLogWriter(file, AccessLogFormat.create("combined"), 4096, maxFileSize, maxFiles, UTC);
+    }
+
+    private static AccessLogEvent event(long time, String uri) {
+        AccessLogEvent event = new AccessLogEvent();
+        event.startTime = time;
+        event.endTime = time;
+        event.remoteHost = "10.0.0.1";
+        event.method = "GET";
+        event.uri = uri;
+        event.version = HttpVersion.HTTP_1_1;
+        event.status = 200;
+        event.statusMessage = "OK";
+        return event;
+    }
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(Path::getFileName).collect(toList());
+        }
+    }
+
+    private List<String> lines(String name) throws IOException {
+        return Files.readAllLines(dir.resolve(name));
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.headers;
+
+import io.vertx.core.MultiMap;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ResponseHeaderPolicyTest {
+    private static final JsonObject DEFAULTS = new JsonObject()
+            .put("X-Frame-Options", "DENY")
+            .put("X-Content-Type-Options", "nosniff");
+
+    @Test
+    public void addsDefaultsWithoutReplacingHeadersOfResponse() {
+        MultiMap headers = MultiMap.caseInsensitiveMultiMap().add("x-frame-options", "SAMEORIGIN");
+        ResponseHeaderPolicy.create(DEFAULTS, true).apply(headers);
+        assertEquals(3, headers.size());
+        assertEquals("SAMEORIGIN", headers.get("X-Frame-Options"));
+        assertEquals("nosniff", headers.get("X-Content-Type-Options"));
+        assertEquals("max-age=31536000; includeSubDomains", headers.get("Strict-Transport-Security"));
+    }
+
+    @Test
+    public void routeOverridesAndRemovesHeaders() {
+        ResponseHeaderPolicy defaults = ResponseHeaderPolicy.create(DEFAULTS, false);
+        ResponseHeaderPolicy route = defaults.override(new JsonObject()
+                .put("x-frame-options", "SAMEORIGIN")
+                .putNull("X-Content-Type-Options")
+                .putNull("Server"));
+        MultiMap headers = MultiMap.caseInsensitiveMultiMap().add("Server", "upstream").add("X-Content-Type-Options", "upstream");
+        route.apply(headers);
+        assertEquals("SAMEORIGIN", headers.get("X-Frame-Options"));
+        assertFalse(headers.contains("X-Content-Type-Options"));
+        assertNull(headers.get("Server"));
+
+        headers = MultiMap.caseInsensitiveMultiMap();
+        defaults.apply(headers);
+        assertEquals("DENY", headers.get("X-Frame-Options"));
+        assertEquals("nosniff", headers.get("X-Content-Type-Options"));
+    }
+
+    @Test
+    public void emptyOverrideKeepsPolicy() {
+        ResponseHeaderPolicy defaults = ResponseHeaderPolicy.create(null, true);
+        assertSame(defaults, defaults.override(null));
+        assertSame(defaults, defaults.override(new JsonObject()));
+    }
+
+    @Test
+    public void rejectsNonAsciiValues() {
+        assertThrows(IllegalArgumentException.class,
+                () -> ResponseHeaderPolicy.create(new JsonObject().put("X-Name", "ä"), false));
+    }
+}
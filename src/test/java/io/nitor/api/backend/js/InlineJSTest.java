@@ -0,0 +1,234 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.js;
+
+import com.example.mockito.MockitoExtension;
+import io.nitor.api.backend.js.InlineJS.Hook;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.RoutingContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.Extensions;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Extensions(@ExtendWith(MockitoExtension.class))
+class InlineJSTest {
+    private Vertx vertx;
+    private Path script;
+    private RoutingContext ctx;
+    private HttpServerRequest request;
+
+    @BeforeEach
+    void setup(@Mock RoutingContext ctx, @Mock HttpServerRequest request) throws IOException {
+        vertx = Vertx.vertx();
+        script = Files.createTempFile("inlinejs", ".js");
+        this.ctx = ctx;
+        this.request = request;
+        when(ctx.request()).thenReturn(request);
+    }
+
+    @AfterEach
+    void teardown() throws IOException {
+        vertx.close();
+        Files.delete(script);
+    }
+
+    private InlineJS load(String source, JsonObject conf) throws IOException {
+        Files.write(script, source.getBytes(UTF_8));
+        return new InlineJS(vertx, conf.put("jsFile", script.toString()));
+    }
+
+    private void modify(String source) throws IOException {
+        FileTime previous = Files.getLastModifiedTime(script);
+        Files.write(script, source.getBytes(UTF_8));
+        Files.setLastModifiedTime(script, FileTime.fromMillis(previous.toMillis() + 2000));
+    }
+
+    private InlineJS load(String source) throws IOException {
+        return load(source, new JsonObject());
+    }
+
+    /**
+     * Calls the request hook on an event loop like the router does.
+     */
+    private AsyncResult<Void> callAsync(InlineJS js) throws Exception {
+        return startAsync(js).get(5, SECONDS);
+    }
+
+    /**
+     * @return the result of the call, once the hook has been called
+     */
+    private CompletableFuture<AsyncResult<Void>> startAsync(InlineJS js) throws Exception {
+        CompletableFuture<AsyncResult<Void>> result = new CompletableFuture<>();
+        CompletableFuture<Void> called = new CompletableFuture<>();
+        vertx.runOnContext(v -> {
+            js.callAsync(Hook.handleRequest, ctx, ar -> {
+                assertTrue(Context.isOnEventLoopThread());
+                result.complete(ar);
+            });
+            called.complete(null);
+        });
+        called.get(5, SECONDS);
+        return result;
+    }
+
+    @Test
+    public void callsOnlyExportedHooks() throws IOException {
+        InlineJS js = load("module.exports = { handleRequest: function(o) { o.put('called', true); }, handleResponse: 'not a function' };");
+        assertTrue(js.hasHook(Hook.handleRequest));
+        assertFalse(js.hasHook(Hook.handleResponse));
+        JsonObject arg = new JsonObject();
+        js.call(Hook.handleRequest, arg);
+        js.call(Hook.handleResponse, arg);
+        assertEquals(new JsonObject().put("called", true), arg);
+        InlineJS.HookStats stats = InlineJS.stats().get(script.toString());
+        assertEquals(1, stats.latency(Hook.handleRequest).collect(h -> h.getTotalCount()).longValue());
+        assertEquals(0, stats.latency(Hook.handleResponse).collect(h -> h.getTotalCount()).longValue());
+        assertEquals(0, stats.overBudget());
+    }
+
+    @Test
+    public void countsCallsOverBudgetOnEventLoop() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function() { var s = Date.now(); while (Date.now() - s < 20); } };",
+                new JsonObject().put("timeBudget", 1));
+        js.call(Hook.handleRequest);
+        assertEquals(0, InlineJS.stats().get(script.toString()).overBudget());
+        assertTrue(callAsync(js).succeeded());
+        assertEquals(1, InlineJS.stats().get(script.toString()).overBudget());
+    }
+
+    @Test
+    public void scriptThatFailsToLoadHasNoHooks() throws Exception {
+        InlineJS js = load("module.exports = {");
+        assertFalse(js.hasHook(Hook.handleRequest));
+        js.call(Hook.handleRequest);
+        assertTrue(callAsync(js).succeeded());
+    }
+
+    @Test
+    public void synchronousHookDoesNotPauseRequest() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function(req, ctx) { ctx.put('sync', true); } };");
+        assertTrue(callAsync(js).succeeded());
+        verify(ctx).put("sync", true);
+        verify(request, never()).pause();
+    }
+
+    @Test
+    public void continuationCompletesHook() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function(req, ctx, next) { setTimeout(function() { ctx.put('async', true); next(); }, 10); } };");
+        assertTrue(callAsync(js).succeeded());
+        InOrder order = inOrder(request, ctx);
+        order.verify(request).pause();
+        order.verify(ctx).put("async", true);
+        order.verify(request).resume();
+    }
+
+    @Test
+    public void continuationFailsHookWithError() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function(req, ctx, next) { next('lookup failed'); } };");
+        AsyncResult<Void> result = callAsync(js);
+        assertTrue(result.failed());
+        assertThat(result.cause().getMessage(), containsString("lookup failed"));
+        verify(request).resume();
+    }
+
+    @Test
+    public void rejectedThenableFailsHook() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function() { return { then: function(ok, fail) { setTimeout(function() { fail('denied'); }, 10); } }; } };");
+        AsyncResult<Void> result = callAsync(js);
+        assertTrue(result.failed());
+        assertThat(result.cause().getMessage(), containsString("denied"));
+    }
+
+    @Test
+    public void resolvedThenableCompletesHook() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function() { return { then: function(ok, fail) { ok(42); } }; } };");
+        assertTrue(callAsync(js).succeeded());
+    }
+
+    @Test
+    public void pendingHookTimesOut() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function(req, ctx, next) { } };", new JsonObject().put("hookTimeout", 50));
+        AsyncResult<Void> result = callAsync(js);
+        assertThat(result.cause(), instanceOf(TimeoutException.class));
+        verify(request).resume();
+    }
+
+    @Test
+    public void workerPoolRunsHookOffEventLoop() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function(req, ctx) { ctx.put('thread', java.lang.Thread.currentThread().getName()); } };",
+                new JsonObject().put("workerPoolSize", 2));
+        assertTrue(callAsync(js).succeeded());
+        ArgumentCaptor<Object> thread = ArgumentCaptor.forClass(Object.class);
+        verify(ctx).put(eq("thread"), thread.capture());
+        assertThat((String) thread.getValue(), startsWith("inline-js-"));
+        verify(request).pause();
+        verify(request).resume();
+    }
+
+    @Test
+    public void reloadSwitchesNewCallsAndLetsPendingCallsComplete() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function(req, ctx, next) { setTimeout(function() { ctx.put('version', 1); next(); }, 100); } };");
+        CompletableFuture<AsyncResult<Void>> pending = startAsync(js);
+        modify("module.exports = { handleRequest: function(req, ctx) { ctx.put('version', 2); } };");
+        js.reloadIfChanged();
+        assertTrue(callAsync(js).succeeded());
+        verify(ctx).put("version", 2);
+        assertTrue(pending.get(5, SECONDS).succeeded());
+        verify(ctx).put("version", 1);
+    }
+
+    @Test
+    public void failedReloadKeepsPreviousVersion() throws Exception {
+        InlineJS js = load("module.exports = { handleRequest: function(req, ctx) { ctx.put('version', 1); } };");
+        assertTrue(callAsync(js).succeeded());
+        modify("module.exports = {");
+        js.reloadIfChanged();
+        assertTrue(callAsync(js).succeeded());
+        verify(ctx, times(2)).put("version", 1);
+    }
+}
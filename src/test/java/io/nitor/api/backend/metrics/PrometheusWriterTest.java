@@ -0,0 +1,64 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PrometheusWriterTest {
+    private final PrometheusWriter writer = new PrometheusWriter();
+
+    @Test
+    public void writesSamples() {
+        writer.reset()
+                .type("x_total", "counter", "Help text")
+                .sample("x_total").value(0)
+                .sample("x_total").label("a", "b\"\\").label("code", 200).value(-12345678901L)
+                .sample("y").value(0.5);
+        assertEquals("# HELP x_total Help text\n" +
+                "# TYPE x_total counter\n" +
+                "x_total 0\n" +
+                "x_total{a=\"b\\\"\\\\\",code=\"200\"} -12345678901\n" +
+                "y 0.5\n", writer.toBuffer().toString(UTF_8));
+    }
+
+    @Test
+    public void reusesBuffer() {
+        writer.reset().sample("a").value(1);
+        writer.reset().sample("b").value(2);
+        assertEquals("b 2\n", writer.toBuffer().toString(UTF_8));
+    }
+
+    @Test
+    public void writesCumulativeBuckets() {
+        Histogram h = new Histogram(LatencyHistogram.HIGHEST_TRACKABLE_MICROS, 2);
+        h.recordValue(200);
+        h.recordValue(3_000);
+        h.recordValue(20_000_000);
+        String s = writer.reset().histogram("lat", h, "route", "/x").toBuffer().toString(UTF_8);
+        assertThat(s, containsString("lat_bucket{route=\"/x\",le=\"0.0001\"} 0\n"));
+        assertThat(s, containsString("lat_bucket{route=\"/x\",le=\"0.00025\"} 1\n"));
+        assertThat(s, containsString("lat_bucket{route=\"/x\",le=\"0.005\"} 2\n"));
+        assertThat(s, containsString("lat_bucket{route=\"/x\",le=\"10\"} 2\n"));
+        assertThat(s, containsString("lat_bucket{route=\"/x\",le=\"+Inf\"} 3\n"));
+        assertThat(s, containsString("lat_count{route=\"/x\"} 3\n"));
+    }
+}
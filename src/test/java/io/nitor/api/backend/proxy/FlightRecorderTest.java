@@ -0,0 +1,58 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static io.nitor.api.backend.proxy.FlightRecorder.RECORD_SIZE;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FlightRecorderTest {
+    private final long[] phases = {0, 0, 1_000, 2_000, 3_000, 4_000, 0, 0, 0, 0};
+
+    @Test
+    public void keepsLatestRecords() {
+        FlightRecorder recorder = new FlightRecorder(new JsonObject().put("size", 4).put("minErrors", 1000));
+        int upstream = recorder.upstreamId("example.org", 80);
+        for (int i = 0; i < 6; ++i) {
+            recorder.record("req" + i, 0, phases, 200, 100 + i, upstream, false);
+        }
+        String dump = recorder.dump();
+        assertEquals(5, dump.split("\n").length);
+        assertThat(dump, not(containsString(" req1 ")));
+        assertThat(dump, containsString(" req2 example.org:80 200 102 false 1 2 3 4\n"));
+        assertThat(dump, containsString(" req5 example.org:80 200 105 false 1 2 3 4\n"));
+    }
+
+    @Test
+    public void upstreamIdsAreStable() {
+        FlightRecorder recorder = new FlightRecorder(new JsonObject());
+        assertEquals(0, recorder.upstreamId("a", 80));
+        assertEquals(1, recorder.upstreamId("b", 80));
+        assertEquals(0, recorder.upstreamId("a", 80));
+    }
+
+    @Test
+    public void recordWithoutUpstream() {
+        FlightRecorder recorder = new FlightRecorder(new JsonObject());
+        recorder.record("req", 0, new long[RECORD_SIZE], 502, 0, -1, true);
+        assertThat(recorder.dump(), containsString(" req - 502 0 true "));
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.nitor.api.backend.proxy.Proxy.ProxyException;
+import io.nitor.api.backend.proxy.Proxy.RejectReason;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.impl.SocketAddressImpl;
+import io.vertx.ext.web.RoutingContext;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PrioritySchedulerTest {
+    private final PriorityClasses classes = new PriorityClasses(new JsonObject()
+            .put("classes", new JsonObject().put("interactive", 3).put("bulk", 1))
+            .put("maxConcurrent", 1)
+            .put("maxQueueSize", 4));
+    private final PriorityScheduler scheduler = classes.forUpstream("localhost:8080");
+    private final List<String> started = new ArrayList<>();
+    private final List<RoutingContext> startedRequests = new ArrayList<>();
+
+    private RoutingContext request() {
+        RoutingContext ctx = mock(RoutingContext.class);
+        Map<String, Object> data = new HashMap<>();
+        doAnswer(i -> data.put(i.getArgument(0), i.getArgument(1))).when(ctx).put(anyString(), any());
+        when(ctx.get(anyString())).thenAnswer(i -> data.get(i.<String>getArgument(0)));
+        when(ctx.response()).thenReturn(mock(HttpServerResponse.class));
+        return ctx;
+    }
+
+    private RoutingContext admit(int priorityClass, String name) {
+        RoutingContext ctx = request();
+        scheduler.admit(ctx, priorityClass, () -> {
+            started.add(name);
+            startedRequests.add(ctx);
+        });
+        return ctx;
+    }
+
+    @Test
+    public void sharesSlotsByWeight() {
+        admit(0, "first");
+        for (int i = 0; i < 4; ++i) {
+            admit(1, "b");
+        }
+        for (int i = 0; i < 4; ++i) {
+            admit(0, "i");
+        }
+        assertEquals(asList("first"), started);
+        assertEquals(4, scheduler.queueLength(0));
+        assertEquals(4, scheduler.queueLength(1));
+
+        for (int i = 0; i < startedRequests.size(); ++i) {
+            scheduler.release(startedRequests.get(i));
+        }
+        assertEquals(asList("first", "i", "b", "i", "i", "i", "b", "b", "b"), started);
+        assertEquals(0, scheduler.running());
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() {
+        admit(1, "running");
+        for (int i = 0; i < 4; ++i) {
+            admit(1, "queued");
+        }
+        RoutingContext rejected = admit(1, "rejected");
+
+        ArgumentCaptor<Throwable> failure = ArgumentCaptor.forClass(Throwable.class);
+        verify(rejected).fail(failure.capture());
+        assertEquals(503, ((ProxyException) failure.getValue()).statusCode);
+        assertEquals(RejectReason.queueFull, ((ProxyException) failure.getValue()).reason);
+        assertEquals(1, scheduler.rejected(1));
+        assertEquals(0, scheduler.rejected(0));
+    }
+
+    @Test
+    public void skipsCancelledRequests() {
+        RoutingContext running = admit(0, "running");
+        RoutingContext cancelled = admit(1, "cancelled");
+        admit(1, "next");
+
+        scheduler.release(cancelled);
+        scheduler.release(cancelled);
+        assertEquals(1, scheduler.queueLength(1));
+
+        scheduler.release(running);
+        assertEquals(asList("running", "next"), started);
+        assertEquals(1, scheduler.running());
+    }
+
+    @Test
+    public void cancelledRequestsLeaveTheQueueWhileUpstreamStalls() {
+        admit(1, "stalled");
+        for (int round = 0; round < 3; ++round) {
+            List<RoutingContext> queued = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                queued.add(admit(1, "queued"));
+            }
+            assertEquals(4, scheduler.queueLength(1));
+            queued.forEach(scheduler::release);
+            assertEquals(0, scheduler.queueLength(1));
+        }
+        assertEquals(0, scheduler.rejected(1));
+        assertEquals(asList("stalled"), started);
+    }
+
+    @Test
+    public void rejectsQueuedRequestsAfterMaxQueueTime() throws Exception {
+        PriorityScheduler scheduler = new PriorityClasses(new JsonObject()
+                .put("classes", new JsonObject().put("interactive", 1))
+                .put("maxConcurrent", 1)
+                .put("maxQueueTime", 50)).forUpstream("localhost:8080");
+        RoutingContext running = request();
+        RoutingContext queued = request();
+        CompletableFuture<Throwable> failure = new CompletableFuture<>();
+        doAnswer(i -> failure.complete(i.getArgument(0))).when(queued).fail(any(Throwable.class));
+        Vertx vertx = Vertx.vertx();
+        try {
+            vertx.runOnContext(v -> {
+                scheduler.admit(running, 0, () -> started.add("running"));
+                scheduler.admit(queued, 0, () -> started.add("queued"));
+            });
+            Throwable t = failure.get(5, SECONDS);
+            assertEquals(RejectReason.queueTimeout, ((ProxyException) t).reason);
+            assertEquals(0, scheduler.queueLength(0));
+            assertEquals(1, scheduler.rejected(0));
+
+            scheduler.release(running);
+            assertEquals(asList("running"), started);
+            assertEquals(0, scheduler.running());
+        } finally {
+            vertx.close();
+        }
+    }
+
+    @Test
+    public void routeClassTakesPrecedenceOverPriorityHeader() {
+        PriorityClasses classes = new PriorityClasses(new JsonObject()
+                .put("classes", new JsonObject().put("interactive", 3).put("bulk", 1))
+                .put("header", "X-Priority"));
+        assertEquals(1, classes.classify(classified("interactive", "127.0.0.1"), 1));
+        assertEquals(0, classes.classify(classified("interactive", "127.0.0.1"), -1));
+        assertEquals(1, classes.classify(classified("bulk", "::1"), -1));
+    }
+
+    @Test
+    public void trustsPriorityHeaderOnlyFromHeaderSources() {
+        PriorityClasses classes = new PriorityClasses(new JsonObject()
+                .put("classes", new JsonObject().put("interactive", 3).put("bulk", 1))
+                .put("default", "bulk")
+                .put("header", "X-Priority")
+                .put("headerSources", new JsonArray().add("10.0.0.5")));
+        assertEquals(0, classes.classify(classified("interactive", "10.0.0.5"), -1));
+        assertEquals(1, classes.classify(classified("interactive", "10.0.0.6"), -1));
+        assertEquals(1, classes.classify(classified("interactive", "127.0.0.1"), -1));
+    }
+
+    private static RoutingContext classified(String priority, String remoteHost) {
+        RoutingContext ctx = mock(RoutingContext.class);
+        HttpServerRequest request = mock(HttpServerRequest.class);
+        when(ctx.request()).thenReturn(request);
+        when(request.getHeader("X-Priority")).thenReturn(priority);
+        when(request.remoteAddress()).thenReturn(new SocketAddressImpl(40000, remoteHost));
+        return ctx;
+    }
+}
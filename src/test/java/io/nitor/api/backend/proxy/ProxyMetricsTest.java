@@ -0,0 +1,129 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.nitor.api.backend.proxy.ProxyMetrics.Phase;
+import io.nitor.api.backend.proxy.ProxyMetrics.Upstream;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static io.nitor.api.backend.metrics.LatencyHistogram.HIGHEST_TRACKABLE_MICROS;
+import static java.util.concurrent.TimeUnit.HOURS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProxyMetricsTest {
+
+    @Test
+    public void upstreamsAreReused() {
+        ProxyMetrics metrics = new ProxyMetrics(null, "/test");
+        Upstream a = metrics.upstream("a", 80);
+        Upstream b = metrics.upstream("b", 80);
+        assertSame(a, metrics.upstream("a", 80));
+        assertSame(b, metrics.upstream("b", 80));
+        assertEquals(2, metrics.upstreams().length);
+    }
+
+    @Test
+    public void routesAreKeptPerVirtualHost() {
+        ProxyMetrics a = ProxyMetrics.forRoute("a.example.com", "/*");
+        ProxyMetrics b = ProxyMetrics.forRoute("b.example.com", "/*");
+        ProxyMetrics any = ProxyMetrics.forRoute(null, "/*");
+        assertNotSame(a, b);
+        assertNotSame(a, any);
+        assertSame(a, ProxyMetrics.forRoute("a.example.com", "/*"));
+        assertEquals("b.example.com", b.virtualHost);
+        assertEquals("/*", b.route);
+    }
+
+    @Test
+    public void collectSwapsIntervalAndAccumulates() {
+        Upstream upstream = new ProxyMetrics(null, "/test").upstream("a", 80);
+        upstream.record(Phase.ttfb, MILLISECONDS.toNanos(5));
+        upstream.record(Phase.ttfb, HOURS.toNanos(1));
+        upstream.record(Phase.ttfb, -1);
+        upstream.collect();
+        assertEquals(2, upstream.histogram(Phase.ttfb).interval().getTotalCount());
+        assertTrue(upstream.histogram(Phase.ttfb).interval().valuesAreEquivalent(HIGHEST_TRACKABLE_MICROS, upstream.histogram(Phase.ttfb).interval().getMaxValue()));
+        assertEquals(0, upstream.histogram(Phase.body).interval().getTotalCount());
+
+        upstream.record(Phase.ttfb, MILLISECONDS.toNanos(5));
+        upstream.collect();
+        assertEquals(1, upstream.histogram(Phase.ttfb).interval().getTotalCount());
+        assertEquals(3, upstream.histogram(Phase.ttfb).cumulative().getTotalCount());
+    }
+
+    @Test
+    public void logIntervalIsIndependentOfOtherCollectors() {
+        Upstream upstream = new ProxyMetrics(null, "/test").upstream("a", 80);
+        upstream.record(Phase.total, MILLISECONDS.toNanos(5));
+        upstream.collect();
+        upstream.record(Phase.total, MILLISECONDS.toNanos(5));
+        upstream.collect();
+        assertEquals(2, upstream.sinceLastLog(Phase.total).getTotalCount());
+        assertEquals(0, upstream.sinceLastLog(Phase.total).getTotalCount());
+    }
+
+    @Test
+    public void tracerRecordsCompletedRequests() {
+        ProxyMetrics metrics = new ProxyMetrics(null, "/test");
+        MetricsProxyTracer tracer = new MetricsProxyTracer(metrics);
+        tracer.incomingRequestStart(null, false, false, "127.0.0.1", "1");
+        tracer.nextHopResolved(new Proxy.Target("a", 80, "/", null));
+        tracer.outgoingRequestInitial(null);
+        tracer.incomingResponseStart(null);
+        tracer.outgoingResponseBodyEnd(null);
+        Upstream upstream = metrics.upstream("a", 80);
+        assertEquals(1, upstream.sinceLastLog(Phase.ttfb).getTotalCount());
+        assertEquals(1, upstream.sinceLastLog(Phase.total).getTotalCount());
+        assertEquals(0, upstream.failures());
+    }
+
+    @Test
+    public void tracerRecordsConnectFailuresOnce() {
+        ProxyMetrics metrics = new ProxyMetrics(null, "/test");
+        MetricsProxyTracer tracer = new MetricsProxyTracer(metrics);
+        tracer.incomingRequestStart(null, false, false, "127.0.0.1", "1");
+        tracer.nextHopResolved(new Proxy.Target("a", 80, "/", null));
+        tracer.outgoingRequestInitial(null);
+        tracer.outgoingRequestException(new IOException("Connection refused"));
+        tracer.outgoingResponseBodyEnd(null);
+        tracer.incomingConnectionPrematurelyClosed();
+        Upstream upstream = metrics.upstream("a", 80);
+        assertEquals(0, upstream.sinceLastLog(Phase.ttfb).getTotalCount());
+        assertEquals(1, upstream.sinceLastLog(Phase.total).getTotalCount());
+        assertEquals(1, upstream.failures());
+    }
+
+    @Test
+    public void tracerRecordsAbortedRequests() {
+        ProxyMetrics metrics = new ProxyMetrics(null, "/test");
+        MetricsProxyTracer tracer = new MetricsProxyTracer(metrics);
+        tracer.incomingRequestStart(null, false, false, "127.0.0.1", "1");
+        tracer.nextHopResolved(new Proxy.Target("a", 80, "/", null));
+        tracer.outgoingRequestInitial(null);
+        tracer.incomingResponseStart(null);
+        tracer.incomingConnectionPrematurelyClosed();
+        Upstream upstream = metrics.upstream("a", 80);
+        assertEquals(1, upstream.sinceLastLog(Phase.body).getTotalCount());
+        assertEquals(1, upstream.sinceLastLog(Phase.total).getTotalCount());
+        assertEquals(1, upstream.failures());
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.nitor.vertx.util.DomainSocketChannelProvider;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ProxyTargetTest {
+    @Test
+    public void selectsTcpTargetByHostAndPort() {
+        Proxy.Target target = SetupProxy.target(new JsonObject().put("host", "app").put("port", 8080), "/api");
+        assertFalse(target.isDomainSocket());
+        assertEquals(InetSocketAddress.createUnresolved("app", 8080), target.address);
+        assertEquals("app", target.clientHost());
+        assertNull(target.hostHeader);
+        assertNull(DomainSocketChannelProvider.domainSocketAddress(target.clientHost()));
+    }
+
+    @Test
+    public void selectsDomainSocketTargetBySocketPath() {
+        assumeTrue(Epoll.isAvailable());
+        JsonObject conf = new JsonObject().put("socketPath", "/run/app/http.sock").put("host", "ignored").put("port", 8080);
+        Proxy.Target target = SetupProxy.target(conf, "/api").withSuffix("/a?b");
+        assertTrue(target.isDomainSocket());
+        assertEquals("/run/app/http.sock", ((DomainSocketAddress) target.address).path());
+        assertEquals("/api/a?b", target.uri);
+        assertEquals("localhost", target.hostHeader);
+        assertEquals("/run/app/http.sock", DomainSocketChannelProvider.domainSocketAddress(target.clientHost()).path());
+    }
+
+    @Test
+    public void keepsConfiguredHostHeaderOfDomainSocket() {
+        Proxy.Target target = Proxy.Target.domainSocket("/run/app/http.sock", "/", "app.example.com");
+        assertEquals("app.example.com", target.hostHeader);
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import com.example.mockito.MockitoExtension;
+import io.vertx.core.http.CaseInsensitiveHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.HttpVersion;
+import io.vertx.ext.web.RoutingContext;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.Extensions;
+import org.mockito.Mock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.startsWith;
+import static org.mockito.Mockito.when;
+
+@Extensions(@ExtendWith(MockitoExtension.class))
+class TailSamplingProxyTracerTest {
+
+    @Test
+    public void rendersRecordedEventsWithHeaders(@Mock RoutingContext ctx, @Mock HttpServerRequest sreq, @Mock HttpServerResponse sres) {
+        when(ctx.request()).thenReturn(sreq);
+        when(ctx.response()).thenReturn(sres);
+        when(sreq.method()).thenReturn(HttpMethod.GET);
+        when(sreq.uri()).thenReturn("/path");
+        when(sreq.version()).thenReturn(HttpVersion.HTTP_1_1);
+        when(sreq.headers()).thenReturn(new CaseInsensitiveHeaders().add("x-test", "value"));
+        when(sres.getStatusCode()).thenReturn(200);
+        when(sres.getStatusMessage()).thenReturn("OK");
+        when(sres.headers()).thenReturn(new CaseInsensitiveHeaders());
+
+        TailSamplingProxyTracer tracer = new TailSamplingProxyTracer(1000, 500);
+        tracer.incomingRequestStart(ctx, false, false, "127.0.0.1", "42");
+        tracer.incomingRequestException(new RuntimeException("boom"));
+        tracer.outgoingResponseHeadersEnd(null);
+
+        String trace = tracer.render("Failed", 0);
+        assertThat(trace, startsWith("Failed request [42] took 0ms"));
+        assertThat(trace, containsString("incomingRequestStart Incoming reqest from 127.0.0.1:\n\tGET /path HTTP_1_1\n\tx-test: value"));
+        assertThat(trace, containsString("incomingRequestException: java.lang.RuntimeException: boom"));
+        assertThat(trace, containsString("outgoingResponseHeadersEnd\n\t200 OK"));
+    }
+}
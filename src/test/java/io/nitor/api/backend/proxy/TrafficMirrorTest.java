@@ -0,0 +1,147 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.proxy;
+
+import com.example.mockito.MockitoExtension;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.CaseInsensitiveHeaders;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.ext.web.RoutingContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.Extensions;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+
+import static io.vertx.core.http.HttpMethod.POST;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@Extensions(@ExtendWith(MockitoExtension.class))
+class TrafficMirrorTest {
+    private final Proxy.Target target = new Proxy.Target("shadow", 8080, "/v2", null);
+
+    @Mock
+    RoutingContext ctx;
+    @Mock
+    HttpServerRequest sreq;
+    @Mock
+    HttpClientRequest creq;
+    @Mock
+    HttpClient client;
+    @Mock
+    HttpClientRequest mirrorReq;
+    @Captor
+    ArgumentCaptor<Handler<HttpClientResponse>> responseHandler;
+
+    @BeforeEach
+    public void setup() {
+        when(ctx.request()).thenReturn(sreq);
+        when(sreq.uri()).thenReturn("/proxy/a?b=c");
+        when(sreq.rawMethod()).thenReturn("POST");
+        when(creq.method()).thenReturn(POST);
+        when(creq.headers()).thenReturn(new CaseInsensitiveHeaders().add("x-test", "value"));
+        when(mirrorReq.headers()).thenReturn(new CaseInsensitiveHeaders());
+    }
+
+    private TrafficMirror mirror(double percentage, int maxBodySize, long maxBufferedBytes) {
+        return new TrafficMirror(null, "/proxy/*", client, target, "/proxy", percentage, maxBodySize, maxBufferedBytes, 30);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void sendsCopyAfterRequestEnds(@Mock HttpClientResponse res) {
+        when(client.request(eq(POST), eq(8080), eq("shadow"), eq("/v2/a?b=c"), any(Handler.class))).thenReturn(mirrorReq);
+        TrafficMirror mirror = mirror(100, 1024, 1024);
+
+        TrafficMirror.Copy copy = mirror.start(ctx, creq);
+        assertNotNull(copy);
+        copy.write(Buffer.buffer("hello"));
+        assertEquals(5, mirror.buffered());
+        verify(client, never()).request(any(), anyInt(), anyString(), anyString(), any(Handler.class));
+
+        copy.end();
+        verify(mirrorReq).putHeader("content-length", "5");
+        verify(mirrorReq).end(Buffer.buffer("hello"));
+        assertEquals("value", mirrorReq.headers().get("x-test"));
+
+        verify(client).request(eq(POST), eq(8080), eq("shadow"), eq("/v2/a?b=c"), responseHandler.capture());
+        responseHandler.getValue().handle(res);
+        assertEquals(0, mirror.buffered());
+        assertEquals(1, mirror.sent());
+
+        copy.abort();
+        assertEquals(0, mirror.dropped());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void dropsCopiesOverBodyLimit() {
+        TrafficMirror mirror = mirror(100, 4, 1024);
+
+        TrafficMirror.Copy copy = mirror.start(ctx, creq);
+        copy.write(Buffer.buffer("hello"));
+        copy.end();
+
+        verify(client, never()).request(any(), anyInt(), anyString(), anyString(), any(Handler.class));
+        assertEquals(1, mirror.dropped());
+        assertEquals(0, mirror.buffered());
+    }
+
+    @Test
+    public void dropsCopiesOverMemoryBudget() {
+        TrafficMirror mirror = mirror(100, 1024, 8);
+
+        TrafficMirror.Copy first = mirror.start(ctx, creq);
+        TrafficMirror.Copy second = mirror.start(ctx, creq);
+        first.write(Buffer.buffer("hello"));
+        second.write(Buffer.buffer("world"));
+        assertEquals(1, mirror.dropped());
+        assertEquals(5, mirror.buffered());
+
+        first.abort();
+        assertEquals(2, mirror.dropped());
+        assertEquals(0, mirror.buffered());
+    }
+
+    @Test
+    public void mirrorsOnlySampledRequests() {
+        assertNull(mirror(0, 1024, 1024).start(ctx, creq));
+    }
+
+    @Test
+    public void keepsMirrorsOfSameRouteOnDifferentHosts() {
+        TrafficMirror a = new TrafficMirror("a.example.org", "/same/*", client, target, "/same", 100, 1024, 1024, 30);
+        TrafficMirror b = new TrafficMirror("b.example.org", "/same/*", client, target, "/same", 100, 1024, 1024, 30);
+        assertTrue(TrafficMirror.allMirrors().contains(a));
+        assertTrue(TrafficMirror.allMirrors().contains(b));
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.routing;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class RadixTrieTest {
+    @Test
+    public void longestPrefixWins() {
+        RadixTrie<String> trie = new RadixTrie<>();
+        trie.put("/", true, "root");
+        trie.put("/api/", true, "api");
+        trie.put("/api/v2/", true, "v2");
+        trie.put("/apps/", true, "apps");
+
+        assertEquals("root", trie.lookup("/"));
+        assertEquals("root", trie.lookup("/index.html"));
+        assertEquals("root", trie.lookup("/ap"));
+        assertEquals("api", trie.lookup("/api/"));
+        assertEquals("api", trie.lookup("/api/v1/users"));
+        assertEquals("v2", trie.lookup("/api/v2/users"));
+        assertEquals("api", trie.lookup("/api/v3"));
+        assertEquals("apps", trie.lookup("/apps/x"));
+        assertEquals("root", trie.lookup("/appsx"));
+    }
+
+    @Test
+    public void exactMatchOnlyMatchesWholePath() {
+        RadixTrie<String> trie = new RadixTrie<>();
+        trie.put("/healthCheck", false, "health");
+        trie.put("/health/", true, "prefix");
+
+        assertEquals("health", trie.lookup("/healthCheck"));
+        assertNull(trie.lookup("/healthCheck/x"));
+        assertNull(trie.lookup("/health"));
+        assertEquals("prefix", trie.lookup("/health/x"));
+    }
+
+    @Test
+    public void exactMatchWinsOverPrefix() {
+        RadixTrie<String> trie = new RadixTrie<>();
+        trie.put("/a/", true, "prefix");
+        trie.put("/a/b", false, "exact");
+
+        assertEquals("exact", trie.lookup("/a/b"));
+        assertEquals("prefix", trie.lookup("/a/bc"));
+        assertEquals("prefix", trie.lookup("/a/"));
+    }
+
+    @Test
+    public void splitsKeepValues() {
+        RadixTrie<String> trie = new RadixTrie<>();
+        trie.put("/abcdef/", true, "long");
+        trie.put("/abc/", true, "short");
+        trie.put("/ab", false, "exact");
+
+        assertEquals("long", trie.get("/abcdef/", true));
+        assertEquals("short", trie.get("/abc/", true));
+        assertEquals("exact", trie.get("/ab", false));
+        assertNull(trie.get("/abc", true));
+        assertEquals("long", trie.lookup("/abcdef/x"));
+        assertEquals("short", trie.lookup("/abc/x"));
+        assertEquals("exact", trie.lookup("/ab"));
+        assertNull(trie.lookup("/abcd"));
+        assertEquals("short", trie.computeIfAbsent("/abc/", true, () -> "other"));
+        assertEquals(3, trie.size());
+    }
+
+    @Test
+    public void hostNameDropsPortAndCase() {
+        assertEquals("example.org", RoutingTable.hostName("example.org"));
+        assertEquals("example.org", RoutingTable.hostName("Example.ORG:8443"));
+        assertEquals("[::1]", RoutingTable.hostName("[::1]:8443"));
+        assertEquals("[::1]", RoutingTable.hostName("[::1]"));
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.routing;
+
+import io.vertx.core.Vertx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Compares the lookup cost of the {@link RoutingTable} against a linear scan of the same routes, which is
+ * what matching the routes registered one by one on a vert.x router amounts to. Run the main method with
+ * the test classpath, optionally giving the number of lookups per measurement.
+ */
+public class RoutingTableBenchmark {
+    private static final int[] ROUTE_COUNTS = { 10, 100, 1_000, 10_000 };
+    private static final int SITES_PER_HOST = 10;
+
+    public static void main(String... args) {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        Vertx vertx = Vertx.vertx();
+        try {
+            for (int routes : ROUTE_COUNTS) {
+                run(vertx, routes, lookups);
+            }
+        } finally {
+            vertx.close();
+        }
+    }
+
+    private static void run(Vertx vertx, int routeCount, int lookups) {
+        RoutingTable table = new RoutingTable(vertx);
+        List<String[]> linear = new ArrayList<>();
+        for (int i = 0; i < routeCount; ++i) {
+            String host = "site" + (i / SITES_PER_HOST) + ".example.org";
+            String prefix = "/app" + (i % SITES_PER_HOST) + "/";
+            table.route(host, prefix + "*");
+            linear.add(new String[] { host, prefix });
+        }
+
+        Random random = new Random(1);
+        String[] hosts = new String[1024];
+        String[] paths = new String[hosts.length];
+        for (int i = 0; i < hosts.length; ++i) {
+            String[] route = linear.get(random.nextInt(routeCount));
+            hosts[i] = route[0] + ":8443";
+            paths[i] = route[1] + "static/main.js";
+        }
+
+        for (int warmup = 0; warmup < 3; ++warmup) {
+            table(table, hosts, paths, lookups);
+            linear(linear, hosts, paths, lookups);
+        }
+        long start = nanoTime();
+        int tableHits = table(table, hosts, paths, lookups);
+        long tableNanos = nanoTime() - start;
+        start = nanoTime();
+        int linearHits = linear(linear, hosts, paths, lookups);
+        long linearNanos = nanoTime() - start;
+
+        System.out.printf("routes=%6d  table=%8.1f ns/op  linear=%10.1f ns/op  (hits %d/%d)%n", routeCount,
+                (double) tableNanos / lookups, (double) linearNanos / lookups, tableHits, linearHits);
+    }
+
+    private static int table(RoutingTable table, String[] hosts, String[] paths, int lookups) {
+        int hits = 0;
+        for (int i = 0; i < lookups; ++i) {
+            int j = i & (hosts.length - 1);
+            if (table.lookup(hosts[j], paths[j]) != null) {
+                ++hits;
+            }
+        }
+        return hits;
+    }
+
+    private static int linear(List<String[]> routes, String[] hosts, String[] paths, int lookups) {
+        int hits = 0;
+        for (int i = 0; i < lookups; ++i) {
+            int j = i & (hosts.length - 1);
+            String host = RoutingTable.hostName(hosts[j]);
+            for (String[] route : routes) {
+                if (paths[j].startsWith(route[1]) && host.equals(route[0])) {
+                    ++hits;
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ClientCertificateTest {
+    private static final String CLIENT = "CN=client, OU=IT, O=Nitor Creations Oy, L=Helsinki, ST=Uusimaa, C=FI";
+
+    @Test
+    public void parsesIdentityOfClientCertificate() throws Exception {
+        ClientCertificate cert = ClientCertificate.parse(new Certificate[] {
+                load("certs/client.crt"), load("certs/localhost.crt") });
+        assertEquals(CLIENT, cert.subject);
+        assertEquals(CLIENT, cert.issuer);
+        assertEquals("2decc57fd78018f923099685537a5e67099d9fed78f65121da2ee4b6a45b2c7a", cert.fingerprint);
+        assertEquals(asList(CLIENT, ((X509Certificate) load("certs/localhost.crt")).getSubjectDN().getName()),
+                cert.chainSubjects);
+    }
+
+    private static Certificate load(String file) throws Exception {
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            return CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+    }
+}
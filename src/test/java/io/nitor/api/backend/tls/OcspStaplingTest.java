@@ -0,0 +1,158 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.vertx.core.json.JsonObject;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import static java.math.BigInteger.ONE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OcspStaplingTest {
+    private static final long NOW = 1_500_000_000_000L;
+    private static final long DAY = 86_400_000L;
+
+    @Test
+    public void encodesRequestForCertificate() throws Exception {
+        CertificateID certId = certId(cert("certs/localhost-ec.crt"));
+        OCSPReq request = new OCSPReq(OcspStapling.encodeRequest(certId));
+        assertEquals(1, request.getRequestList().length);
+        assertEquals(certId, request.getRequestList()[0].getCertID());
+    }
+
+    @Test
+    public void cachesGoodResponseUntilNextUpdate() throws Exception {
+        X509Certificate cert = cert("certs/localhost-ec.crt");
+        CertificateID certId = certId(cert);
+        byte[] der = response(certId, new Date(NOW + 4 * DAY), issuerKey(), null);
+        OcspStapling.Staple staple = OcspStapling.parse(cert, issuer(), certId, der, NOW);
+        assertArrayEquals(der, staple.response);
+        assertEquals(NOW + 4 * DAY, staple.expires);
+        assertEquals(NOW + 2 * DAY, staple.refreshAt);
+    }
+
+    @Test
+    public void rejectsExpiredAndUnrelatedResponses() throws Exception {
+        X509Certificate cert = cert("certs/localhost-ec.crt");
+        CertificateID certId = certId(cert);
+        assertThrows(IOException.class, () -> OcspStapling.parse(cert, issuer(), certId, response(certId, new Date(NOW - DAY), issuerKey(), null), NOW));
+        CertificateID other = CertificateID.deriveCertificateID(certId, cert.getSerialNumber().add(ONE));
+        assertThrows(IOException.class, () -> OcspStapling.parse(cert, issuer(), certId, response(other, new Date(NOW + DAY), issuerKey(), null), NOW));
+    }
+
+    @Test
+    public void rejectsResponseNotSignedByIssuer() throws Exception {
+        X509Certificate cert = cert("certs/localhost-ec.crt");
+        CertificateID certId = certId(cert);
+        PrivateKey forger = KeyPairGenerator.getInstance("RSA").generateKeyPair().getPrivate();
+        byte[] der = response(certId, new Date(NOW + DAY), forger, null);
+        assertThrows(IOException.class, () -> OcspStapling.parse(cert, issuer(), certId, der, NOW));
+    }
+
+    @Test
+    public void acceptsResponseSignedByDelegatedResponder() throws Exception {
+        X509Certificate cert = cert("certs/localhost-ec.crt");
+        CertificateID certId = certId(cert);
+        KeyPair responderKey = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        X509CertificateHolder responder = responderCert(responderKey, issuerKey(), KeyPurposeId.id_kp_OCSPSigning);
+        byte[] der = response(certId, new Date(NOW + DAY), responderKey.getPrivate(), responder);
+        assertEquals(NOW + DAY, OcspStapling.parse(cert, issuer(), certId, der, NOW).expires);
+    }
+
+    @Test
+    public void rejectsResponderWithoutOcspSigningDelegation() throws Exception {
+        X509Certificate cert = cert("certs/localhost-ec.crt");
+        CertificateID certId = certId(cert);
+        KeyPair responderKey = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        PrivateKey forger = KeyPairGenerator.getInstance("RSA").generateKeyPair().getPrivate();
+        X509CertificateHolder notDelegated = responderCert(responderKey, issuerKey(), KeyPurposeId.id_kp_serverAuth);
+        assertThrows(IOException.class, () -> OcspStapling.parse(cert, issuer(), certId, response(certId, new Date(NOW + DAY), responderKey.getPrivate(), notDelegated), NOW));
+        X509CertificateHolder selfIssued = responderCert(responderKey, forger, KeyPurposeId.id_kp_OCSPSigning);
+        assertThrows(IOException.class, () -> OcspStapling.parse(cert, issuer(), certId, response(certId, new Date(NOW + DAY), responderKey.getPrivate(), selfIssued), NOW));
+    }
+
+    private static X509Certificate cert(String file) throws Exception {
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+    }
+
+    /**
+     * The test certificates are self-signed with the same name, so the RSA one stands in as the issuer of the EC one.
+     */
+    private static X509Certificate issuer() throws Exception {
+        return cert("certs/localhost.crt");
+    }
+
+    private static PrivateKey issuerKey() throws Exception {
+        return new SniKeyManager.CertificateFiles(new JsonObject()
+                .put("serverKey", "certs/localhost.key.clear")
+                .put("serverCert", "certs/localhost.crt")).load("issuer").key;
+    }
+
+    private static CertificateID certId(X509Certificate cert) throws Exception {
+        return OcspStapling.certId(cert, issuer());
+    }
+
+    private static X509CertificateHolder responderCert(KeyPair responderKey, PrivateKey signer, KeyPurposeId usage) throws Exception {
+        return new JcaX509v3CertificateBuilder(new JcaX509CertificateHolder(issuer()).getSubject(), BigInteger.valueOf(NOW),
+                new Date(NOW - DAY), new Date(NOW + DAY), new X500Name("CN=responder"), responderKey.getPublic())
+                .addExtension(Extension.extendedKeyUsage, false, new ExtendedKeyUsage(usage))
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(signer));
+    }
+
+    /**
+     * @return a successful response telling the certificate is good, signed with the key and carrying the responder certificate if given
+     */
+    private static byte[] response(CertificateID certId, Date nextUpdate, PrivateKey signer, X509CertificateHolder responder) throws Exception {
+        X509CertificateHolder signerCert = responder != null ? responder : new JcaX509CertificateHolder(issuer());
+        BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(signerCert.getSubjectPublicKeyInfo(),
+                new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1)));
+        builder.addResponse(certId, CertificateStatus.GOOD, new Date(NOW - DAY), nextUpdate, null);
+        X509CertificateHolder[] chain = responder != null ? new X509CertificateHolder[] { responder } : null;
+        return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL,
+                builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(signer), chain, new Date(NOW))).getEncoded();
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class SessionResumptionTest {
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes(UTF_8);
+
+    @Test
+    public void sameSecretAndPeriodGiveSameKey() throws Exception {
+        byte[] key = SessionResumption.derive(SECRET, 42);
+        assertEquals(64, key.length);
+        assertArrayEquals(key, SessionResumption.derive(SECRET.clone(), 42));
+    }
+
+    @Test
+    public void keysChangeWithPeriodAndSecret() throws Exception {
+        byte[] key = SessionResumption.derive(SECRET, 42);
+        assertFalse(Arrays.equals(key, SessionResumption.derive(SECRET, 43)));
+        byte[] otherSecret = SECRET.clone();
+        otherSecret[0] ^= 1;
+        assertFalse(Arrays.equals(key, SessionResumption.derive(otherSecret, 42)));
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.ssl.OpenSsl;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.http.impl.HttpServerImpl;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The SSL context must be created only after the ALPN protocols have been given to vert.x, otherwise the engines
+ * created for the SNI key manager negotiate no protocol and HTTP/2 clients fall back to HTTP/1.1.
+ */
+class SniKeyCertOptionsTest {
+    private Vertx vertx;
+
+    @BeforeEach
+    public void setup() {
+        vertx = Vertx.vertx();
+    }
+
+    @AfterEach
+    public void teardown() {
+        vertx.close();
+    }
+
+    private String negotiatedProtocol(JsonObject config) throws Exception {
+        HttpServerOptions options = SetupHttpServerOptions.createHttpServerOptions(config
+                .put("tls", new JsonObject().put("serverKey", "certs/localhost.key.clear").put("serverCert", "certs/localhost.crt")));
+        HttpServer server = vertx.createHttpServer(options);
+        SniKeyCertOptions.configureEngines(vertx, server, options, null);
+
+        SSLEngine engine = ((HttpServerImpl) server).getSslHelper().getContext((VertxInternal) vertx).newEngine(ByteBufAllocator.DEFAULT);
+        SSLContext clientContext = TlsTestSupport.trustAllContext("TLS");
+        SSLEngine client = clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        SSLParameters params = client.getSSLParameters();
+        params.setProtocols(new String[] { "TLSv1.2" });
+        params.setServerNames(singletonList(new SNIHostName("localhost")));
+        params.setApplicationProtocols(new String[] { "h2", "http/1.1" });
+        client.setSSLParameters(params);
+        TlsTestSupport.handshake(client, engine);
+        return client.getApplicationProtocol();
+    }
+
+    @Test
+    public void jdkEnginesNegotiateHttp2() throws Exception {
+        assertEquals("h2", negotiatedProtocol(new JsonObject()));
+    }
+
+    @Test
+    public void openSslEnginesNegotiateHttp2() throws Exception {
+        assumeTrue(OpenSsl.isAvailable());
+        assertEquals("h2", negotiatedProtocol(new JsonObject().put("useNativeOpenSsl", true)));
+    }
+}
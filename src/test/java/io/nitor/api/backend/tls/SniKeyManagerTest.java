@@ -0,0 +1,175 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIMatcher;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.security.auth.x500.X500Principal;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Collections.singletonList;
+import static javax.net.ssl.StandardConstants.SNI_HOST_NAME;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class SniKeyManagerTest {
+    private static final JsonObject TLS = new JsonObject()
+            .put("serverKey", "certs/localhost.key.clear")
+            .put("serverCert", "certs/localhost.crt")
+            .put("certificates", new JsonArray()
+                    .add(new JsonObject()
+                            .put("serverKey", "certs/localhost-ec.key.clear")
+                            .put("serverCert", "certs/localhost-ec.crt"))
+                    .add(new JsonObject()
+                            .put("serverKey", "certs/client.key.clear")
+                            .put("serverCert", "certs/client.crt")
+                            .put("hostNames", new JsonArray().add("api.example.com").add("*.example.org"))));
+
+    @Test
+    public void selectsCertificatesByHostName() throws Exception {
+        SniKeyManager keyManager = new SniKeyManager(TLS);
+        assertEquals("RSA", keyAlgorithm(handshake(keyManager, "api.example.com", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256")));
+        assertEquals(subject("certs/client.crt"), handshake(keyManager, "www.example.org", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256").getSubjectX500Principal());
+        assertEquals(subject("certs/localhost.crt"), handshake(keyManager, "unknown.example.com", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256").getSubjectX500Principal());
+    }
+
+    @Test
+    public void prefersEcdsaWhenHostHasIt() throws Exception {
+        SniKeyManager keyManager = new SniKeyManager(TLS);
+        assertEquals("EC", keyAlgorithm(handshake(keyManager, "localhost",
+                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256")));
+        assertEquals("EC", keyAlgorithm(handshake(keyManager, null,
+                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256")));
+        assertEquals("RSA", keyAlgorithm(handshake(keyManager, "localhost", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256")));
+        assertEquals("RSA", keyAlgorithm(handshake(keyManager, "api.example.com",
+                "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256")));
+    }
+
+    @Test
+    public void reloadsChangedFiles() throws Exception {
+        Path dir = Files.createTempDirectory("sni");
+        Path key = dir.resolve("server.key");
+        Path cert = dir.resolve("server.crt");
+        Files.copy(Paths.get("certs/localhost.key.clear"), key);
+        Files.copy(Paths.get("certs/localhost.crt"), cert);
+        SniKeyManager keyManager = new SniKeyManager(new JsonObject()
+                .put("serverKey", key.toString())
+                .put("serverCert", cert.toString()));
+        String alias = keyManager.chooseServerAlias("RSA", null, null);
+        assertNotNull(alias);
+
+        Files.copy(Paths.get("certs/localhost-ec.key.clear"), key, REPLACE_EXISTING);
+        Files.copy(Paths.get("certs/localhost-ec.crt"), cert, REPLACE_EXISTING);
+        Files.setLastModifiedTime(key, FileTime.fromMillis(0));
+        keyManager.reloadIfChanged();
+
+        String reloaded = keyManager.chooseServerAlias("EC", null, null);
+        assertNotEquals(alias, reloaded);
+        assertEquals("EC", keyManager.getPrivateKey(reloaded).getAlgorithm());
+        // handshakes that chose the alias before the reload can still complete
+        assertEquals("RSA", keyManager.getPrivateKey(alias).getAlgorithm());
+    }
+
+    private static X500Principal subject(String certFile) throws Exception {
+        try (InputStream in = Files.newInputStream(Paths.get(certFile))) {
+            return ((X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in)).getSubjectX500Principal();
+        }
+    }
+
+    private static String keyAlgorithm(X509Certificate cert) {
+        return cert.getPublicKey().getAlgorithm();
+    }
+
+    /**
+     * Runs a TLS 1.2 handshake between in-memory engines.
+     *
+     * @return the certificate the server presented
+     */
+    private static X509Certificate handshake(SniKeyManager keyManager, String serverName, String... clientSuites) throws Exception {
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(new KeyManager[] { keyManager }, null, null);
+        SSLEngine server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        SSLParameters serverParams = server.getSSLParameters();
+        serverParams.setProtocols(new String[] { "TLSv1.2" });
+        serverParams.setCipherSuites(new String[] { "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256" });
+        serverParams.setUseCipherSuitesOrder(true);
+        serverParams.setSNIMatchers(singletonList(new SNIMatcher(SNI_HOST_NAME) {
+            @Override
+            public boolean matches(SNIServerName serverName) {
+                return true;
+            }
+        }));
+        server.setSSLParameters(serverParams);
+
+        X509Certificate[] presented = new X509Certificate[1];
+        SSLContext clientContext = TlsTestSupport.trustAllContext("TLS", cert -> presented[0] = cert);
+        SSLEngine client = clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        SSLParameters params = client.getSSLParameters();
+        params.setProtocols(new String[] { "TLSv1.2" });
+        params.setCipherSuites(clientSuites);
+        if (serverName != null) {
+            params.setServerNames(singletonList(new SNIHostName(serverName)));
+        }
+        client.setSSLParameters(params);
+        TlsTestSupport.handshake(client, server);
+        return presented[0];
+    }
+
+    @Test
+    public void keepsPreviousCertificateWhenKeyDoesNotMatch() throws Exception {
+        Path dir = Files.createTempDirectory("sni");
+        Path key = dir.resolve("server.key");
+        Path cert = dir.resolve("server.crt");
+        Files.copy(Paths.get("certs/localhost.key.clear"), key);
+        Files.copy(Paths.get("certs/localhost.crt"), cert);
+        SniKeyManager keyManager = new SniKeyManager(new JsonObject()
+                .put("serverKey", key.toString())
+                .put("serverCert", cert.toString()));
+        String alias = keyManager.chooseServerAlias("RSA", null, null);
+
+        // a renewal that has replaced the certificate but not yet the key
+        Files.copy(Paths.get("certs/client.crt"), cert, REPLACE_EXISTING);
+        Files.setLastModifiedTime(cert, FileTime.fromMillis(0));
+        keyManager.reloadIfChanged();
+        assertEquals(alias, keyManager.chooseServerAlias("RSA", null, null));
+        assertEquals(subject("certs/localhost.crt"), keyManager.getCertificateChain(alias)[0].getSubjectX500Principal());
+
+        Files.copy(Paths.get("certs/client.key.clear"), key, REPLACE_EXISTING);
+        keyManager.reloadIfChanged();
+        String reloaded = keyManager.chooseServerAlias("RSA", null, null);
+        assertNotEquals(alias, reloaded);
+        assertEquals(subject("certs/client.crt"), keyManager.getCertificateChain(reloaded)[0].getSubjectX500Principal());
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import io.netty.handler.ssl.OpenSsl;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerOptions;
+import io.vertx.core.json.JsonObject;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.System.nanoTime;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Measures full handshakes, resumed handshakes and bulk transfer rates of the https server as set up by
+ * {@link SetupHttpServerOptions#createHttpServerOptions}, for the JDK and OpenSSL engines, RSA and ECDSA keys and
+ * each of the configured cipher suites. Clients run in this process over loopback, so the numbers include their
+ * cost too and are meant for comparing the combinations with each other. The OpenSSL engine needs
+ * netty-tcnative-boringssl-static on the classpath, as added by the <tt>openssl</tt> profile, it is skipped otherwise.
+ * <p>
+ * Run the main method with the test classpath from the project directory, optionally giving the seconds per
+ * measurement and the number of client threads: <tt>mvn -Popenssl test-compile exec:java -Dexec.args="5 4"</tt>
+ */
+public class TlsHandshakeBenchmark {
+    private static final String[][] KEYS = {
+            { "RSA", "certs/localhost.key.clear", "certs/localhost.crt" },
+            { "ECDSA", "certs/localhost-ec.key.clear", "certs/localhost-ec.crt" },
+    };
+    private static final int BULK_BYTES = 256 * 1024 * 1024;
+
+    public static void main(String... args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        Vertx vertx = Vertx.vertx();
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        try {
+            System.out.printf("%-8s %-6s %-40s %10s %10s %10s%n", "engine", "key", "cipher suite", "full/s", "resumed/s", "MB/s");
+            for (boolean openSsl : new boolean[] { false, true }) {
+                if (openSsl && !OpenSsl.isAvailable()) {
+                    System.out.println("openssl  skipped: " + OpenSsl.unavailabilityCause());
+                    continue;
+                }
+                for (String[] key : KEYS) {
+                    JsonObject config = new JsonObject()
+                            .put("useNativeOpenSsl", openSsl)
+                            .put("http2", false)
+                            .put("tls", new JsonObject().put("serverKey", key[1]).put("serverCert", key[2]));
+                    HttpServerOptions options = SetupHttpServerOptions.createHttpServerOptions(config);
+                    HttpServer server = start(vertx, options, config.getJsonObject("tls"));
+                    try {
+                        for (String suite : options.getEnabledCipherSuites()) {
+                            if (suite.contains("_ECDSA_") != key[0].equals("ECDSA")) {
+                                continue;
+                            }
+                            String jdkSuite = suite.startsWith("TLS_") ? suite : openSslToJdk(suite);
+                            Client client = new Client(server.actualPort(), jdkSuite);
+                            double full = rate(clients, threads, seconds, () -> client.handshake(false));
+                            double resumed = rate(clients, threads, seconds, () -> client.handshake(true));
+                            double bulk = client.bulk() / 1024.0 / 1024.0;
+                            System.out.printf("%-8s %-6s %-40s %10.0f %10.0f %10.1f%n",
+                                    openSsl ? "openssl" : "jdk", key[0], jdkSuite, full, resumed, bulk);
+                        }
+                    } finally {
+                        CompletableFuture<Void> closed = new CompletableFuture<>();
+                        server.close(ar -> closed.complete(null));
+                        closed.get(10, SECONDS);
+                    }
+                }
+            }
+        } finally {
+            clients.shutdownNow();
+            vertx.close();
+        }
+    }
+
+    private static HttpServer start(Vertx vertx, HttpServerOptions options, JsonObject tls) throws Exception {
+        Buffer chunk = Buffer.buffer(new byte[64 * 1024]);
+        HttpServer server = vertx.createHttpServer(options);
+        SniKeyCertOptions.configureEngines(vertx, server, options, null);
+        CompletableFuture<HttpServer> listening = new CompletableFuture<>();
+        server.requestHandler(req -> {
+            if (!req.path().equals("/bulk")) {
+                req.response().end("ok");
+                return;
+            }
+            req.response().putHeader("content-length", Integer.toString(BULK_BYTES));
+            write(req.response(), chunk, BULK_BYTES / chunk.length());
+        }).listen(0, "localhost", ar -> {
+            if (ar.succeeded()) {
+                SessionResumption.setup(vertx, server, tls);
+                listening.complete(server);
+            } else {
+                listening.completeExceptionally(ar.cause());
+            }
+        });
+        return listening.get(10, SECONDS);
+    }
+
+    private static void write(io.vertx.core.http.HttpServerResponse response, Buffer chunk, int remaining) {
+        while (remaining > 0 && !response.writeQueueFull()) {
+            response.write(chunk);
+            --remaining;
+        }
+        if (remaining == 0) {
+            response.end();
+            return;
+        }
+        int left = remaining;
+        response.drainHandler(v -> write(response, chunk, left));
+    }
+
+    /**
+     * @return operations per second over all threads
+     */
+    private static double rate(ExecutorService clients, int threads, int seconds, Operation op) throws Exception {
+        for (long warmupEnd = nanoTime() + SECONDS.toNanos(1); nanoTime() < warmupEnd; ) {
+            op.run();
+        }
+        long end = nanoTime() + SECONDS.toNanos(seconds);
+        List<Future<Integer>> results = new ArrayList<>();
+        long start = nanoTime();
+        for (int i = 0; i < threads; ++i) {
+            results.add(clients.submit(() -> {
+                int count = 0;
+                while (nanoTime() < end) {
+                    op.run();
+                    ++count;
+                }
+                return count;
+            }));
+        }
+        long total = 0;
+        for (Future<Integer> result : results) {
+            total += result.get(seconds + 60, SECONDS);
+        }
+        return total * (double) TimeUnit.SECONDS.toNanos(1) / (nanoTime() - start);
+    }
+
+    static String openSslToJdk(String suite) {
+        // inverse of SetupHttpServerOptions.javaCipherNameToOpenSSLName for the configured suites
+        return "TLS_" + suite.replace("-AES", "_WITH_AES_").replace('-', '_');
+    }
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    static final class Client {
+        private final int port;
+        private final String suite;
+        private final SSLContext context;
+
+        Client(int port, String suite) throws Exception {
+            this.port = port;
+            this.suite = suite;
+            this.context = TlsTestSupport.trustAllContext("TLSv1.2");
+        }
+
+        private SSLSocket connect() throws Exception {
+            SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket("localhost", port);
+            socket.setEnabledProtocols(new String[] { "TLSv1.2" });
+            socket.setEnabledCipherSuites(new String[] { suite });
+            return socket;
+        }
+
+        void handshake(boolean resume) throws Exception {
+            try (SSLSocket socket = connect()) {
+                socket.startHandshake();
+                if (!resume) {
+                    socket.getSession().invalidate();
+                }
+            }
+        }
+
+        /**
+         * @return bytes per second of the response body
+         */
+        double bulk() throws Exception {
+            try (SSLSocket socket = connect()) {
+                OutputStream out = socket.getOutputStream();
+                out.write("GET /bulk HTTP/1.1\r\nhost: localhost\r\nconnection: close\r\n\r\n".getBytes(US_ASCII));
+                out.flush();
+                InputStream in = socket.getInputStream();
+                byte[] buf = new byte[64 * 1024];
+                long start = nanoTime();
+                long bytes = 0;
+                for (int n; (n = in.read(buf)) > 0; ) {
+                    bytes += n;
+                }
+                return bytes * (double) SECONDS.toNanos(1) / (nanoTime() - start);
+            }
+        }
+    }
+}
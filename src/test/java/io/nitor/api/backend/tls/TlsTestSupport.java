@@ -0,0 +1,95 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tls;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.nio.ByteBuffer;
+import java.security.cert.X509Certificate;
+import java.util.function.Consumer;
+
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.FINISHED;
+import static javax.net.ssl.SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+
+/**
+ * Client side TLS for the tests and benchmarks: a context that trusts any server and in-memory handshakes.
+ */
+public class TlsTestSupport {
+    private TlsTestSupport() {
+    }
+
+    public static SSLContext trustAllContext(String protocol) throws Exception {
+        return trustAllContext(protocol, cert -> {});
+    }
+
+    /**
+     * @param presented receives the certificate of each server the context is used with
+     */
+    public static SSLContext trustAllContext(String protocol, Consumer<X509Certificate> presented) throws Exception {
+        SSLContext context = SSLContext.getInstance(protocol);
+        context.init(null, new TrustManager[] { new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {
+            }
+
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {
+                presented.accept(chain[0]);
+            }
+
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } }, null);
+        return context;
+    }
+
+    /**
+     * Runs the handshake between the engines in memory.
+     */
+    public static void handshake(SSLEngine client, SSLEngine server) throws Exception {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        ByteBuffer clientToServer = ByteBuffer.allocate(1 << 16);
+        ByteBuffer serverToClient = ByteBuffer.allocate(1 << 16);
+        ByteBuffer sink = ByteBuffer.allocate(1 << 16);
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int i = 0; i < 100 && !(done(client) && done(server)); ++i) {
+            client.wrap(empty, clientToServer);
+            clientToServer.flip();
+            server.unwrap(clientToServer, sink);
+            clientToServer.compact();
+            runTasks(server);
+            server.wrap(empty, serverToClient);
+            serverToClient.flip();
+            client.unwrap(serverToClient, sink);
+            serverToClient.compact();
+            runTasks(client);
+        }
+    }
+
+    private static boolean done(SSLEngine engine) {
+        HandshakeStatus status = engine.getHandshakeStatus();
+        return status == FINISHED || status == NOT_HANDSHAKING;
+    }
+
+    private static void runTasks(SSLEngine engine) {
+        for (Runnable task; (task = engine.getDelegatedTask()) != null; ) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static io.nitor.api.backend.tracing.SpanEvent.KIND_CLIENT;
+import static io.nitor.api.backend.tracing.SpanEvent.KIND_SERVER;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OtlpJsonTest {
+    private final OtlpJson json = new OtlpJson("test-service");
+    private final StringBuilder sb = new StringBuilder();
+
+    @Test
+    public void encodesBatch() {
+        SpanEvent server = new SpanEvent();
+        server.traceIdHigh = 0x4bf92f3577b34da6L;
+        server.traceIdLow = 0xa3ce929d0e0e4736L;
+        server.spanId = 1;
+        server.kind = KIND_SERVER;
+        server.name = "GET /proxy/*";
+        server.startEpochNanos = 1_500_000_000_000_000_000L;
+        server.endEpochNanos = 1_500_000_000_042_000_000L;
+        server.method = "GET";
+        server.target = "/proxy/\"x\"";
+        server.requestId = "123";
+        server.status = 502;
+        server.error = true;
+
+        SpanEvent client = new SpanEvent();
+        client.traceIdHigh = server.traceIdHigh;
+        client.traceIdLow = server.traceIdLow;
+        client.spanId = 2;
+        client.parentSpanId = 1;
+        client.kind = KIND_CLIENT;
+        client.name = "GET";
+        client.method = "GET";
+        client.upstreamHost = "example.org";
+        client.upstreamPort = 80;
+
+        json.begin(sb);
+        json.span(server, true, sb);
+        json.span(client, false, sb);
+        json.end(sb);
+
+        assertTrue(sb.toString().endsWith("}\n"));
+        JsonObject resourceSpans = new JsonObject(sb.toString()).getJsonArray("resourceSpans").getJsonObject(0);
+        assertEquals("test-service", resourceSpans.getJsonObject("resource").getJsonArray("attributes").getJsonObject(0)
+                .getJsonObject("value").getString("stringValue"));
+        JsonArray spans = resourceSpans.getJsonArray("scopeSpans").getJsonObject(0).getJsonArray("spans");
+        assertEquals(2, spans.size());
+
+        JsonObject s = spans.getJsonObject(0);
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", s.getString("traceId"));
+        assertEquals("0000000000000001", s.getString("spanId"));
+        assertFalse(s.containsKey("parentSpanId"));
+        assertEquals(2, (int) s.getInteger("kind"));
+        assertEquals("1500000000042000000", s.getString("endTimeUnixNano"));
+        assertEquals("/proxy/\"x\"", s.getJsonArray("attributes").getJsonObject(1).getJsonObject("value").getString("stringValue"));
+        assertEquals(2, (int) s.getJsonObject("status").getInteger("code"));
+
+        JsonObject c = spans.getJsonObject(1);
+        assertEquals("0000000000000001", c.getString("parentSpanId"));
+        assertEquals("80", c.getJsonArray("attributes").getJsonObject(2).getJsonObject("value").getString("intValue"));
+        assertFalse(c.containsKey("status"));
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.api.backend.tracing;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TraceContextTest {
+    private static final String TRACEPARENT = "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01";
+
+    private final TraceContext context = new TraceContext();
+
+    @Test
+    public void parsesAndFormats() {
+        assertTrue(context.parse(TRACEPARENT));
+        assertEquals(0x4bf92f3577b34da6L, context.traceIdHigh);
+        assertEquals(0xa3ce929d0e0e4736L, context.traceIdLow);
+        assertEquals(0x00f067aa0ba902b7L, context.spanId);
+        assertTrue(context.isSampled());
+        assertEquals("00-4bf92f3577b34da6a3ce929d0e0e4736-b7ad6b7169203331-01", context.traceparent(0xb7ad6b7169203331L));
+    }
+
+    @Test
+    public void acceptsFutureVersions() {
+        assertTrue(context.parse("cc" + TRACEPARENT.substring(2) + "-what-the-future-will-be-like"));
+        assertFalse(context.parse("cc" + TRACEPARENT.substring(2) + "x"));
+    }
+
+    @Test
+    public void rejectsInvalidHeaders() {
+        assertFalse(context.parse(null));
+        assertFalse(context.parse(""));
+        assertFalse(context.parse(TRACEPARENT.substring(1)));
+        assertFalse(context.parse(TRACEPARENT + "-"));
+        assertFalse(context.parse("ff" + TRACEPARENT.substring(2)));
+        assertFalse(context.parse(TRACEPARENT.toUpperCase()));
+        assertFalse(context.parse(TRACEPARENT.replace('-', '_')));
+        assertFalse(context.parse("00-00000000000000000000000000000000-00f067aa0ba902b7-01"));
+        assertFalse(context.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-0000000000000000-01"));
+        assertFalse(context.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-0g"));
+    }
+
+    @Test
+    public void invalidHeaderLeavesContextUnchanged() {
+        context.parse(TRACEPARENT);
+        context.parse("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-0x");
+        assertEquals(0x00f067aa0ba902b7L, context.spanId);
+    }
+
+    @Test
+    public void startsNewTrace() {
+        context.start(false);
+        assertNotEquals(0, context.traceIdHigh | context.traceIdLow);
+        assertEquals(0, context.spanId);
+        assertFalse(context.isSampled());
+        assertTrue(context.traceparent(1).endsWith("-0000000000000001-00"));
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright 2017 Nitor Creations Oy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.nitor.vertx.util;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpUtil;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.UnsupportedAddressTypeException;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static io.netty.buffer.Unpooled.copiedBuffer;
+import static io.netty.handler.codec.http.HttpResponseStatus.OK;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class DomainSocketChannelTest {
+    private Path dir;
+    private DomainSocketAddress address;
+    private EventLoopGroup group;
+    private Channel server;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        assumeTrue(Epoll.isAvailable());
+        dir = Files.createTempDirectory("domain-socket");
+        address = new DomainSocketAddress(dir.resolve("server.sock").toString());
+        group = new EpollEventLoopGroup(1);
+    }
+
+    @AfterEach
+    public void teardown() throws Exception {
+        if (server != null) {
+            server.close().sync();
+        }
+        if (group != null) {
+            group.shutdownGracefully(0, 1, SECONDS).sync();
+        }
+        if (dir != null) {
+            Files.deleteIfExists(dir.resolve("server.sock"));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void echoesHeapBuffersLargerThanDirectBuffer() throws Exception {
+        listen(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ctx.writeAndFlush(msg);
+            }
+        });
+        byte[] data = new byte[3 * DomainSocketChannel.DIRECT_BUFFER_SIZE + 17];
+        new Random(1).nextBytes(data);
+        ByteBuffer src = ByteBuffer.wrap(data);
+        ByteBuffer dst = ByteBuffer.allocate(data.length);
+        try (Selector selector = SelectorProvider.provider().openSelector();
+             DomainSocketChannel channel = new DomainSocketChannel(SelectorProvider.provider())) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_CONNECT);
+            if (!channel.connect(address)) {
+                select(selector);
+                assertTrue(channel.finishConnect());
+            }
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            while (dst.hasRemaining()) {
+                select(selector);
+                if (key.isWritable() && src.hasRemaining()) {
+                    assertTrue(channel.write(src) <= DomainSocketChannel.DIRECT_BUFFER_SIZE);
+                    if (!src.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                }
+                if (key.isReadable()) {
+                    assertTrue(channel.read(dst) >= 0);
+                }
+            }
+        }
+        assertArrayEquals(data, dst.array());
+    }
+
+    @Test
+    public void connectsOnlyToDomainSockets() throws Exception {
+        try (DomainSocketChannel channel = new DomainSocketChannel(SelectorProvider.provider())) {
+            channel.configureBlocking(false);
+            assertThrows(UnsupportedAddressTypeException.class, () -> channel.connect(new InetSocketAddress("localhost", 80)));
+        }
+    }
+
+    @Test
+    public void httpClientConnectsToDomainSocketOfClientHost() throws Exception {
+        listen(new HttpServerCodec(), new HttpObjectAggregator(1024), new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                HttpRequest req = (HttpRequest) msg;
+                FullHttpResponse res = new DefaultFullHttpResponse(HTTP_1_1, OK, copiedBuffer(req.uri() + " " + req.headers().get("host"), UTF_8));
+                HttpUtil.setContentLength(res, res.content().readableBytes());
+                ctx.writeAndFlush(res);
+            }
+        });
+        String host = DomainSocketChannelProvider.clientHost(address);
+        assertEquals(address.path(), DomainSocketChannelProvider.domainSocketAddress(host).path());
+        assertNull(DomainSocketChannelProvider.domainSocketAddress("localhost"));
+
+        Vertx vertx = Vertx.vertx();
+        try {
+            HttpClient client = vertx.createHttpClient();
+            CompletableFuture<String> body = new CompletableFuture<>();
+            client.get(0, host, "/path", res -> res.bodyHandler(b -> body.complete(b.toString())))
+                    .exceptionHandler(body::completeExceptionally)
+                    .setHost("localhost")
+                    .end();
+            assertEquals("/path localhost", body.get(10, SECONDS));
+        } finally {
+            vertx.close();
+        }
+    }
+
+    private void listen(ChannelHandler... handlers) throws InterruptedException {
+        server = new ServerBootstrap()
+                .group(group)
+                .channel(EpollServerDomainSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(handlers);
+                    }
+                })
+                .bind(address).sync().channel();
+    }
+
+    private static void select(Selector selector) throws Exception {
+        assertTrue(selector.select(SECONDS.toMillis(10)) > 0, "timed out waiting for the socket");
+        selector.selectedKeys().clear();
+    }
+}